@@ -23,6 +23,7 @@ import com.s10715.bluetoothhelper.MainActivity;
 import com.s10715.bluetoothhelper.R;
 import com.s10715.bluetoothhelper.utils.BluetoothHelper;
 import com.s10715.bluetoothhelper.utils.DialogHelper;
+import com.s10715.bluetoothhelper.utils.GattProfileCache;
 
 import java.util.List;
 import java.util.UUID;
@@ -198,7 +199,8 @@ public class ConnectFragment extends Fragment implements View.OnClickListener {
 
                         @Override
                         public void onFoundBleUUIDs(List<BluetoothGattService> serviceList) {
-                            startTransferBtn.setEnabled(true);
+                            //连接过的设备会先用缓存回调一次，发现服务后才能开始传输
+                            startTransferBtn.setEnabled(bluetoothHelper.isServicesDiscovered(mac));
                             //TODO
                             for (BluetoothGattService service : serviceList) {
                                 Log.e("TAG", service.getUuid().toString());
@@ -207,6 +209,14 @@ public class ConnectFragment extends Fragment implements View.OnClickListener {
                                     Log.e("TAG", "\t" + character.getUuid().toString());
                                 }
                             }
+                            //优先填入上次连接时使用的特征值
+                            GattProfileCache.Profile profile = bluetoothHelper.getGattProfile(mac);
+                            if (profile != null && profile.getChosen().size() > 0) {
+                                GattProfileCache.Characteristic chosen = profile.getChosen().get(0);
+                                serviceUUIDEditText.setText(chosen.getServiceUUID().toString());
+                                characterUUIDEditText.setText(chosen.getUUID().toString());
+                                return;
+                            }
                             try {
                                 if (!serviceUUIDEditText.getText().toString().equals(MainActivity.DEFAULT_SERVICE_UUID))
                                     serviceUUIDEditText.setText(serviceList.get(0).getUuid().toString());
@@ -18,12 +18,14 @@ import android.widget.Button;
 
 import com.s10715.bluetoothhelper.MainActivity;
 import com.s10715.bluetoothhelper.R;
+import com.s10715.bluetoothhelper.utils.BleScanFilter;
 import com.s10715.bluetoothhelper.utils.BluetoothHelper;
 import com.s10715.bluetoothhelper.utils.DialogHelper;
 import com.s10715.bluetoothhelper.utils.PermissionHelper;
 import com.s10715.bluetoothhelper.view.BluetoothListView;
 
 import java.util.ArrayList;
+import java.util.List;
 
 public class SearchFragment extends Fragment implements View.OnClickListener, BluetoothListView.OnItemClickListener {
 
@@ -160,40 +162,60 @@ public class SearchFragment extends Fragment implements View.OnClickListener, Bl
         infoList.clear();
         listView.setData(infoList);
 
-        bluetoothHelper.scan(new BluetoothHelper.OnScanListener() {
-            @Override
-            public void onStart() {
+        //BLE扫描结果每秒批量回调一次，周围设备很多时减少刷新列表的次数
+        BleScanFilter filter = new BleScanFilter().setReportDelay(1000);
+        bluetoothHelper.scan(new ScanListener(), BluetoothHelper.SCAN_MODE_CONCURRENT, 10, 15, filter);
+    }
 
-            }
+    /**
+     * 新设备加入列表后刷新整个列表，设备改变时只刷新对应的一行
+     */
+    private class ScanListener implements BluetoothHelper.OnBatchScanListener, BluetoothHelper.OnScanUpdateListener {
+        @Override
+        public void onStart() {
 
-            @Override
-            public void onFound(BluetoothHelper.BluetoothInfo info) {
-                infoList.add(info);
-                listView.setData(infoList);
-            }
+        }
 
-            @Override
-            public void onStop() {
-                isSearching = false;
-                searchBtn.setText(R.string.search_searchBegin);
-                //防止蓝牙列表数据有变（经典蓝牙和BLE蓝牙都支持的设备在扫描BLE蓝牙后supportType会改为ALL，但不会调用onFound）
-                listView.setData(infoList);
-            }
+        @Override
+        public void onFound(BluetoothHelper.BluetoothInfo info) {
+            infoList.add(info);
+            listView.setData(infoList);
+        }
 
-            @Override
-            public void onCancel() {
-                isSearching = false;
-                searchBtn.setText(R.string.search_searchBegin);
-                //防止蓝牙列表数据有变（经典蓝牙和BLE蓝牙都支持的设备在扫描BLE蓝牙后supportType会改为ALL，但不会调用onFound）
-                listView.setData(infoList);
-            }
+        @Override
+        public void onFoundBatch(List<BluetoothHelper.BluetoothInfo> list) {
+            infoList.addAll(list);
+            listView.setData(infoList);
+        }
 
-            @Override
-            public void onError() {
-                isSearching = false;
-                searchBtn.setText(R.string.search_searchBegin);
-            }
-        });
+        @Override
+        public void onUpdated(BluetoothHelper.BluetoothInfo info, int changes) {
+            listView.updateItem(info);
+        }
+
+        @Override
+        public void onLost(BluetoothHelper.BluetoothInfo info) {
+            infoList.remove(info);
+            listView.setData(infoList);
+        }
+
+        @Override
+        public void onStop() {
+            isSearching = false;
+            searchBtn.setText(R.string.search_searchBegin);
+        }
+
+        @Override
+        public void onCancel() {
+            isSearching = false;
+            searchBtn.setText(R.string.search_searchBegin);
+        }
+
+        @Override
+        public void onError() {
+            isSearching = false;
+            searchBtn.setText(R.string.search_searchBegin);
+        }
     }
 
     @Override
@@ -0,0 +1,171 @@
+package com.s10715.bluetoothhelper.utils;
+
+/**
+ * BLE批量写入，把任意大小的数据按MTU切成包，用无响应写入依次发出
+ * 同一时间只有一个包在GattQueue中，上一个包被协议栈接收（onCharacteristicWrite）后才发出下一个，协议栈的缓冲区不会溢出，
+ * 其他GATT操作也可以插在两个包之间执行
+ * 协议栈暂时拒绝写入（缓冲区已满）时按退避时间重试
+ */
+public class BleBulkWriter {
+
+    //协议栈拒绝写入时的重试间隔，单位为毫秒，从MIN_RETRY_DELAY开始加倍，直到MAX_RETRY_DELAY
+    private static final long MIN_RETRY_DELAY = 2;
+    private static final long MAX_RETRY_DELAY = 64;
+    private static final int MAX_RETRIES = 32;//连续重试的次数，超过后失败
+
+    private final GattQueue queue;
+    private final GattQueue.Scheduler scheduler;
+    private final Object target;
+    private final byte[] data;
+    private final long timeout;
+    private final PacketSender sender;
+    private final Listener listener;
+
+    private int sent;//已经被协议栈接收的字节数
+    private int retries;
+    private long startTime;
+    private long endTime;
+    private volatile boolean finished;
+
+    private final Runnable retryTask = new Runnable() {
+        @Override
+        public void run() {
+            enqueueNext();
+        }
+    };
+
+    /**
+     * @param target  要写入的特征值，用于和GATT回调对应
+     * @param timeout 每个包的超时时间，单位为毫秒
+     */
+    public BleBulkWriter(GattQueue queue, GattQueue.Scheduler scheduler, Object target, byte[] data, long timeout,
+                         PacketSender sender, Listener listener) {
+        this.queue = queue;
+        this.scheduler = scheduler;
+        this.target = target;
+        this.data = data;
+        this.timeout = timeout;
+        this.sender = sender;
+        this.listener = listener;
+    }
+
+    public void start() {
+        startTime = System.nanoTime();
+        if (data.length == 0)
+            finish(GattQueue.STATUS_SUCCESS);
+        else
+            enqueueNext();
+    }
+
+    //停止发送，已经发出的包不能撤回
+    public void cancel() {
+        finish(GattQueue.STATUS_CANCELLED);
+    }
+
+    public int getSent() {
+        return sent;
+    }
+
+    public int getTotal() {
+        return data.length;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    //有效吞吐量，单位为字节/秒，从开始到当前（或结束）为止
+    public float getThroughput() {
+        long end = finished ? endTime : System.nanoTime();
+        long elapsed = end - startTime;
+        return elapsed <= 0 ? 0 : sent * 1e9f / elapsed;
+    }
+
+    private void enqueueNext() {
+        if (finished)
+            return;
+        if (!queue.enqueue(new PacketOperation()))
+            finish(GattQueue.STATUS_REJECTED);
+    }
+
+    private void onPacketComplete(int length, int status) {
+        if (finished)
+            return;
+
+        if (status == GattQueue.STATUS_SUCCESS) {
+            retries = 0;
+            sent += length;
+            listener.onProgress(sent, data.length);
+            if (sent == data.length)
+                finish(GattQueue.STATUS_SUCCESS);
+            else
+                enqueueNext();
+        } else if (status == GattQueue.STATUS_REJECTED && retries < MAX_RETRIES) {
+            long delay = Math.min(MAX_RETRY_DELAY, MIN_RETRY_DELAY << Math.min(retries, 6));
+            retries++;
+            scheduler.schedule(retryTask, delay);
+        } else {
+            finish(status);
+        }
+    }
+
+    private synchronized void finish(int status) {
+        if (finished)
+            return;
+        finished = true;
+        endTime = System.nanoTime();
+        scheduler.cancel(retryTask);
+        if (status == GattQueue.STATUS_SUCCESS)
+            listener.onComplete(data.length, (endTime - startTime) / 1000000, getThroughput());
+        else
+            listener.onError(status);
+    }
+
+
+    /**
+     * 发送一个包，例如设置特征值并用无响应写入发出
+     */
+    public interface PacketSender {
+        //当前允许的最大包长度，一般是MTU-3，每个包发出时才获取，MTU协商完成前后都能得到正确的值
+        int getPacketSize();
+
+        //发送data[offset, offset + length)，返回false表示协议栈拒绝
+        boolean send(byte[] data, int offset, int length);
+    }
+
+    public interface Listener {
+        //sent为已经被协议栈接收的字节数
+        void onProgress(int sent, int total);
+
+        /**
+         * @param elapsed    单位为毫秒
+         * @param throughput 有效吞吐量，单位为字节/秒
+         */
+        void onComplete(int total, long elapsed, float throughput);
+
+        //status为GATT的错误码或GattQueue中的STATUS_*
+        void onError(int status);
+    }
+
+    //一个包对应一个GATT操作，包的长度在发出时才确定
+    private class PacketOperation extends GattQueue.Operation {
+        private int length;
+
+        PacketOperation() {
+            super(target, timeout);
+        }
+
+        @Override
+        protected boolean start() {
+            if (finished)
+                return false;
+            length = Math.min(sender.getPacketSize(), data.length - sent);
+            return sender.send(data, sent, length);
+        }
+
+        @Override
+        protected void onComplete(int status, byte[] value) {
+            onPacketComplete(length, status);
+        }
+    }
+}
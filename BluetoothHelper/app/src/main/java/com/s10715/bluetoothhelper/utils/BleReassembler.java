@@ -0,0 +1,213 @@
+package com.s10715.bluetoothhelper.utils;
+
+/**
+ * BLE分片协议的接收端，把多个特征值读取结果或通知重组成一条完整的消息
+ * 每个分片以1个字节的头开头：bit7为开始标记，bit6为结束标记，低6位为序号（每个分片加1，对64取模，跨消息连续）
+ * 开始分片在头之后是4个字节的消息总长度（大端），其余为消息内容；只有一个分片的消息同时带有开始和结束标记
+ * 消息直接重组到构造时分配的缓冲区中，交给listener的数组只在回调执行期间有效
+ * 序号不连续时认为中间的分片丢失，当前消息被丢弃，直到下一个开始分片；一次丢失64个以上的分片时丢失数会少算
+ * 不是线程安全的，同一时间只能在一个线程中调用feed
+ */
+public class BleReassembler {
+
+    public static final int HEADER_SIZE = 1;
+    public static final int START_HEADER_SIZE = HEADER_SIZE + 4;
+
+    private static final int FLAG_START = 0x80;
+    private static final int FLAG_END = 0x40;
+    private static final int SEQUENCE_MASK = 0x3F;
+
+    private final byte[] buffer;
+    private int total = -1;//正在重组的消息的总长度，-1表示没有正在重组的消息
+    private int position;
+    private int expectedSequence = -1;//-1表示还没有收到分片
+
+    private long fragmentCount;
+    private long messageCount;
+    private long lostCount;
+    private long droppedCount;
+
+    /**
+     * @param maxMessageSize 一条消息的最大字节数，超过的消息会被丢弃
+     */
+    public BleReassembler(int maxMessageSize) {
+        if (maxMessageSize <= 0)
+            throw new IllegalArgumentException("maxMessageSize must be positive");
+        this.buffer = new byte[maxMessageSize];
+    }
+
+    public int getMaxMessageSize() {
+        return buffer.length;
+    }
+
+    /**
+     * 放入一个分片，例如一次读取的结果或一个通知
+     *
+     * @return 完成重组的消息数，为1时已经回调listener
+     */
+    public int feed(byte[] fragment, int offset, int length, MessageListener listener) {
+        if (length < HEADER_SIZE) {
+            abort();
+            return 0;
+        }
+        fragmentCount++;
+
+        int header = fragment[offset] & 0xFF;
+        int sequence = header & SEQUENCE_MASK;
+        if (expectedSequence != -1 && sequence != expectedSequence) {
+            lostCount += (sequence - expectedSequence) & SEQUENCE_MASK;
+            abort();
+        }
+        expectedSequence = (sequence + 1) & SEQUENCE_MASK;
+
+        int payloadOffset = offset + HEADER_SIZE;
+        int payloadLength = length - HEADER_SIZE;
+        if ((header & FLAG_START) != 0) {
+            abort();//上一条消息没有结束分片
+            if (length < START_HEADER_SIZE)
+                return 0;
+            long size = 0;
+            for (int i = 0; i < 4; i++)
+                size = (size << 8) | (fragment[payloadOffset + i] & 0xFF);
+            payloadOffset += 4;
+            payloadLength -= 4;
+            if (size > buffer.length) {
+                droppedCount++;
+                return 0;
+            }
+            total = (int) size;
+            position = 0;
+        } else if (total == -1) {
+            return 0;//不属于任何消息，等待下一个开始分片
+        }
+
+        if (payloadLength > total - position) {
+            abort();
+            return 0;
+        }
+        System.arraycopy(fragment, payloadOffset, buffer, position, payloadLength);
+        position += payloadLength;
+
+        if ((header & FLAG_END) == 0)
+            return 0;
+        if (position != total) {
+            abort();
+            return 0;
+        }
+        int size = total;
+        total = -1;
+        messageCount++;
+        listener.onMessage(buffer, 0, size);
+        return 1;
+    }
+
+    //是否有一条消息已经开始但还没有收到结束分片
+    public boolean isAssembling() {
+        return total != -1;
+    }
+
+    //丢弃正在重组的消息并清空序号，下一个分片的序号不会被当作丢失
+    public void reset() {
+        total = -1;
+        position = 0;
+        expectedSequence = -1;
+    }
+
+    //收到的分片总数
+    public long getFragmentCount() {
+        return fragmentCount;
+    }
+
+    //完成重组的消息数
+    public long getMessageCount() {
+        return messageCount;
+    }
+
+    //根据序号推算出的丢失分片数
+    public long getLostCount() {
+        return lostCount;
+    }
+
+    //因为分片丢失、格式错误或超过最大长度而丢弃的消息数
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    private void abort() {
+        if (total != -1) {
+            total = -1;
+            droppedCount++;
+        }
+    }
+
+    /**
+     * 把length字节的消息切成分片后，分片的总数
+     *
+     * @param fragmentSize 每个分片的最大字节数，一般是MTU-3
+     */
+    public static int fragmentCount(int length, int fragmentSize) {
+        int first = fragmentSize - START_HEADER_SIZE;
+        if (length <= first)
+            return 1;
+        int rest = fragmentSize - HEADER_SIZE;
+        return 1 + (length - first + rest - 1) / rest;
+    }
+
+
+    public interface MessageListener {
+        //data只在回调执行期间有效
+        void onMessage(byte[] data, int offset, int length);
+    }
+
+    /**
+     * 发送端，按相同的协议把消息切成分片，序号在多条消息之间连续，同一个连接的同一个特征值使用一个
+     */
+    public static class Fragmenter {
+        private byte[] fragment = new byte[0];//只在fragment执行期间使用，sender返回后复用
+        private int sequence;
+
+        /**
+         * 把data[offset, offset + length)切成分片，依次交给sender
+         *
+         * @param fragmentSize 每个分片的最大字节数，一般是MTU-3
+         * @return 发出的分片数，sender拒绝时停止并返回-1，接收端会丢弃这条不完整的消息
+         */
+        public int fragment(byte[] data, int offset, int length, int fragmentSize, FragmentSender sender) {
+            if (fragmentSize <= START_HEADER_SIZE)
+                throw new IllegalArgumentException("fragment size " + fragmentSize + " is too small");
+            if (fragment.length != fragmentSize)
+                fragment = new byte[fragmentSize];
+
+            int count = 0;
+            int end = offset + length;
+            do {
+                int header = sequence;
+                int headerSize = HEADER_SIZE;
+                if (count == 0) {
+                    header |= FLAG_START;
+                    fragment[1] = (byte) (length >>> 24);
+                    fragment[2] = (byte) (length >>> 16);
+                    fragment[3] = (byte) (length >>> 8);
+                    fragment[4] = (byte) length;
+                    headerSize = START_HEADER_SIZE;
+                }
+                int payload = Math.min(fragmentSize - headerSize, end - offset);
+                if (offset + payload == end)
+                    header |= FLAG_END;
+                fragment[0] = (byte) header;
+                System.arraycopy(data, offset, fragment, headerSize, payload);
+                if (!sender.send(fragment, 0, headerSize + payload))
+                    return -1;
+                sequence = (sequence + 1) & SEQUENCE_MASK;
+                offset += payload;
+                count++;
+            } while (offset < end);
+            return count;
+        }
+    }
+
+    public interface FragmentSender {
+        //发送fragment[offset, offset + length)，返回后fragment会被复用，返回false表示发送失败
+        boolean send(byte[] fragment, int offset, int length);
+    }
+}
@@ -0,0 +1,130 @@
+package com.s10715.bluetoothhelper.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * BLE扫描的过滤条件和扫描参数
+ * 每个条件都是一个可选项，广播满足任意一个条件即通过（与系统ScanFilter列表的语义相同），没有任何条件时全部通过
+ * 除名称前缀以外的条件都可以交给系统的ScanFilter，在控制器（支持时）或协议栈中过滤，不满足的广播不会唤醒应用；
+ * 有名称前缀时系统无法过滤，所有条件都在回调中用matches*方法检查
+ * 开始扫描后不要再修改
+ */
+public class BleScanFilter {
+
+    //扫描模式，与ScanSettings中的值相同
+    public static final int SCAN_MODE_LOW_POWER = 0;
+    public static final int SCAN_MODE_BALANCED = 1;
+    public static final int SCAN_MODE_LOW_LATENCY = 2;
+
+    private final HashSet<UUID> serviceUUIDs = new HashSet<>();
+    private final HashSet<String> addresses = new HashSet<>();
+    private final ArrayList<String> namePrefixes = new ArrayList<>();
+    private int[] manufacturerIds = new int[0];//有序，用二分查找
+
+    private int scanMode = SCAN_MODE_LOW_LATENCY;
+    private long reportDelay;
+
+    //广播中包含该服务UUID
+    public BleScanFilter addServiceUUID(UUID uuid) {
+        serviceUUIDs.add(uuid);
+        return this;
+    }
+
+    //设备的mac，不区分大小写
+    public BleScanFilter addAddress(String mac) {
+        addresses.add(mac.toUpperCase());
+        return this;
+    }
+
+    //设备名称以prefix开头，区分大小写，只能在软件中过滤
+    public BleScanFilter addNamePrefix(String prefix) {
+        namePrefixes.add(prefix);
+        return this;
+    }
+
+    //广播中包含该厂商ID的厂商数据
+    public BleScanFilter addManufacturerId(int id) {
+        if (Arrays.binarySearch(manufacturerIds, id) < 0) {
+            manufacturerIds = Arrays.copyOf(manufacturerIds, manufacturerIds.length + 1);
+            manufacturerIds[manufacturerIds.length - 1] = id;
+            Arrays.sort(manufacturerIds);
+        }
+        return this;
+    }
+
+    /**
+     * @param scanMode SCAN_MODE_LOW_LATENCY（默认）、SCAN_MODE_BALANCED或SCAN_MODE_LOW_POWER
+     */
+    public BleScanFilter setScanMode(int scanMode) {
+        this.scanMode = scanMode;
+        return this;
+    }
+
+    public int getScanMode() {
+        return scanMode;
+    }
+
+    /**
+     * 批量上报的延迟，大于0时控制器缓存扫描结果，每隔reportDelay一次性交给应用，只在控制器支持批量扫描时生效
+     *
+     * @param reportDelay 单位为毫秒，默认为0，即每个结果立即上报
+     */
+    public BleScanFilter setReportDelay(long reportDelay) {
+        this.reportDelay = reportDelay;
+        return this;
+    }
+
+    public long getReportDelay() {
+        return reportDelay;
+    }
+
+    public boolean isEmpty() {
+        return serviceUUIDs.isEmpty() && addresses.isEmpty() && namePrefixes.isEmpty() && manufacturerIds.length == 0;
+    }
+
+    //是否可以完全交给系统过滤，即有条件且没有名称前缀
+    public boolean canOffload() {
+        return !isEmpty() && namePrefixes.isEmpty();
+    }
+
+    public List<UUID> getServiceUUIDs() {
+        return new ArrayList<>(serviceUUIDs);
+    }
+
+    public List<String> getAddresses() {
+        return new ArrayList<>(addresses);
+    }
+
+    public int[] getManufacturerIds() {
+        return manufacturerIds.clone();
+    }
+
+    //以下为软件过滤，调用方对一个广播依次检查各项，任意一项返回true即通过
+
+    //mac需要是大写的，与BluetoothDevice#getAddress相同
+    public boolean matchesAddress(String mac) {
+        return mac != null && addresses.contains(mac);
+    }
+
+    public boolean matchesName(String name) {
+        if (name == null)
+            return false;
+        for (int i = 0; i < namePrefixes.size(); i++) {
+            if (name.startsWith(namePrefixes.get(i)))
+                return true;
+        }
+        return false;
+    }
+
+    public boolean matchesServiceUUID(UUID uuid) {
+        return !serviceUUIDs.isEmpty() && serviceUUIDs.contains(uuid);
+    }
+
+    public boolean matchesManufacturerId(int id) {
+        return manufacturerIds.length > 0 && Arrays.binarySearch(manufacturerIds, id) >= 0;
+    }
+}
@@ -11,29 +11,54 @@ import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
 import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
+import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.ParcelUuid;
 import android.util.Log;
+import android.util.SparseArray;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
 
 public class BluetoothHelper {
+    private final static String TAG = "BluetoothHelper";
+
     //经典蓝牙连接使用的UUID，客户端必须使用相同的UUID才能连接成功
     public final static UUID DEFAULT_CLASSIC_UUID = UUID.fromString("af9465ff-2551-4c90-a2ad-f32e2452f7a5");
 
@@ -72,9 +97,86 @@ public class BluetoothHelper {
     private BluetoothSocket classicServer_Socket;//服务器端socket
     private BluetoothSocket classicClient_Socket;//客户端socket
 
-    //BLE蓝牙连接缓存
-    private volatile int bleConnectionState = BLE_DISCONNECTED;
-    BluetoothGatt bleBluetoothGatt;
+    //扫描回调的类型
+    private final static int SCAN_EVENT_START = 0;
+    private final static int SCAN_EVENT_FOUND = 1;
+    private final static int SCAN_EVENT_STOP = 2;
+    private final static int SCAN_EVENT_CANCEL = 3;
+    private final static int SCAN_EVENT_ERROR = 4;
+
+    //扫描方式
+    public final static int SCAN_MODE_SEQUENTIAL = 1;//先扫描经典蓝牙，结束后再扫描BLE
+    public final static int SCAN_MODE_CONCURRENT = 2;//经典蓝牙和BLE同时扫描，由控制器交替进行
+    public final static int DEFAULT_SCAN_UPDATE_RATE = 2;
+    public final static long DEFAULT_SCAN_LOST_TIMEOUT = 10000;
+
+    //BLE的连接方式
+    public final static int BLE_CONNECT_DIRECT = 1;//直接连接，速度快，有超时，遇到133时重试；连接断开后在后台自动重连
+    public final static int BLE_CONNECT_AUTO = 2;//从一开始就在后台等待设备出现，速度慢（后台扫描的频率），没有超时
+
+    //BLE直接连接的默认超时时间和133时的重试次数，重试间隔按次数递增，单位都是毫秒
+    public final static long DEFAULT_CONNECT_TIMEOUT = 10000;
+    public final static int DEFAULT_CONNECT_RETRIES = 2;
+    private final static long CONNECT_RETRY_DELAY = 500;
+
+    //BLE的ATT MTU，连接后请求最大值，实际值取决于对方
+    public final static int BLE_DEFAULT_MTU = 23;
+    public final static int BLE_MAX_MTU = 517;
+    private final static Object MTU_REQUEST = new Object();//MTU请求在GattQueue中的target
+    private final static Object PHY_REQUEST = new Object();//PHY请求在GattQueue中的target
+
+    //开启通知、指示用的描述符（CCCD）
+    public final static UUID CLIENT_CHARACTERISTIC_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+    //每个订阅的通知缓冲区大小（200Hz的通知可以缓冲约0.6秒），以及每批最多交给listener的通知数
+    private final static int NOTIFICATION_RING_CAPACITY = 128;
+    private final static int NOTIFICATION_MAX_BATCH = 256;
+    //readMessage时最多连续读到几次不属于任何消息的分片，超过后认为对方不支持分片协议
+    private final static int MESSAGE_READ_MAX_RESYNC = 3;
+
+    //所有BLE连接同时执行的GATT操作数，超过时各个设备轮流执行，一个设备的大量操作不会使其他设备一直等待
+    //每个连接的GattQueue本身就只有一个操作在执行，默认值与大多数控制器能同时连接的BLE设备数相同，不会限制总吞吐量；
+    //只在需要时调低（见setGattConcurrency）
+    private final static int GATT_MAX_IN_FLIGHT = 7;
+
+    //BLE连接回调的类型
+    private final static int CONNECT_EVENT_CONNECTED = 0;
+    private final static int CONNECT_EVENT_DISCONNECTED = 1;
+    private final static int CONNECT_EVENT_SERVICES = 2;
+    private final static int CONNECT_EVENT_ERROR = 3;
+    private final static String[] CONNECT_EVENT_NAMES = {"connected", "disconnected", "services", "error"};
+
+    //多客户端服务器回调的类型
+    private final static int ACCEPT_EVENT_ACCEPTED = 0;
+    private final static int ACCEPT_EVENT_DISCONNECTED = 1;
+    private final static int ACCEPT_EVENT_ERROR = 2;
+
+    //I/O线程池，只执行会结束的短任务（连接、握手、缓存读写），线程都在使用中时排队
+    private final static int IO_MAX_THREADS = 8;
+    private final static int IO_MAX_QUEUED = 32;
+    //一直运行到连接断开的循环（读取、写入、accept、文件传输）每个独占一个线程，不排队，没有空闲线程时直接失败
+    //每个经典蓝牙连接读写各占一个，即最多同时存在约IO_MAX_LOOPS / 2个连接
+    private final static int IO_MAX_LOOPS = 64;
+    private final static long IO_KEEP_ALIVE = 30;//单位为秒
+
+    //经典蓝牙接收缓冲池，每块大小与RFCOMM的默认MTU相近
+    private final static int CLASSIC_READ_BUFFER_COUNT = 32;
+    private final static int CLASSIC_READ_BUFFER_SIZE = 1024;
+
+    //经典蓝牙压缩握手的超时时间，单位为毫秒，超时后不压缩
+    private final static long COMPRESSION_HANDSHAKE_TIMEOUT = 3000;
+
+    //BLE蓝牙连接，key是设备的mac，每个连接有自己的GATT队列、状态和listener
+    private final ConcurrentHashMap<String, BleLink> bleLinks = new ConcurrentHashMap<>();
+    private volatile BleLink bleLink;//最近一次connect的连接，不带mac的BLE方法都作用于它
+    private volatile long gattTimeout = GattQueue.DEFAULT_TIMEOUT;
+    private volatile long connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private volatile int connectRetries = DEFAULT_CONNECT_RETRIES;
+    //连接参数：空闲时使用的连接优先级，是否请求2M PHY
+    private volatile int idleConnectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    private volatile boolean preferPhy2M = true;
+    //BLE设备的服务表、MTU缓存，在cacheDir/gatt中
+    private final GattProfileCache gattCache;
+    private volatile boolean gattCacheEnabled = true;
 
 
     //单例模式，获取实例前必须设置Context
@@ -85,14 +187,91 @@ public class BluetoothHelper {
     private Handler handler;
     private BroadcastReceiver scanClassicReceiver;//用于接收经典蓝牙扫描的广播接收者
     private ScanCallback scanBleCallback;//用于接收BLE蓝牙的回调
+    private Runnable scanPhaseTask;//结束经典蓝牙扫描（顺序扫描时同时开始BLE扫描），同时扫描时结束先到时间的一种
+    private Runnable scanStopTask;//结束整个扫描
+
+    //扫描统计，都在主线程中修改，时间单位为纳秒，-1表示还没有结果
+    private volatile int scanMode = SCAN_MODE_SEQUENTIAL;
+    private volatile long scanStartTime;
+    private volatile long classicFirstResultTime = -1;
+    private volatile long bleFirstResultTime = -1;
+    private volatile int classicResultCount;
+    private volatile int bleResultCount;
+    private volatile int bleFilteredCount;//被软件过滤掉的BLE扫描结果数
+    private volatile boolean scanFilterOffloaded;//过滤条件是否交给了控制器
+    private volatile BleScanFilter scanFilter;
+    //批量回调时还没有回调的新设备，只在主线程中访问
+    private final ArrayList<BluetoothInfo> pendingScanBatch = new ArrayList<>();
+    private Runnable scanFlushTask;
+    //OnScanUpdateListener的回调频率和丢失超时，改变过还没有回调的设备只在主线程中访问
+    private volatile int scanUpdateRate = DEFAULT_SCAN_UPDATE_RATE;
+    private volatile long scanLostTimeout = DEFAULT_SCAN_LOST_TIMEOUT;
+    private final ArrayList<BluetoothInfo> dirtyScanDevices = new ArrayList<>();
+    private final ArrayList<BluetoothInfo> lostScanDevices = new ArrayList<>();
+    private final Runnable scanUpdateTask = new Runnable() {
+        @Override
+        public void run() {
+            onScanUpdateTick();
+        }
+    };
 
     private volatile OnScanListener scanListener;//用户传过来的listener
     private volatile OnConnectListener connectListener;//用户传过来的listener
-    private volatile OnReadListener readListener;//用户传过来的listener
-    private volatile OnWriteListener writeListener;//用户传过来的listener
 
-    //扫描到的设备集合，key是mac，在配对时需找到已扫描到的设备进行配对
-    private HashMap<String, BluetoothInfo> scannedBluetoothInfo;
+    //阻塞的蓝牙操作都在这两个线程池中执行，短任务在ioExecutor中，一直运行的循环在loopExecutor中
+    private volatile ThreadPoolExecutor ioExecutor;
+    private volatile ThreadPoolExecutor loopExecutor;
+
+    //经典蓝牙合并写入参数，对之后建立的连接生效
+    private volatile int classicWriteMaxBatchSize = ClassicWriteQueue.DEFAULT_MAX_BATCH_SIZE;
+    private volatile long classicWriteMaxLatency = ClassicWriteQueue.DEFAULT_MAX_LATENCY;
+
+    //负载压缩参数，经典蓝牙和BLE分别设置，对之后建立的连接生效
+    private volatile boolean classicCompressionEnabled;
+    private volatile int classicCompressionMinSize = PayloadCodec.DEFAULT_MIN_SIZE;
+    private volatile UUID bleCompressionServiceUUID;//外设用于交换压缩能力的特征值，为null时BLE不压缩
+    private volatile UUID bleCompressionCharacterUUID;
+    private volatile int bleCompressionMinSize = PayloadCodec.DEFAULT_MIN_SIZE;
+
+    //经典蓝牙已建立的连接，每个连接有自己的读取、写入线程和listener
+    private volatile ClassicLink classicServerLink;
+    private volatile ClassicLink classicClientLink;
+
+    //经典蓝牙多客户端服务器，key是客户端的mac
+    private final ConcurrentHashMap<String, ClassicLink> acceptedLinks = new ConcurrentHashMap<>();
+    private volatile BluetoothServerSocket multiServerSocket;
+    private volatile OnAcceptListener acceptListener;
+
+    //扫描到的设备集合，key是mac转换成的48位整数（ScanTable#parseMac），在配对时需找到已扫描到的设备进行配对
+    //每个广播都要查找一次，不使用以字符串为key的HashMap，避免每次计算字符串哈希和比较
+    private ScanTable<BluetoothInfo> scannedBluetoothInfo;
+
+    //回调分发，没有单独设置的listener都在主线程执行回调
+    private final Executor mainExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            handler.post(command);
+        }
+    };
+    private final CallbackDispatcher mainDispatcher = new CallbackDispatcher(CallbackDispatcher.TARGET_MAIN,
+            CallbackDispatcher.DEFAULT_CAPACITY, CallbackDispatcher.OVERFLOW_COALESCE, mainExecutor);
+    private final Map<Object, CallbackDispatcher> listenerDispatchers = Collections.synchronizedMap(new WeakHashMap<Object, CallbackDispatcher>());
+
+    //所有BLE连接共用的GATT调度
+    private final GattArbiter gattArbiter = new GattArbiter(GATT_MAX_IN_FLIGHT);
+
+    //GATT操作的超时检查在主线程执行
+    private final GattQueue.Scheduler gattScheduler = new GattQueue.Scheduler() {
+        @Override
+        public void schedule(Runnable task, long delay) {
+            handler.postDelayed(task, delay);
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            handler.removeCallbacks(task);
+        }
+    };
 
     private BluetoothHelper(Activity activity) {
         this.activity = new WeakReference<>(activity);
@@ -108,7 +287,8 @@ public class BluetoothHelper {
         else
             handler = new Handler();
 
-        scannedBluetoothInfo = new HashMap<>();
+        scannedBluetoothInfo = new ScanTable<>();
+        gattCache = new GattProfileCache(new File(activity.getCacheDir(), "gatt"));
     }
 
     public static BluetoothHelper getInstance(Activity activity) {
@@ -125,6 +305,151 @@ public class BluetoothHelper {
         return instance;
     }
 
+    //正在执行的阻塞蓝牙操作数（连接、accept、读取、写入），每个已建立的经典蓝牙连接读写时各占用一个
+    public int getActiveIoTaskCount() {
+        ThreadPoolExecutor executor = ioExecutor;
+        ThreadPoolExecutor loops = loopExecutor;
+        return (executor == null ? 0 : executor.getActiveCount()) + (loops == null ? 0 : loops.getActiveCount());
+    }
+
+    //线程都在使用中、正在排队等待执行的蓝牙操作数，只有短任务会排队
+    public int getQueuedIoTaskCount() {
+        ThreadPoolExecutor executor = ioExecutor;
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+
+    //短任务的线程池，有上限，关闭后再次使用时重新创建
+    private synchronized ThreadPoolExecutor getIoExecutor() {
+        if (ioExecutor == null || ioExecutor.isShutdown()) {
+            ioExecutor = new ThreadPoolExecutor(IO_MAX_THREADS, IO_MAX_THREADS, IO_KEEP_ALIVE, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(IO_MAX_QUEUED), ioThreadFactory("BluetoothHelper-io-"));
+            //空闲的线程超时后退出，长时间运行时线程数只取决于同时存在的连接数
+            ioExecutor.allowCoreThreadTimeOut(true);
+        }
+        return ioExecutor;
+    }
+
+    //循环的线程池，SynchronousQueue不保存任务，没有空闲线程且已达到上限时拒绝，不会排在其他不会结束的循环后面
+    private synchronized ThreadPoolExecutor getLoopExecutor() {
+        if (loopExecutor == null || loopExecutor.isShutdown()) {
+            loopExecutor = new ThreadPoolExecutor(0, IO_MAX_LOOPS, IO_KEEP_ALIVE, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), ioThreadFactory("BluetoothHelper-loop-"));
+        }
+        return loopExecutor;
+    }
+
+    private static ThreadFactory ioThreadFactory(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, prefix + count.incrementAndGet());
+            }
+        };
+    }
+
+    /**
+     * 在I/O线程池中执行会结束的短任务，执行期间线程名改为name，便于排查问题
+     *
+     * @return 线程池已满或已关闭时返回false
+     */
+    private boolean executeIo(String name, Runnable task) {
+        return execute(getIoExecutor(), name, task);
+    }
+
+    /**
+     * 在独占的线程中执行一直运行到连接断开的循环，不会排队
+     *
+     * @return 已达到IO_MAX_LOOPS或线程池已关闭时返回false，调用方需要使对应的连接失败
+     */
+    private boolean executeLoop(String name, Runnable task) {
+        return execute(getLoopExecutor(), name, task);
+    }
+
+    private static boolean execute(ThreadPoolExecutor executor, final String name, final Runnable task) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Thread thread = Thread.currentThread();
+                    String poolName = thread.getName();
+                    thread.setName(name);
+                    try {
+                        task.run();
+                    } finally {
+                        thread.setName(poolName);
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    //中断所有阻塞的蓝牙操作并停止线程池，需要先disconnect关闭socket，阻塞中的read、accept才会返回
+    private synchronized void shutdownIoExecutor() {
+        if (ioExecutor != null) {
+            ioExecutor.shutdownNow();
+            ioExecutor = null;
+        }
+        if (loopExecutor != null) {
+            loopExecutor.shutdownNow();
+            loopExecutor = null;
+        }
+    }
+
+    /**
+     * 创建回调分发器，之后通过setCallbackDispatcher指定给listener使用
+     *
+     * @param target         可选值为CallbackDispatcher#TARGET_MAIN、CallbackDispatcher#TARGET_BACKGROUND、CallbackDispatcher#TARGET_INLINE
+     * @param capacity       最多等待执行的回调数
+     * @param overflowPolicy 可选值为CallbackDispatcher#OVERFLOW_BLOCK（TARGET_MAIN不能使用）、CallbackDispatcher#OVERFLOW_DROP_OLDEST、CallbackDispatcher#OVERFLOW_COALESCE
+     */
+    public CallbackDispatcher createCallbackDispatcher(int target, int capacity, int overflowPolicy) {
+        return new CallbackDispatcher(target, capacity, overflowPolicy, mainExecutor);
+    }
+
+    /**
+     * 指定listener的回调由哪个分发器执行，没有指定的listener默认在主线程执行回调
+     * 对所有类型的listener都有效（扫描、连接、读取、写入），需要在把listener传给本类之前设置
+     * 使用OVERFLOW_COALESCE时，只有扫描的onUpdated（按设备）和通知（按设备和特征值）会被合并，只保留最新的一次；
+     * 数据、发现设备、完成结果等其他回调不会被合并，队列满时按OVERFLOW_DROP_OLDEST处理
+     * OnFrameListener的帧回调始终在读取线程中执行，不受分发器影响
+     *
+     * @param dispatcher 为null时恢复默认
+     */
+    public void setCallbackDispatcher(Object listener, CallbackDispatcher dispatcher) {
+        if (listener == null)
+            return;
+        if (dispatcher == null)
+            listenerDispatchers.remove(listener);
+        else
+            listenerDispatchers.put(listener, dispatcher);
+    }
+
+    //通过listener对应的分发器执行回调，不会被合并
+    private void dispatch(Object listener, Runnable task) {
+        dispatch(listener, task, null);
+    }
+
+    //coalesceKey是回调对应的具体对象（某个设备、某个特征值），只有新回调包含旧回调全部信息时才能指定，为null时不合并
+    private void dispatch(Object listener, Runnable task, Object coalesceKey) {
+        CallbackDispatcher dispatcher = findDispatcher(listenerDispatchers, listener);
+        if (dispatcher == null)
+            dispatcher = mainDispatcher;
+        dispatcher.execute(task, coalesceKey);
+    }
+
+    //用户设置分发器时用的是自己的listener，本类内部包装过的listener要按包装前的listener查找
+    static CallbackDispatcher findDispatcher(Map<Object, CallbackDispatcher> dispatchers, Object listener) {
+        if (listener instanceof BufferReadAdapter)
+            listener = ((BufferReadAdapter) listener).listener;
+        return listener == null ? null : dispatchers.get(listener);
+    }
+
     private BluetoothAdapter getBluetoothAdapter() {
         if (bluetoothAdapter == null)
             bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
@@ -170,6 +495,7 @@ public class BluetoothHelper {
         setDiscoverable(false, 1);
         stopScan();
         disconnect();
+        shutdownIoExecutor();
         return adapter.disable();
     }
 
@@ -237,6 +563,29 @@ public class BluetoothHelper {
      * @param bleDuration     单位为秒
      */
     public void scan(OnScanListener listener, int classicDuration, final int bleDuration) {
+        scan(listener, SCAN_MODE_SEQUENTIAL, classicDuration, bleDuration);
+    }
+
+    /**
+     * 经典蓝牙和BLE蓝牙混合扫描，指定扫描方式
+     * SCAN_MODE_CONCURRENT时两种扫描同时开始，各自在对应的时间后停止，都停止后回调onStop，
+     * 只支持BLE的设备不需要等经典蓝牙扫描结束就能被发现；两种扫描共用一个射频，经典蓝牙扫描期间BLE扫描的占空比会降低
+     * 两种扫描的结果按mac合并，同一个设备只回调一次onFound
+     *
+     * @param mode SCAN_MODE_SEQUENTIAL或SCAN_MODE_CONCURRENT
+     */
+    public void scan(OnScanListener listener, final int mode, int classicDuration, final int bleDuration) {
+        scan(listener, mode, classicDuration, bleDuration, null);
+    }
+
+    /**
+     * 经典蓝牙和BLE蓝牙混合扫描，BLE扫描使用过滤条件和扫描参数
+     * 过滤条件只作用于BLE扫描；可以交给系统时（见BleScanFilter#canOffload）在控制器中过滤，不满足条件的广播不会唤醒应用，
+     * 否则在回调中用软件过滤
+     *
+     * @param bleFilter 为null时不过滤，使用系统默认的扫描参数
+     */
+    public void scan(OnScanListener listener, final int mode, int classicDuration, final int bleDuration, BleScanFilter bleFilter) {
         Activity activity = this.activity.get();
         BluetoothAdapter adapter = getBluetoothAdapter();
 
@@ -254,6 +603,16 @@ public class BluetoothHelper {
         //保存listener，因为stopScan时需调用对应回调
         scanListener = listener;
 
+        scanMode = mode;
+        scanFilter = bleFilter;
+        scanFilterOffloaded = false;
+        bleFilteredCount = 0;
+        scanStartTime = System.nanoTime();
+        classicFirstResultTime = -1;
+        bleFirstResultTime = -1;
+        classicResultCount = 0;
+        bleResultCount = 0;
+
         //使用广播接收者接收经典蓝牙扫描结果
         scanClassicReceiver = new BroadcastReceiver() {
             public void onReceive(Context context, Intent intent) {
@@ -262,7 +621,7 @@ public class BluetoothHelper {
 
                 switch (intent.getAction()) {
                     case BluetoothAdapter.ACTION_DISCOVERY_STARTED:
-                        scanListener.onStart();
+                        notifyScan(scanListener, SCAN_EVENT_START, null);
                         break;
                     case BluetoothDevice.ACTION_FOUND:
                         BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
@@ -279,19 +638,45 @@ public class BluetoothHelper {
                             for (ParcelUuid uuid : classicUUIDs)
                                 classicUUIDList.add(uuid.getUuid());
 
-                        BluetoothInfo info = new BluetoothInfo();
-                        info.setSupportType(BluetoothInfo.SUPPORT_TYPE_CLASSIC);
-                        info.setName(name);
-                        info.setMac(device.getAddress());
-                        info.setRssi(intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, (short) 0));
-                        info.setClassicUUIDList(classicUUIDList);
+                        if (classicResultCount++ == 0)
+                            classicFirstResultTime = System.nanoTime() - scanStartTime;
+
+                        long key = ScanTable.parseMac(device.getAddress());
+                        if (key < 0)
+                            break;
+                        BluetoothInfo scanned = scannedBluetoothInfo.get(key);
+                        if (scanned == null) {
+                            BluetoothInfo info = new BluetoothInfo();
+                            info.setSupportType(BluetoothInfo.SUPPORT_TYPE_CLASSIC);
+                            info.setName(name);
+                            info.setMac(device.getAddress());
+                            info.setRssi(intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, (short) 0));
+                            info.setClassicUUIDList(classicUUIDList);
+                            //存入最新结果
+                            scannedBluetoothInfo.put(key, info);
+                            notifyScan(scanListener, SCAN_EVENT_FOUND, info);
+                            break;
+                        }
 
-                        //去重
-                        if (scannedBluetoothInfo.get(info.getMac()) == null) {
-                            scanListener.onFound(info);
+                        //去重，同一个设备可能被再次扫描到，或者BLE先发现了该设备，此时更新已经回调过的对象
+                        int changes = 0;
+                        if (scanned.getSupportType() == BluetoothInfo.SUPPORT_TYPE_BLE) {
+                            scanned.setSupportType(BluetoothInfo.SUPPORT_TYPE_ALL);
+                            changes |= BluetoothInfo.CHANGE_SUPPORT_TYPE;
+                        }
+                        if (!classicUUIDList.equals(scanned.getClassicUUIDList())) {
+                            scanned.setClassicUUIDList(classicUUIDList);
+                            changes |= BluetoothInfo.CHANGE_CLASSIC_UUIDS;
                         }
-                        //往HashMap中存入最新结果
-                        scannedBluetoothInfo.put(device.getAddress(), info);
+                        if (name != null && !"".equals(name) && !name.equals(scanned.getName())) {
+                            scanned.setName(name);
+                            changes |= BluetoothInfo.CHANGE_NAME;
+                        }
+                        int rssi = scanned.getRssi();
+                        scanned.setRssi(intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, (short) 0));
+                        if (rssi != scanned.getRssi())
+                            changes |= BluetoothInfo.CHANGE_RSSI;
+                        onScanDeviceChanged(scanned, changes);
                         break;
                     case BluetoothAdapter.ACTION_DISCOVERY_FINISHED:
                         //因为后面还有BLE蓝牙扫描，所以这里还没有stop
@@ -310,50 +695,55 @@ public class BluetoothHelper {
             @Override
             public void onScanResult(int callbackType, ScanResult result) {
                 super.onScanResult(callbackType, result);
-                if (scanListener != null) {// && callbackType == ScanSettings.CALLBACK_TYPE_ALL_MATCHES) {
-                    BluetoothDevice device = result.getDevice();
-
-                    String name;
-                    if (device.getName() == null || "".equals(device.getName()) && result.getScanRecord() != null)
-                        name = result.getScanRecord().getDeviceName();
-                    else
-                        name = device.getName();
-
-                    BluetoothInfo info = scannedBluetoothInfo.get(device.getAddress());
-                    //如果已经扫描过该设备，则更新数据
-                    if (info != null) {
-                        info = scannedBluetoothInfo.get(device.getAddress());
-                        if (info.getSupportType() == BluetoothInfo.SUPPORT_TYPE_CLASSIC) {
-                            info.setSupportType(BluetoothInfo.SUPPORT_TYPE_ALL);
-                        }
-                    } else {
-                        info = new BluetoothInfo();
-                        info.setSupportType(BluetoothInfo.SUPPORT_TYPE_BLE);
-                    }
-
-                    info.setName(name);
-                    info.setMac(device.getAddress());
-                    info.setRssi(result.getRssi());
-
-
-                    //如果没有扫描过该设备，调用用户回调
-                    if (scannedBluetoothInfo.get(info.getMac()) == null) {
-                        scanListener.onFound(info);
-                    }
-                    scannedBluetoothInfo.put(info.getMac(), info);
+                if (scanListener == null)
+                    return;
+                BluetoothInfo info = onBleScanResult(result);
+                if (info == null)
+                    return;
+                //批量回调但控制器不支持批量上报时，在这里攒够reportDelay再回调
+                BleScanFilter filter = scanFilter;
+                if (scanListener instanceof OnBatchScanListener && filter != null && filter.getReportDelay() > 0) {
+                    pendingScanBatch.add(info);
+                    if (pendingScanBatch.size() == 1)
+                        handler.postDelayed(scanFlushTask, filter.getReportDelay());
+                } else {
+                    notifyScan(scanListener, SCAN_EVENT_FOUND, info);
                 }
             }
 
             @Override
             public void onBatchScanResults(List<ScanResult> results) {
                 super.onBatchScanResults(results);
+                if (scanListener == null)
+                    return;
+                //设置了reportDelay时控制器批量上报，一批结果只遍历一次，只回调新发现的设备
+                ArrayList<BluetoothInfo> found = new ArrayList<>();
+                for (int i = 0; i < results.size(); i++) {
+                    BluetoothInfo info = onBleScanResult(results.get(i));
+                    if (info != null)
+                        found.add(info);
+                }
+                deliverFound(found);
             }
 
             @Override
             public void onScanFailed(int errorCode) {
                 super.onScanFailed(errorCode);
                 if (scanListener != null)
-                    scanListener.onError();
+                    notifyScan(scanListener, SCAN_EVENT_ERROR, null);
+            }
+        };
+
+        pendingScanBatch.clear();
+        dirtyScanDevices.clear();
+        if (listener instanceof OnScanUpdateListener)
+            handler.postDelayed(scanUpdateTask, 1000 / scanUpdateRate);
+        scanFlushTask = new Runnable() {
+            @Override
+            public void run() {
+                ArrayList<BluetoothInfo> found = new ArrayList<>(pendingScanBatch);
+                pendingScanBatch.clear();
+                deliverFound(found);
             }
         };
 
@@ -365,8 +755,43 @@ public class BluetoothHelper {
         activity.registerReceiver(scanClassicReceiver, filter);
         adapter.startDiscovery();
 
+        //扫描结束，回调onStop并释放资源
+        scanStopTask = new Runnable() {
+            @Override
+            public void run() {
+                if (scanListener != null) {
+                    //还没有回调的一批先回调，控制器中还没有上报的结果会丢失
+                    if (scanFlushTask != null && !pendingScanBatch.isEmpty()) {
+                        handler.removeCallbacks(scanFlushTask);
+                        scanFlushTask.run();
+                    }
+                    notifyScan(scanListener, SCAN_EVENT_STOP, null);
+                }
+                releaseScanResource(true, true, true);
+            }
+        };
+
+        if (mode == SCAN_MODE_CONCURRENT) {
+            //同时开始BLE扫描，不等待经典蓝牙扫描结束
+            startBleScan(adapter);
+            //先到时间的一种扫描在scanPhaseTask中单独停止，另一种在scanStopTask中停止并回调onStop
+            final boolean classicFirst = classicDuration <= bleDuration;
+            scanPhaseTask = new Runnable() {
+                @Override
+                public void run() {
+                    if (classicFirst)
+                        releaseScanResource(true, true, false);
+                    else
+                        releaseScanResource(false, false, true);
+                }
+            };
+            handler.postDelayed(scanPhaseTask, Math.min(classicDuration, bleDuration) * 1000);
+            handler.postDelayed(scanStopTask, Math.max(classicDuration, bleDuration) * 1000);
+            return;
+        }
+
         //在classicDuration后停止经典蓝牙扫描，并开启BLE蓝牙扫描
-        handler.postDelayed(new Runnable() {
+        scanPhaseTask = new Runnable() {
             @Override
             public void run() {
                 //停止扫描并释放资源
@@ -374,24 +799,254 @@ public class BluetoothHelper {
 
 
                 BluetoothAdapter adapter = getBluetoothAdapter();
-                if (adapter != null) {
-                    adapter.getBluetoothLeScanner().startScan(scanBleCallback);
+                if (adapter != null && scanBleCallback != null) {
+                    startBleScan(adapter);
 
                     //在bleDurationn后停止BLE蓝牙扫描，并释放资源
-                    handler.postDelayed(new Runnable() {
-                        @Override
-                        public void run() {
-                            if (scanListener != null) {
-                                scanListener.onStop();
-                            }
-                            releaseScanResource(true, true, true);
-                        }
-                    }, bleDuration * 1000);
+                    handler.postDelayed(scanStopTask, bleDuration * 1000);
                 }
 
             }
-        }, classicDuration * 1000);
+        };
+        handler.postDelayed(scanPhaseTask, classicDuration * 1000);
+
+    }
+
+    /**
+     * 最近一次扫描的统计，主要是每种扫描从开始到第一个结果的时间
+     */
+    public ScanStats getScanStats() {
+        return new ScanStats(scanMode, classicFirstResultTime, bleFirstResultTime, classicResultCount, bleResultCount,
+                bleFilteredCount, scanFilterOffloaded);
+    }
+
+    //按scanFilter开始BLE扫描，能交给系统的过滤条件都转换为ScanFilter
+    private void startBleScan(BluetoothAdapter adapter) {
+        BluetoothLeScanner scanner = adapter.getBluetoothLeScanner();
+        if (scanner == null)
+            return;
+        BleScanFilter filter = scanFilter;
+        if (filter == null) {
+            scanner.startScan(scanBleCallback);
+            return;
+        }
+
+        List<ScanFilter> filters = new ArrayList<>();
+        if (filter.canOffload()) {
+            //每个条件一个ScanFilter，系统对列表取或
+            for (UUID uuid : filter.getServiceUUIDs())
+                filters.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(uuid)).build());
+            for (String mac : filter.getAddresses())
+                filters.add(new ScanFilter.Builder().setDeviceAddress(mac).build());
+            for (int id : filter.getManufacturerIds())
+                filters.add(new ScanFilter.Builder().setManufacturerData(id, new byte[0]).build());
+            scanFilterOffloaded = adapter.isOffloadedFilteringSupported();
+        }
+        ScanSettings.Builder settings = new ScanSettings.Builder().setScanMode(filter.getScanMode());
+        if (filter.getReportDelay() > 0 && adapter.isOffloadedScanBatchingSupported())
+            settings.setReportDelay(filter.getReportDelay());
+        scanner.startScan(filters, settings.build(), scanBleCallback);
+    }
+
+    /**
+     * 处理一个BLE扫描结果，在scannedBluetoothInfo中去重，只查找一次
+     *
+     * @return 第一次扫描到的设备；已经扫描过的设备在原对象上更新，返回null
+     */
+    private BluetoothInfo onBleScanResult(ScanResult result) {
+        if (!acceptScanResult(scanFilter, result)) {
+            bleFilteredCount++;
+            return null;
+        }
+        if (bleResultCount++ == 0)
+            bleFirstResultTime = System.nanoTime() - scanStartTime;
+
+        BluetoothDevice device = result.getDevice();
+        String name = device.getName();
+        if ((name == null || "".equals(name)) && result.getScanRecord() != null)
+            name = result.getScanRecord().getDeviceName();
+
+        String mac = device.getAddress();
+        long key = ScanTable.parseMac(mac);
+        if (key < 0)
+            return null;
+        BluetoothInfo info = scannedBluetoothInfo.get(key);
+        if (info == null) {
+            info = new BluetoothInfo();
+            info.setSupportType(BluetoothInfo.SUPPORT_TYPE_BLE);
+            info.setMac(mac);
+            info.setName(name);
+            info.setRssi(result.getRssi());
+            info.lastBleSeen = System.nanoTime();
+            scannedBluetoothInfo.put(key, info);
+            return info;
+        }
+
+        //如果已经扫描过该设备，则更新数据，记录改变了哪些内容
+        int changes = 0;
+        if (info.getSupportType() == BluetoothInfo.SUPPORT_TYPE_CLASSIC) {
+            info.setSupportType(BluetoothInfo.SUPPORT_TYPE_ALL);
+            changes |= BluetoothInfo.CHANGE_SUPPORT_TYPE;
+        }
+        if (name != null && !"".equals(name) && !name.equals(info.getName())) {
+            info.setName(name);
+            changes |= BluetoothInfo.CHANGE_NAME;
+        }
+        int rssi = info.getRssi();
+        info.setRssi(result.getRssi());
+        if (rssi != info.getRssi())
+            changes |= BluetoothInfo.CHANGE_RSSI;
+        info.lastBleSeen = System.nanoTime();
+        onScanDeviceChanged(info, changes);
+        return null;
+    }
+
+    //已经回调过onFound的设备发生改变，记录下来由scanUpdateTask按频率回调onUpdated
+    private void onScanDeviceChanged(BluetoothInfo info, int changes) {
+        if (changes == 0 || !info.reported || !(scanListener instanceof OnScanUpdateListener))
+            return;
+        if (info.pendingChanges == 0)
+            dirtyScanDevices.add(info);
+        info.pendingChanges |= changes;
+    }
+
+    /**
+     * 每个周期回调一次所有改变过的设备，同一个设备每秒最多回调scanUpdateRate次；
+     * 同时检查BLE设备是否已经超过scanLostTimeout没有被扫描到
+     */
+    private void onScanUpdateTick() {
+        final OnScanListener listener = scanListener;
+        if (!(listener instanceof OnScanUpdateListener))
+            return;
+        final OnScanUpdateListener updateListener = (OnScanUpdateListener) listener;
+
+        for (int i = 0; i < dirtyScanDevices.size(); i++) {
+            final BluetoothInfo info = dirtyScanDevices.get(i);
+            int changes = info.pendingChanges;
+            info.pendingChanges = 0;
+            if (changes == 0)
+                continue;//已经丢失
+            //改变先累积在设备上，执行时一次取出，分发器合并掉的回调的改变不会丢失
+            synchronized (info) {
+                info.dispatchedChanges |= changes;
+            }
+            dispatch(listener, new Runnable() {
+                @Override
+                public void run() {
+                    int changes;
+                    synchronized (info) {
+                        changes = info.dispatchedChanges;
+                        info.dispatchedChanges = 0;
+                    }
+                    //已经被之前的回调取走，或者设备已经丢失
+                    if (changes != 0)
+                        updateListener.onUpdated(info, changes);
+                }
+            }, info);
+        }
+        dirtyScanDevices.clear();
+
+        long lostTimeout = scanLostTimeout;
+        if (scanBleCallback != null && lostTimeout > 0) {
+            long deadline = System.nanoTime() - lostTimeout * 1000000;
+            //遍历时不能修改ScanTable，先找出丢失的设备再删除
+            for (int slot = 0; slot < scannedBluetoothInfo.capacity(); slot++) {
+                BluetoothInfo info = scannedBluetoothInfo.valueAt(slot);
+                //只有BLE的广播会持续出现，经典蓝牙扫描到的设备不会丢失
+                if (info != null && info.lastBleSeen != 0 && info.lastBleSeen <= deadline)
+                    lostScanDevices.add(info);
+            }
+            for (int i = 0; i < lostScanDevices.size(); i++) {
+                final BluetoothInfo info = lostScanDevices.get(i);
+                scannedBluetoothInfo.remove(ScanTable.parseMac(info.getMac()));
+                info.pendingChanges = 0;
+                synchronized (info) {
+                    info.dispatchedChanges = 0;
+                }
+                if (!info.reported) {
+                    pendingScanBatch.remove(info);
+                    continue;
+                }
+                dispatch(listener, new Runnable() {
+                    @Override
+                    public void run() {
+                        updateListener.onLost(info);
+                    }
+                }, null);
+            }
+            lostScanDevices.clear();
+        }
+        handler.postDelayed(scanUpdateTask, 1000 / scanUpdateRate);
+    }
+
+    /**
+     * 设置扫描时onUpdated的最大频率，对之后的扫描生效，只对OnScanUpdateListener有效
+     *
+     * @param maxPerSecond 同一个设备每秒最多回调的次数，默认为2
+     */
+    public void setScanUpdateRate(int maxPerSecond) {
+        if (maxPerSecond <= 0)
+            throw new IllegalArgumentException("maxPerSecond must be positive");
+        this.scanUpdateRate = maxPerSecond;
+    }
+
+    /**
+     * BLE设备超过该时间没有被扫描到时回调onLost，并从扫描结果中移除，再次扫描到时重新回调onFound
+     *
+     * @param timeout 单位为毫秒，默认为10000，为0时不检查
+     */
+    public void setScanLostTimeout(long timeout) {
+        this.scanLostTimeout = timeout;
+    }
+
+    //回调新发现的设备，OnBatchScanListener一批只回调一次onFoundBatch，其他listener逐个回调onFound
+    private void deliverFound(final List<BluetoothInfo> found) {
+        final OnScanListener listener = scanListener;
+        if (listener == null || found.isEmpty())
+            return;
+        for (int i = 0; i < found.size(); i++)
+            found.get(i).reported = true;
+        if (listener instanceof OnBatchScanListener) {
+            //不能合并，否则会丢失设备
+            dispatch(listener, new Runnable() {
+                @Override
+                public void run() {
+                    ((OnBatchScanListener) listener).onFoundBatch(found);
+                }
+            }, null);
+        } else {
+            for (BluetoothInfo info : found)
+                notifyScan(listener, SCAN_EVENT_FOUND, info);
+        }
+    }
 
+    //软件过滤，条件已经交给系统时直接通过
+    private static boolean acceptScanResult(BleScanFilter filter, ScanResult result) {
+        if (filter == null || filter.isEmpty() || filter.canOffload())
+            return true;
+        BluetoothDevice device = result.getDevice();
+        if (filter.matchesAddress(device.getAddress()))
+            return true;
+        ScanRecord record = result.getScanRecord();
+        if (record == null)
+            return filter.matchesName(device.getName());
+        if (filter.matchesName(record.getDeviceName()))
+            return true;
+        List<ParcelUuid> uuids = record.getServiceUuids();
+        if (uuids != null) {
+            for (int i = 0; i < uuids.size(); i++) {
+                if (filter.matchesServiceUUID(uuids.get(i).getUuid()))
+                    return true;
+            }
+        }
+        SparseArray<byte[]> manufacturerData = record.getManufacturerSpecificData();
+        if (manufacturerData != null) {
+            for (int i = 0; i < manufacturerData.size(); i++) {
+                if (filter.matchesManufacturerId(manufacturerData.keyAt(i)))
+                    return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -401,12 +1056,42 @@ public class BluetoothHelper {
      */
     public void stopScan() {
         if (scanListener != null) {
-            scanListener.onCancel();
+            notifyScan(scanListener, SCAN_EVENT_CANCEL, null);
         }
         //停止扫描并释放资源
         releaseScanResource(true, true, true);
     }
 
+    //通过listener对应的分发器执行扫描回调
+    private void notifyScan(final OnScanListener listener, final int event, final BluetoothInfo info) {
+        if (info != null)
+            info.reported = true;
+        dispatch(listener, new Runnable() {
+            @Override
+            public void run() {
+                switch (event) {
+                    case SCAN_EVENT_START:
+                        listener.onStart();
+                        break;
+                    case SCAN_EVENT_FOUND:
+                        listener.onFound(info);
+                        break;
+                    case SCAN_EVENT_STOP:
+                        listener.onStop();
+                        break;
+                    case SCAN_EVENT_CANCEL:
+                        listener.onCancel();
+                        break;
+                    case SCAN_EVENT_ERROR:
+                        listener.onError();
+                        break;
+                    default:
+                        break;
+                }
+            }
+        });
+    }
+
     private void releaseScanResource(boolean cancelClassicDiscovery, boolean unregisterClassicReceiver, boolean cancelBleDiscovery) {
         Activity activity = this.activity.get();
         BluetoothAdapter adapter = getBluetoothAdapter();
@@ -432,8 +1117,23 @@ public class BluetoothHelper {
             }
         }
         //如果经典蓝牙和BLE蓝牙都取消了，就没有需要用到用户回调的地方了，清空用户回调
-        if (cancelClassicDiscovery && unregisterClassicReceiver && cancelBleDiscovery && scanListener != null) {
-            handler.removeCallbacksAndMessages(null);
+        //只移除扫描的定时任务，handler中还有GATT超时、连接超时等任务
+        if (cancelClassicDiscovery && unregisterClassicReceiver && cancelBleDiscovery) {
+            if (scanPhaseTask != null) {
+                handler.removeCallbacks(scanPhaseTask);
+                scanPhaseTask = null;
+            }
+            if (scanStopTask != null) {
+                handler.removeCallbacks(scanStopTask);
+                scanStopTask = null;
+            }
+            if (scanFlushTask != null) {
+                handler.removeCallbacks(scanFlushTask);
+                scanFlushTask = null;
+            }
+            pendingScanBatch.clear();
+            handler.removeCallbacks(scanUpdateTask);
+            dirtyScanDevices.clear();
             scanListener = null;
         }
     }
@@ -453,7 +1153,7 @@ public class BluetoothHelper {
         stopScan();
 
         //如果之前正在连接，先停止
-        if (classicServerConnectionState != SERVER_DISCONNECTED || classicClientConnectionState != CLIENT_DISCONNECTED || bleConnectionState != BLE_DISCONNECTED) {
+        if (classicServerConnectionState != SERVER_DISCONNECTED || classicClientConnectionState != CLIENT_DISCONNECTED || !bleLinks.isEmpty()) {
             disconnect();
         }
 
@@ -461,9 +1161,9 @@ public class BluetoothHelper {
 
         this.connectListener = listener;
 
-        //连接经典蓝牙，阻塞方法，必须开线程
+        //连接经典蓝牙，阻塞方法，在I/O线程池中执行
         //服务器端
-        Thread serverThread = new Thread(new Runnable() {
+        Runnable serverTask = new Runnable() {
 
             @Override
             public void run() {
@@ -474,10 +1174,11 @@ public class BluetoothHelper {
                         classicServer_Socket = classicServer_ServerSocket.accept();
                     }
                     classicServer_ServerSocket = null;
+                    classicServerLink = openClassicLink(classicServer_Socket, null);
                     classicServerConnectionState = SERVER_CONNECTED;
                     //在主线执行回调
                     if (connectListener != null) {
-                        handler.post(new Runnable() {
+                        dispatch(connectListener, new Runnable() {
                             @Override
                             public void run() {
                                 connectListener.onConnected();
@@ -491,7 +1192,7 @@ public class BluetoothHelper {
                     classicServerConnectionState = SERVER_DISCONNECTED;
                     //在主线执行回调
                     if (connectListener != null) {
-                        handler.post(new Runnable() {
+                        dispatch(connectListener, new Runnable() {
                             @Override
                             public void run() {
                                 connectListener.onError();
@@ -507,9 +1208,9 @@ public class BluetoothHelper {
                     }
                 }
             }
-        });
+        };
         //客户端
-        Thread clientThread = new Thread(new Runnable() {
+        Runnable clientTask = new Runnable() {
 
             @Override
             public void run() {
@@ -519,10 +1220,11 @@ public class BluetoothHelper {
                     classicClientConnectionState = CLIENT_CONNECTING;
                     classicClient_Socket = device.createRfcommSocketToServiceRecord(classicUUID);
                     classicClient_Socket.connect();
+                    classicClientLink = openClassicLink(classicClient_Socket, null);
                     classicClientConnectionState = CLIENT_CONNECTED;
                     //在主线执行回调
                     if (connectListener != null) {
-                        handler.post(new Runnable() {
+                        dispatch(connectListener, new Runnable() {
                             @Override
                             public void run() {
                                 connectListener.onConnected();
@@ -534,7 +1236,7 @@ public class BluetoothHelper {
                     classicClientConnectionState = CLIENT_DISCONNECTED;
                     //在主线执行回调
                     if (connectListener != null) {
-                        handler.post(new Runnable() {
+                        dispatch(connectListener, new Runnable() {
                             @Override
                             public void run() {
                                 connectListener.onError();
@@ -543,27 +1245,51 @@ public class BluetoothHelper {
                     }
                 }
             }
-        });
+        };
+        boolean started = true;
         switch (connectType) {
             case CLASSIC_CONNECT_AS_CLIENT:
-                clientThread.start();
+                started = executeIo("BluetoothHelper-client", clientTask);
                 break;
             case CLASSIC_CONNECT_AS_SERVER:
-                serverThread.start();
+                started = executeLoop("BluetoothHelper-server", serverTask);
                 break;
             case CLASSIC_CONNECT_AS_SERVER_CLIENT:
-                clientThread.start();
-                serverThread.start();
+                started = executeIo("BluetoothHelper-client", clientTask) & executeLoop("BluetoothHelper-server", serverTask);
                 break;
             default:
                 break;
         }
+        //线程池已满，无法开始连接
+        if (!started && connectListener != null) {
+            dispatch(connectListener, new Runnable() {
+                @Override
+                public void run() {
+                    connectListener.onError();
+                }
+            });
+        }
 
     }
 
 
-    //BLE蓝牙连接
+    /**
+     * BLE蓝牙连接，可以同时连接多个设备，每个设备有自己的GATT队列、状态和listener
+     * 同一个设备重复连接时会先断开之前的连接；之前的经典蓝牙连接会被断开，其他设备的BLE连接不受影响
+     * 不带mac的BLE方法作用于最近一次连接的设备，其他设备通过getCharacteristic(String, UUID, UUID)获取句柄后读写
+     * 使用直接连接（BLE_CONNECT_DIRECT），超时（见setConnectTimeout）或重试后仍然失败时回调onError
+     */
     public void connect(String mac, OnConnectListener listener) {
+        connect(mac, BLE_CONNECT_DIRECT, listener);
+    }
+
+    /**
+     * BLE蓝牙连接，指定连接方式
+     * 两种方式在已经建立的连接断开后都会回调onDisconnect，然后在后台自动重连，重连成功后再次回调onConnected
+     *
+     * @param strategy BLE_CONNECT_DIRECT用于用户发起的连接；BLE_CONNECT_AUTO用于不在范围内、等它出现再连接的设备
+     */
+    public void connect(String mac, int strategy, OnConnectListener listener) {
         final BluetoothAdapter adapter = getBluetoothAdapter();
         Activity activity = this.activity.get();
         if (adapter == null || activity == null)
@@ -572,137 +1298,93 @@ public class BluetoothHelper {
         //连接需要消耗大量资源，应该在连接前停止扫描，否则会显著地降低连接速率，且很大程度上会连接失败
         stopScan();
 
-        //如果之前正在连接，先停止
-        if (classicServerConnectionState != SERVER_DISCONNECTED || classicClientConnectionState != CLIENT_DISCONNECTED || bleConnectionState != BLE_DISCONNECTED) {
-            disconnect();
+        //如果之前有经典蓝牙连接，先停止
+        if (classicServerConnectionState != SERVER_DISCONNECTED || classicClientConnectionState != CLIENT_DISCONNECTED) {
+            disconnectClassic();
         }
+        BleLink old = bleLinks.remove(mac);
+        if (old != null)
+            old.close();
 
         final BluetoothDevice device = adapter.getRemoteDevice(mac);
 
-        this.connectListener = listener;
+        BleLink link = new BleLink(device, strategy, listener);
+        bleLinks.put(mac, link);
+        bleLink = link;
+        if (gattCacheEnabled)
+            link.loadProfile();
+        link.start();
+    }
 
-        bleConnectionState = BLE_CONNECTING;
-        bleBluetoothGatt = device.connectGatt(activity, true, new BluetoothGattCallback() {
-            @Override
-            public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-                switch (status) {
-                    case BluetoothGatt.GATT_SUCCESS:
-                        //此时newStatus才有效
-                        if (newState == BluetoothProfile.STATE_CONNECTED) {
-                            bleConnectionState = BLE_CONNECTED;
-                            //在主线程执行回调
-                            if (connectListener != null) {
-                                handler.post(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        connectListener.onConnected();
-                                    }
-                                });
-                            }
-                            //连接成功不代表可以通信，只有当onServicesDiscovered被回调时才可以开始通信
-                            gatt.discoverServices();
-                        } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                            bleConnectionState = BLE_DISCONNECTED;
-                            //在主线程执行回调
-                            if (connectListener != null) {
-                                handler.post(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        connectListener.onDisconnect();
-                                    }
-                                });
-                            }
-                        }
-                        break;
-                    case 133:
-                        //超过连接数限制
-                        bleConnectionState = BLE_DISCONNECTED;
-                        //在主线程执行回调
-                        if (connectListener != null) {
-                            handler.post(new Runnable() {
-                                @Override
-                                public void run() {
-                                    connectListener.onError();
-                                }
-                            });
-                        }
-                    default:
-                        gatt.close();
-                        break;
-                }
-            }
+    /**
+     * 是否使用GATT缓存，默认开启，对之后的连接生效
+     * 开启时连接过的设备在连接建立后立即用缓存的服务表回调一次onFoundBleUUIDs，并提前协商MTU，
+     * 发现服务后在后台与缓存比较，不一致时删除缓存，然后照常用实际的服务表再回调一次onFoundBleUUIDs
+     * 缓存的服务表只能用来查看UUID，特征值句柄在发现服务后（isServicesDiscovered返回true）才能获取
+     */
+    public void setGattCacheEnabled(boolean enabled) {
+        this.gattCacheEnabled = enabled;
+    }
 
+    //删除所有设备的GATT缓存
+    public void clearGattCache() {
+        executeIo("BluetoothHelper-GattCache", new Runnable() {
             @Override
-            public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-                final List<BluetoothGattService> serviceList = gatt.getServices();
-                if (connectListener != null && serviceList != null && serviceList.size() > 0) {
-                    //在主线程执行回调
-                    handler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            connectListener.onFoundBleUUIDs(serviceList);
-                        }
-                    });
-                }
+            public void run() {
+                gattCache.clear();
             }
+        });
+    }
 
-            @Override
-            public void onCharacteristicRead(BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, int status) {
-                if (status == BluetoothGatt.GATT_SUCCESS) {
-                    if (readListener != null) {
-                        //在主线程执行回调
-                        handler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                readListener.onReceived(characteristic.getValue());
-                            }
-                        });
-                    }
-                } else {
-                    //在主线程执行回调
-                    handler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            readListener.onError();
-                        }
-                    });
-                }
-            }
+    //GATT缓存，用于查看命中率
+    public GattProfileCache getGattCache() {
+        return gattCache;
+    }
 
-            @Override
-            public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-                if (status == BluetoothGatt.GATT_SUCCESS) {
-                    if (writeListener != null) {
-                        //在主线程执行回调
-                        handler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                writeListener.onSuccess();
-                            }
-                        });
-                    }
-                } else {
-                    if (writeListener != null) {
-                        //在主线程执行回调
-                        handler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                writeListener.onError();
-                            }
-                        });
-                    }
-                }
-            }
+    /**
+     * 设备的GATT信息：连接前读取的缓存，发现服务、协商MTU后更新为当前的值
+     *
+     * @return 没有连接该设备或没有缓存时返回null
+     */
+    public GattProfileCache.Profile getGattProfile(String mac) {
+        BleLink link = mac == null ? null : bleLinks.get(mac);
+        return link == null ? null : link.profile;
+    }
 
-            @Override
-            public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-                super.onCharacteristicChanged(gatt, characteristic);
-            }
+    //设备是否已经发现服务，之后才能通过getCharacteristic获取句柄
+    public boolean isServicesDiscovered(String mac) {
+        BleLink link = mac == null ? null : bleLinks.get(mac);
+        GattIndex index = link == null ? null : link.index;
+        return index != null && index.valid;
+    }
 
+    /**
+     * 设置BLE直接连接的超时时间，对之后的连接生效
+     *
+     * @param timeout 单位为毫秒
+     */
+    public void setConnectTimeout(long timeout) {
+        this.connectTimeout = timeout;
+    }
 
-        });
+    //设置BLE连接遇到133（GATT_ERROR）时的重试次数，对之后的连接生效
+    public void setConnectRetries(int retries) {
+        this.connectRetries = retries;
+    }
 
+    /**
+     * 最近一次连接的设备的连接耗时，用于调整连接方式和超时时间
+     *
+     * @return 没有BLE连接时返回null
+     */
+    public ConnectStats getConnectStats() {
+        BleLink link = bleLink;
+        return link == null ? null : link.getConnectStats();
+    }
 
+    public ConnectStats getConnectStats(String mac) {
+        BleLink link = mac == null ? null : bleLinks.get(mac);
+        return link == null ? null : link.getConnectStats();
     }
 
     /**
@@ -710,21 +1392,81 @@ public class BluetoothHelper {
      * 如果有一个已连接，一个未连接，都认为已连接
      */
     public int getConnectionState() {
-        if (classicServerConnectionState == SERVER_CONNECTING || classicClientConnectionState == CLIENT_CONNECTING || bleConnectionState == BLE_DISCONNECTING)
+        if (classicServerConnectionState == SERVER_CONNECTING || classicClientConnectionState == CLIENT_CONNECTING || hasBleLink(BLE_CONNECTING))
             return CONNECTING;
-        else if (classicServerConnectionState == SERVER_CONNECTED || classicClientConnectionState == CLIENT_CONNECTED || bleConnectionState == BLE_CONNECTED)
+        else if (classicServerConnectionState == SERVER_CONNECTED || classicClientConnectionState == CLIENT_CONNECTED || hasBleLink(BLE_CONNECTED))
             return CONNECTED;
-        else if (classicServerConnectionState == SERVER_DISCONNECTING || classicClientConnectionState == CLIENT_DISCONNECTING || bleConnectionState == BLE_DISCONNECTING)
+        else if (classicServerConnectionState == SERVER_DISCONNECTING || classicClientConnectionState == CLIENT_DISCONNECTING || hasBleLink(BLE_DISCONNECTING))
             return DISCONNECTING;
         else
             return DISCONNECTED;
     }
 
+    //指定设备的连接状态，BLE连接或多客户端服务器中接入的经典蓝牙连接
+    public int getConnectionState(String mac) {
+        BleLink link = mac == null ? null : bleLinks.get(mac);
+        if (link != null) {
+            switch (link.state) {
+                case BLE_CONNECTING:
+                    return CONNECTING;
+                case BLE_CONNECTED:
+                    return CONNECTED;
+                case BLE_DISCONNECTING:
+                    return DISCONNECTING;
+                default:
+                    return DISCONNECTED;
+            }
+        }
+        return mac != null && acceptedLinks.containsKey(mac) ? CONNECTED : DISCONNECTED;
+    }
+
+    //已建立或正在建立的BLE连接的设备
+    public List<String> getBleDevices() {
+        return new ArrayList<>(bleLinks.keySet());
+    }
+
+    private boolean hasBleLink(int state) {
+        for (BleLink link : bleLinks.values()) {
+            if (link.state == state)
+                return true;
+        }
+        return false;
+    }
+
     /**
      * 断开连接，包括经典蓝牙和BLE蓝牙
      * 可以重复调用，但对应的回调只会被调用一次
      */
     public void disconnect() {
+        disconnectClassic();
+        //断开所有BLE蓝牙连接，还没有完成的GATT操作都回调onError
+        for (BleLink link : bleLinks.values())
+            link.close();
+        bleLinks.clear();
+        bleLink = null;
+
+        if (connectListener != null) {
+            //connectListener.onDisconnect();
+            connectListener = null;
+        }
+    }
+
+    //断开经典蓝牙的服务器端、客户端和多客户端服务器
+    private void disconnectClassic() {
+        //停止经典蓝牙的读取、写入线程，还没有写入的数据会回调onError
+        if (classicServerLink != null) {
+            classicServerLink.close();
+            classicServerLink = null;
+        }
+        if (classicClientLink != null) {
+            classicClientLink.close();
+            classicClientLink = null;
+        }
+        //关闭多客户端服务器和所有已接入的连接
+        stopListening();
+        for (ClassicLink link : acceptedLinks.values())
+            link.close();
+        acceptedLinks.clear();
         //关闭经典蓝牙的服务器端
         if (classicServerConnectionState != SERVER_DISCONNECTED) {
             classicServerConnectionState = SERVER_DISCONNECTING;
@@ -760,279 +1502,2644 @@ public class BluetoothHelper {
             }
             classicClientConnectionState = CLIENT_DISCONNECTED;
         }
-        //断开BLE蓝牙
-        if (bleConnectionState != BLE_DISCONNECTED) {
-            bleConnectionState = BLE_DISCONNECTING;
-            if (bleBluetoothGatt != null) {
-                bleBluetoothGatt.disconnect();
-                bleBluetoothGatt.close();
-                bleBluetoothGatt = null;
-            }
-            bleConnectionState = BLE_DISCONNECTED;
-        }
-
-        if (connectListener != null) {
-            //connectListener.onDisconnect();
-            connectListener = null;
-        }
-        if (readListener != null) {
-            readListener = null;
-        }
-        if (writeListener != null) {
-            writeListener = null;
-        }
     }
 
     /**
      * 经典蓝牙读取
      * 如果没有使用本类建立连接，将读不到任何东西
      * 只需设置一次，后续如果有新数据都会调用OnReadListener.onReceived(byte[])
+     * 每块数据都会复制一份交给listener，高速传输时建议使用read(OnBufferReadListener)
      */
     public void read(OnReadListener listener) {
-        if (classicServer_Socket != null) {
-            this.readListener = listener;
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        InputStream inputStream = classicServer_Socket.getInputStream();
-                        byte[] buffer = new byte[1024];
-                        int bytes = 0;
-                        while ((bytes = inputStream.read(buffer)) != -1) {
-                            //经测试，read方法一直不会停止（除非关闭连接时抛出异常），没有读到数据时不应该调用用户回调
-                            if (bytes == 0) {
-                                continue;
-                            }
-                            //在主线程执行回调
-                            if (readListener != null) {
-                                final byte[] finalBuffer = buffer;
-                                final int finalBytes = bytes;
-                                handler.post(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        readListener.onReceived(Arrays.copyOf(finalBuffer, finalBytes));
-                                    }
-                                });
-                            }
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        //在主线程执行回调
-                        if (readListener != null) {
-                            handler.post(new Runnable() {
-                                @Override
-                                public void run() {
-                                    //外部关闭连接会抛出异常，但没有读写出错
-                                    if (classicServer_Socket == null || !classicServer_Socket.isConnected())
-                                        readListener.onClose();
-                                    else
-                                        readListener.onError();
-                                }
-                            });
-                        }
-                    }
-
-                }
-            }).start();
+        read(toBufferReadListener(listener));
+    }
 
-        } else if (classicClient_Socket != null) {
-            this.readListener = listener;
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        InputStream inputStream = classicClient_Socket.getInputStream();
-                        byte[] buffer = new byte[1024];
-                        int bytes = 0;
-                        while ((bytes = inputStream.read(buffer)) != -1) {
-                            //经测试，read方法一直不会停止（除非关闭连接时抛出异常），没有读到数据时不应该调用用户回调
-                            if (bytes == 0) {
-                                continue;
-                            }
-                            //在主线程执行回调
-                            if (readListener != null) {
-                                final byte[] finalBuffer = buffer;
-                                final int finalBytes = bytes;
-                                handler.post(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        readListener.onReceived(Arrays.copyOf(finalBuffer, finalBytes));
-                                    }
-                                });
-                            }
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        //在主线程执行回调
-                        if (readListener != null) {
-                            handler.post(new Runnable() {
-                                @Override
-                                public void run() {
-                                    readListener.onError();
-                                }
-                            });
-                        }
-                    }
+    /**
+     * 经典蓝牙读取，数据块来自缓冲池，不会为每块数据分配新的数组
+     * listener必须在用完数据后调用BufferPool.Buffer#release()，缓冲池耗尽时读取线程会暂停读取
+     * 同一个连接只有一个读取线程，重复调用只会替换listener
+     */
+    public void read(OnBufferReadListener listener) {
+        ClassicLink link = getClassicLink();
+        if (link != null)
+            link.read(listener);
+    }
 
-                }
-            }).start();
-        }
+    /**
+     * 经典蓝牙按帧读取，在读取线程中按framer的规则分帧，每个完整的帧回调一次OnFrameListener.onFrame
+     * 帧直接从接收缓冲区中切出，不会复制，所有回调都在读取线程中执行
+     * 同一个连接只有一个读取线程，重复调用只会替换framer和listener
+     *
+     * @param framer 保存了解析状态，不能同时给多个连接使用
+     */
+    public void read(Framer framer, OnFrameListener listener) {
+        ClassicLink link = getClassicLink();
+        if (link != null && framer != null)
+            link.read(framer, listener);
     }
 
     /**
      * 经典蓝牙写入
+     * 所有写入由同一个写入线程按调用顺序完成，连续的小数据会合并成一次socket写入
+     * 调用后不能再修改data中的内容，每次调用对应的listener都会被回调
      */
-    public void write(final byte[] data, OnWriteListener listener) {
-        if (data == null)
+    public void write(byte[] data, OnWriteListener listener) {
+        ClassicLink link = getClassicLink();
+        if (link != null && data != null)
+            link.write(data, listener);
+    }
+
+    /**
+     * 设置经典蓝牙合并写入的参数，对之后建立的连接生效
+     *
+     * @param maxBatchSize 一次socket写入的最大字节数
+     * @param maxLatency   单位为毫秒，为了合并更多数据最多等待的时间，为0表示只合并已经提交的数据
+     */
+    public void setClassicWriteBatch(int maxBatchSize, long maxLatency) {
+        this.classicWriteMaxBatchSize = maxBatchSize;
+        this.classicWriteMaxLatency = maxLatency;
+    }
+
+    /**
+     * 当前经典蓝牙连接读取线程的统计信息（唤醒次数、空读次数、每次唤醒读到的字节数等）
+     *
+     * @return 没有连接或还没有开始读取时返回null
+     */
+    public ClassicReader.Stats getReadStats() {
+        ClassicLink link = getClassicLink();
+        return link == null ? null : link.getReadStats();
+    }
+
+    //多客户端服务器中指定设备读取线程的统计信息
+    public ClassicReader.Stats getReadStats(String mac) {
+        ClassicLink link = mac == null ? null : acceptedLinks.get(mac);
+        return link == null ? null : link.getReadStats();
+    }
+
+    //服务器端和客户端都连接成功时，优先使用服务器端的连接
+    private ClassicLink getClassicLink() {
+        ClassicLink link = classicServerLink;
+        return link != null ? link : classicClientLink;
+    }
+
+
+    /**
+     * 经典蓝牙多客户端服务器，持续接受新的连接，直到stopListening或disconnect
+     * 每个接入的连接都有自己的读取、写入线程和listener，通过客户端的mac调用read(String, ...)、write(String, ...)
+     * 同一个mac重新接入时，会关闭之前的连接
+     */
+    public void listen(final UUID classicUUID, OnAcceptListener listener) {
+        final BluetoothAdapter adapter = getBluetoothAdapter();
+        if (adapter == null)
             return;
 
-        this.writeListener = listener;
+        stopListening();
+        this.acceptListener = listener;
 
-        if (classicServer_Socket != null) {
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        OutputStream outputStream = classicServer_Socket.getOutputStream();
-                        outputStream.write(data);
-                        //在主线程执行回调
-                        if (writeListener != null) {
-                            handler.post(new Runnable() {
-                                @Override
-                                public void run() {
-                                    writeListener.onSuccess();
-                                }
-                            });
-                        }
-                    } catch (IOException e) {
+        final BluetoothServerSocket serverSocket;
+        try {
+            serverSocket = adapter.listenUsingRfcommWithServiceRecord(this.getClass().getSimpleName(), classicUUID);
+        } catch (IOException e) {
+            e.printStackTrace();
+            notifyAccept(listener, null, ACCEPT_EVENT_ERROR);
+            return;
+        }
+        multiServerSocket = serverSocket;
+
+        boolean started = executeLoop("BluetoothHelper-accept", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (multiServerSocket == serverSocket) {
+                        BluetoothSocket socket = serverSocket.accept();
+                        if (socket == null)
+                            continue;
+                        //握手会阻塞，不能影响接受其他连接
+                        if (!classicCompressionEnabled)
+                            addAcceptedLink(socket);
+                        else if (!executeIo("BluetoothHelper-handshake", acceptTask(socket)))
+                            closeQuietly(socket);
+                    }
+                } catch (IOException e) {
+                    //stopListening关闭serverSocket时也会抛出异常，此时不算出错
+                    if (multiServerSocket == serverSocket) {
                         e.printStackTrace();
-                        //在主线程执行回调
-                        if (writeListener != null) {
-                            handler.post(new Runnable() {
-                                @Override
-                                public void run() {
-                                    writeListener.onError();
-                                }
-                            });
-                        }
+                        multiServerSocket = null;
+                        notifyAccept(acceptListener, null, ACCEPT_EVENT_ERROR);
                     }
+                }
+            }
+        });
+        if (!started) {
+            stopListening();
+            notifyAccept(listener, null, ACCEPT_EVENT_ERROR);
+        }
+    }
 
+    private Runnable acceptTask(final BluetoothSocket socket) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    addAcceptedLink(socket);
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
-            }).start();
+            }
+        };
+    }
 
-        } else if (classicClient_Socket != null) {
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        OutputStream outputStream = classicClient_Socket.getOutputStream();
-                        outputStream.write(data);
-                        //在主线程执行回调
-                        if (writeListener != null) {
-                            handler.post(new Runnable() {
-                                @Override
-                                public void run() {
-                                    writeListener.onSuccess();
-                                }
-                            });
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        //在主线程执行回调
-                        if (writeListener != null) {
-                            handler.post(new Runnable() {
-                                @Override
-                                public void run() {
-                                    writeListener.onError();
-                                }
-                            });
-                        }
-                    }
+    private void addAcceptedLink(BluetoothSocket socket) throws IOException {
+        String mac = socket.getRemoteDevice().getAddress();
+        ClassicLink old = acceptedLinks.put(mac, openClassicLink(socket, mac));
+        if (old != null)
+            old.close();
+        notifyAccept(acceptListener, mac, ACCEPT_EVENT_ACCEPTED);
+    }
 
-                }
-            }).start();
+    private static void closeQuietly(BluetoothSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
+    //停止接受新的连接，已接入的连接不受影响
+    public void stopListening() {
+        BluetoothServerSocket serverSocket = multiServerSocket;
+        multiServerSocket = null;
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
-    /**
-     * ble蓝牙读取
-     */
-    public void read(UUID serviceUUID, UUID characterUUID, final OnReadListener listener) {
-        if (bleBluetoothGatt == null)
-            return;
+    //多客户端服务器当前已接入的设备mac
+    public List<String> getAcceptedDevices() {
+        return new ArrayList<>(acceptedLinks.keySet());
+    }
 
-        this.readListener = listener;
+    public void read(String mac, OnReadListener listener) {
+        read(mac, toBufferReadListener(listener));
+    }
 
-        BluetoothGattService service = bleBluetoothGatt.getService(serviceUUID);
-        BluetoothGattCharacteristic characteristic = service.getCharacteristic(characterUUID);
-        bleBluetoothGatt.readCharacteristic(characteristic);
+    //读取多客户端服务器中指定设备的数据，用法与read(OnBufferReadListener)相同
+    public void read(String mac, OnBufferReadListener listener) {
+        ClassicLink link = mac == null ? null : acceptedLinks.get(mac);
+        if (link != null)
+            link.read(listener);
     }
 
-    //ble蓝牙写入
-    public void write(UUID serviceUUID, UUID characterUUID, byte[] data, final OnWriteListener listener) {
-        if (bleBluetoothGatt == null)
-            return;
-        if (data == null)
-            return;
+    //按帧读取多客户端服务器中指定设备的数据，用法与read(Framer, OnFrameListener)相同
+    public void read(String mac, Framer framer, OnFrameListener listener) {
+        ClassicLink link = mac == null ? null : acceptedLinks.get(mac);
+        if (link != null && framer != null)
+            link.read(framer, listener);
+    }
 
-        this.writeListener = listener;
+    //写入多客户端服务器中的指定设备，用法与write(byte[], OnWriteListener)相同
+    public void write(String mac, byte[] data, OnWriteListener listener) {
+        ClassicLink link = mac == null ? null : acceptedLinks.get(mac);
+        if (link == null || data == null) {
+            postWriteResult(listener, false);
+            return;
+        }
+        link.write(data, listener);
+    }
 
-        BluetoothGattService service = bleBluetoothGatt.getService(serviceUUID);
-        BluetoothGattCharacteristic characteristic = service.getCharacteristic(characterUUID);
-        characteristic.setValue(data);
-        bleBluetoothGatt.writeCharacteristic(characteristic);
+    //断开指定设备的BLE连接或多客户端服务器中接入的连接
+    public void disconnect(String mac) {
+        if (mac == null)
+            return;
+        ClassicLink link = acceptedLinks.remove(mac);
+        if (link != null)
+            link.close();
+        BleLink bleLink = bleLinks.remove(mac);
+        if (bleLink != null) {
+            bleLink.close();
+            if (this.bleLink == bleLink)
+                this.bleLink = null;
+        }
     }
 
+    /**
+     * 通过经典蓝牙发送文件，对方需要调用receiveFile接收
+     * 文件按块读取，多块同时在传输中，每块校验后确认；连接断开后重新连接并再次发送同一个文件，会从对方已经接收的位置继续
+     * 传输期间连接的读取由文件传输占用，之前通过read设置的listener不会再收到数据
+     *
+     * @return 用于查询进度或取消传输，没有连接时返回null
+     */
+    public FileTransfer sendFile(File file, OnFileTransferListener listener) {
+        return sendFile(getClassicLink(), file, listener);
+    }
 
-    public interface OnScanListener {
-        void onStart();
+    //向多客户端服务器中的指定设备发送文件，用法与sendFile(File, OnFileTransferListener)相同
+    public FileTransfer sendFile(String mac, File file, OnFileTransferListener listener) {
+        return sendFile(mac == null ? null : acceptedLinks.get(mac), file, listener);
+    }
 
-        void onFound(BluetoothInfo info);
+    /**
+     * 通过经典蓝牙接收对方sendFile发送的文件，保存到directory中，同名文件会被覆盖
+     * 接收中的数据写入"文件名.part"，完成后重命名，未完成的.part用于续传
+     *
+     * @return 用于查询进度或取消传输，没有连接时返回null
+     */
+    public FileTransfer receiveFile(File directory, OnFileTransferListener listener) {
+        return receiveFile(getClassicLink(), directory, listener);
+    }
 
-        void onStop();
+    //接收多客户端服务器中指定设备发送的文件，用法与receiveFile(File, OnFileTransferListener)相同
+    public FileTransfer receiveFile(String mac, File directory, OnFileTransferListener listener) {
+        return receiveFile(mac == null ? null : acceptedLinks.get(mac), directory, listener);
+    }
 
-        void onCancel();
+    private FileTransfer sendFile(ClassicLink link, File file, OnFileTransferListener listener) {
+        if (link == null || file == null)
+            return null;
+        FileTransfer transfer = FileTransfer.sender(file, FileTransfer.DEFAULT_CHUNK_SIZE, FileTransfer.DEFAULT_WINDOW,
+                FileTransfer.DEFAULT_TIMEOUT, toFileTransport(link), toFileTransferListener(listener));
+        link.read(FileTransfer.createFramer(), toFileFrameListener(transfer));
+        if (!executeLoop("BluetoothHelper-file", transfer))
+            transfer.onClosed();
+        return transfer;
+    }
 
-        void onError();
+    private FileTransfer receiveFile(ClassicLink link, File directory, OnFileTransferListener listener) {
+        if (link == null || directory == null)
+            return null;
+        FileTransfer transfer = FileTransfer.receiver(directory, toFileTransport(link), toFileTransferListener(listener));
+        link.read(FileTransfer.createFramer(), toFileFrameListener(transfer));
+        return transfer;
     }
 
-    public interface OnConnectListener {
-        void onConnected();
+    private static FileTransfer.Transport toFileTransport(final ClassicLink link) {
+        return new FileTransfer.Transport() {
+            @Override
+            public boolean send(byte[] data, int offset, int length, Runnable onSent) {
+                return link.write(data, offset, length, onSent);
+            }
+        };
+    }
 
-        void onFoundBleUUIDs(List<BluetoothGattService> serviceList);
+    //读取线程中收到的帧直接交给文件传输
+    private static OnFrameListener toFileFrameListener(final FileTransfer transfer) {
+        return new OnFrameListener() {
+            @Override
+            public void onFrame(byte[] data, int offset, int length) {
+                transfer.onFrame(data, offset, length);
+            }
 
-        void onError();
+            @Override
+            public void onError() {
+                transfer.onClosed();
+            }
 
-        void onDisconnect();
+            @Override
+            public void onClose() {
+                transfer.onClosed();
+            }
+        };
     }
 
-    public interface OnReadListener {
-        void onReceived(byte[] data);
+    //通过listener对应的分发器执行文件传输回调，OVERFLOW_COALESCE时进度回调只保留最新的
+    private FileTransfer.Listener toFileTransferListener(final OnFileTransferListener listener) {
+        return new FileTransfer.Listener() {
+            @Override
+            public void onProgress(final long transferred, final long total) {
+                if (listener == null)
+                    return;
+                dispatch(listener, new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onProgress(transferred, total);
+                    }
+                });
+            }
 
-        void onError();
+            @Override
+            public void onComplete(final File file) {
+                if (listener == null)
+                    return;
+                dispatch(listener, new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onComplete(file);
+                    }
+                });
+            }
 
-        void onClose();
+            @Override
+            public void onError(IOException e) {
+                e.printStackTrace();
+                if (listener == null)
+                    return;
+                dispatch(listener, new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onError();
+                    }
+                });
+            }
+        };
     }
 
-    public interface OnWriteListener {
-        void onSuccess();
+    //通过listener对应的分发器执行多客户端服务器的回调
+    private void notifyAccept(final OnAcceptListener listener, final String mac, final int event) {
+        if (listener == null)
+            return;
+        dispatch(listener, new Runnable() {
+            @Override
+            public void run() {
+                switch (event) {
+                    case ACCEPT_EVENT_ACCEPTED:
+                        listener.onAccepted(mac);
+                        break;
+                    case ACCEPT_EVENT_DISCONNECTED:
+                        listener.onDisconnected(mac);
+                        break;
+                    case ACCEPT_EVENT_ERROR:
+                        listener.onError();
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }, null);
+    }
 
-        void onError();
+    //把OnReadListener转换成OnBufferReadListener，每块数据复制一份后归还缓冲池
+    static OnBufferReadListener toBufferReadListener(OnReadListener listener) {
+        return listener == null ? null : new BufferReadAdapter(listener);
     }
 
+    //回调使用listener对应的分发器，见findDispatcher
+    private static class BufferReadAdapter implements OnBufferReadListener {
+        private final OnReadListener listener;
 
-    public static class BluetoothInfo {
-        public static final int SUPPORT_TYPE_CLASSIC = 1;
-        public static final int SUPPORT_TYPE_BLE = 2;
-        public static final int SUPPORT_TYPE_ALL = 3;//同时支持经典蓝牙和BLE蓝牙
+        BufferReadAdapter(OnReadListener listener) {
+            this.listener = listener;
+        }
 
-        private int supportType;
-        private String name;
-        private String mac;
-        private int rssi;//信号强度
+        @Override
+        public void onReceived(BufferPool.Buffer buffer) {
+            byte[] data = Arrays.copyOf(buffer.getData(), buffer.getLength());
+            buffer.release();
+            listener.onReceived(data);
+        }
+
+        @Override
+        public void onError() {
+            listener.onError();
+        }
+
+        @Override
+        public void onClose() {
+            listener.onClose();
+        }
+    }
+
+    //通过listener对应的分发器执行写入回调
+    private void postWriteResult(final OnWriteListener listener, final boolean success) {
+        if (listener == null)
+            return;
+        dispatch(listener, new Runnable() {
+            @Override
+            public void run() {
+                if (success)
+                    listener.onSuccess();
+                else
+                    listener.onError();
+            }
+        });
+    }
+
+
+    /**
+     * ble蓝牙读取
+     * 所有GATT操作按调用顺序排队，前一个操作回调后才发起下一个，连续调用不会丢失
+     * 每次调用的listener只对应这一次读取，超时（见setGattTimeout）或连接断开时回调onError
+     */
+    public void read(UUID serviceUUID, UUID characterUUID, OnReadListener listener) {
+        read(getCharacteristic(serviceUUID, characterUUID), listener);
+    }
+
+    /**
+     * ble蓝牙读取，handle由getCharacteristic获取，不需要再查找服务和特征值
+     * handle已经失效（连接断开或服务改变）时立即回调onError
+     */
+    public void read(final CharacteristicHandle handle, final OnReadListener listener) {
+        if (handle == null || !handle.isValid()) {
+            notifyBleRead(listener, null);
+            return;
+        }
+
+        final BleLink link = handle.index.link;
+        final BluetoothGatt gatt = handle.index.gatt;
+        final BluetoothGattCharacteristic characteristic = handle.characteristic;
+        boolean queued = handle.index.queue.enqueue(new GattQueue.Operation(characteristic, gattTimeout) {
+            @Override
+            protected boolean start() {
+                return handle.isValid() && gatt.readCharacteristic(characteristic);
+            }
+
+            @Override
+            protected void onComplete(int status, byte[] value) {
+                if (status == GattQueue.STATUS_SUCCESS && value != null)
+                    link.bytesReceived.addAndGet(value.length);
+                notifyBleRead(listener, status == GattQueue.STATUS_SUCCESS ? link.decode(value) : null);
+            }
+        });
+        if (!queued)
+            notifyBleRead(listener, null);
+    }
+
+    /**
+     * 按周期轮询特征值，用于不支持通知的设备，同一个设备的所有轮询共用一个定时任务
+     * 读取同样排在GATT队列中；读取耗时超过周期时自动降低频率，结果与上一次相同时不回调
+     * 连接断开或服务改变后轮询自动停止，需要重新调用
+     *
+     * @param period 期望的读取周期，单位为毫秒；已经在轮询该特征值时只修改周期和listener
+     * @return 轮询的统计信息（实际频率等），handle无效时返回null并回调onError
+     */
+    public GattPoller.Poll poll(UUID serviceUUID, UUID characterUUID, long period, OnPollListener listener) {
+        return poll(getCharacteristic(serviceUUID, characterUUID), period, listener);
+    }
+
+    public GattPoller.Poll poll(CharacteristicHandle handle, long period, final OnPollListener listener) {
+        if (handle == null || !handle.isValid()) {
+            if (listener != null) {
+                dispatch(listener, new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onError();
+                    }
+                });
+            }
+            return null;
+        }
+        return handle.index.link.poller.add(handle, period, new GattPoller.Listener() {
+            @Override
+            public void onChanged(GattPoller.Poll poll, final byte[] value) {
+                if (listener == null)
+                    return;
+                //同一个特征值只保留最新的结果
+                dispatch(listener, new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onChanged(value);
+                    }
+                }, poll);
+            }
+
+            @Override
+            public void onError(GattPoller.Poll poll) {
+                if (listener == null)
+                    return;
+                dispatch(listener, new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onError();
+                    }
+                });
+            }
+        });
+    }
+
+    public void stopPolling(UUID serviceUUID, UUID characterUUID) {
+        stopPolling(getCharacteristic(serviceUUID, characterUUID));
+    }
+
+    public void stopPolling(CharacteristicHandle handle) {
+        if (handle != null)
+            handle.index.link.poller.remove(handle);
+    }
+
+    //轮询的读取操作，与read相同，结果交给GattPoller
+    private final GattPoller.Reader pollReader = new GattPoller.Reader() {
+        @Override
+        public boolean read(Object target, final GattPoller.Poll poll) {
+            final CharacteristicHandle handle = (CharacteristicHandle) target;
+            if (!handle.isValid())
+                return false;
+            final BleLink link = handle.index.link;
+            final BluetoothGatt gatt = handle.index.gatt;
+            final BluetoothGattCharacteristic characteristic = handle.characteristic;
+            return handle.index.queue.enqueue(new GattQueue.Operation(characteristic, gattTimeout) {
+                @Override
+                protected boolean start() {
+                    return handle.isValid() && gatt.readCharacteristic(characteristic);
+                }
+
+                @Override
+                protected void onComplete(int status, byte[] value) {
+                    if (status == GattQueue.STATUS_SUCCESS && value != null)
+                        link.bytesReceived.addAndGet(value.length);
+                    poll.complete(status == GattQueue.STATUS_SUCCESS ? link.decode(value) : null);
+                }
+            });
+        }
+    };
+
+    /**
+     * 读取使用分片协议（见BleReassembler）的特征值，连续读取直到重组出一条完整的消息
+     * 每次读取都排在GATT队列中，读取之间可以插入其他操作；同一个reassembler同一时间只能用于一次readMessage
+     * 读取失败、超时或多次收到不属于任何消息的分片时回调onError，交给listener的是消息的副本
+     */
+    public void readMessage(UUID serviceUUID, UUID characterUUID, BleReassembler reassembler, OnMessageListener listener) {
+        readMessage(getCharacteristic(serviceUUID, characterUUID), reassembler, listener);
+    }
+
+    public void readMessage(CharacteristicHandle handle, BleReassembler reassembler, OnMessageListener listener) {
+        if (listener == null)
+            return;
+        if (handle == null || !handle.isValid() || reassembler == null) {
+            notifyMessage(listener, null);
+            return;
+        }
+        reassembler.reset();
+        new MessageReader(handle, reassembler, listener).readNext();
+    }
+
+    //通过listener对应的分发器交给listener一条消息，message为null表示读取失败
+    private void notifyMessage(final OnMessageListener listener, final byte[] message) {
+        dispatch(listener, new Runnable() {
+            @Override
+            public void run() {
+                if (message != null)
+                    listener.onMessage(message, 0, message.length);
+                else
+                    listener.onError();
+            }
+        });
+    }
+
+    /**
+     * ble蓝牙写入，与read一样排队执行
+     * 每次调用的listener只对应这一次写入，超时或连接断开时回调onError
+     */
+    public void write(UUID serviceUUID, UUID characterUUID, byte[] data, OnWriteListener listener) {
+        write(getCharacteristic(serviceUUID, characterUUID), data, listener);
+    }
+
+    /**
+     * ble蓝牙写入，handle由getCharacteristic获取，高频写入时不需要每次查找服务和特征值
+     * handle已经失效（连接断开或服务改变）时立即回调onError
+     */
+    public void write(final CharacteristicHandle handle, final byte[] data, final OnWriteListener listener) {
+        if (data == null)
+            return;
+        if (handle == null || !handle.isValid()) {
+            postWriteResult(listener, false);
+            return;
+        }
+
+        final BleLink link = handle.index.link;
+        final BluetoothGatt gatt = handle.index.gatt;
+        final BluetoothGattCharacteristic characteristic = handle.characteristic;
+        boolean queued = handle.index.queue.enqueue(new GattQueue.Operation(characteristic, gattTimeout) {
+            private byte[] value;
+
+            @Override
+            protected boolean start() {
+                if (!handle.isValid())
+                    return false;
+                //同一个特征值对象可能被多个排队的写入共用，发起时才设置值；压缩协商可能在排队期间完成，发起时才编码
+                value = link.encode(data);
+                characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+                characteristic.setValue(value);
+                return gatt.writeCharacteristic(characteristic);
+            }
+
+            @Override
+            protected void onComplete(int status, byte[] result) {
+                if (status == GattQueue.STATUS_SUCCESS)
+                    link.bytesSent.addAndGet(value.length);
+                postWriteResult(listener, status == GattQueue.STATUS_SUCCESS);
+            }
+        });
+        if (!queued)
+            postWriteResult(listener, false);
+    }
+
+    /**
+     * ble蓝牙批量写入，data可以任意大，按当前MTU切成包后用无响应写入依次发出
+     * 上一个包被协议栈接收后才发出下一个，不会使协议栈的缓冲区溢出；其他读写操作可以插在两个包之间执行
+     * 连接后会自动协商最大的MTU，发送过程中的数据不能修改；BLE压缩协商成功后每个包单独压缩（见setBleCompression）
+     *
+     * @return 用于查询进度、吞吐量或取消发送，没有BLE连接或找不到特征值时返回null
+     */
+    public BleBulkWriter writeBulk(UUID serviceUUID, UUID characterUUID, byte[] data, OnBulkWriteListener listener) {
+        return writeBulk(getCharacteristic(serviceUUID, characterUUID), data, listener);
+    }
+
+    /**
+     * ble蓝牙批量写入，handle由getCharacteristic获取
+     *
+     * @return handle已经失效时立即回调onError并返回null
+     */
+    public BleBulkWriter writeBulk(final CharacteristicHandle handle, byte[] data, final OnBulkWriteListener listener) {
+        if (data == null)
+            return null;
+        if (handle == null || !handle.isValid()) {
+            if (listener != null) {
+                dispatch(listener, new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onError();
+                    }
+                });
+            }
+            return null;
+        }
+
+        final BleLink link = handle.index.link;
+        final BluetoothGatt gatt = handle.index.gatt;
+        GattQueue queue = handle.index.queue;
+        final BluetoothGattCharacteristic characteristic = handle.characteristic;
+        //批量写入期间使用高优先级（更短的连接间隔），最后一个批量写入结束后恢复空闲的优先级
+        if (link.bulkCount.getAndIncrement() == 0)
+            link.applyConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+        BleBulkWriter writer = new BleBulkWriter(queue, gattScheduler, characteristic, data, gattTimeout, new BleBulkWriter.PacketSender() {
+            private byte[] packet;//只在GATT操作发起时使用，writeCharacteristic返回后可以复用
+
+            @Override
+            public int getPacketSize() {
+                //开启压缩时留出压缩标记的1个字节
+                return link.codec == null ? link.mtu - 3 : link.mtu - 3 - PayloadCodec.maxEncodedSize(0);
+            }
+
+            @Override
+            public boolean send(byte[] data, int offset, int length) {
+                if (!handle.isValid())
+                    return false;
+                byte[] value;
+                if (link.codecReady) {
+                    //每个包单独编码，与write相同
+                    value = link.encode(data, offset, length);
+                } else {
+                    if (packet == null || packet.length != length)
+                        packet = new byte[length];
+                    System.arraycopy(data, offset, packet, 0, length);
+                    value = packet;
+                }
+                characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+                characteristic.setValue(value);
+                if (!gatt.writeCharacteristic(characteristic))
+                    return false;
+                link.bytesSent.addAndGet(value.length);
+                return true;
+            }
+        }, new BleBulkWriter.Listener() {
+            @Override
+            public void onProgress(final int sent, final int total) {
+                if (listener == null)
+                    return;
+                dispatch(listener, new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onProgress(sent, total);
+                    }
+                });
+            }
+
+            @Override
+            public void onComplete(int total, long elapsed, final float throughput) {
+                link.endBulkWrite();
+                if (listener == null)
+                    return;
+                dispatch(listener, new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onComplete(throughput);
+                    }
+                });
+            }
+
+            @Override
+            public void onError(int status) {
+                link.endBulkWrite();
+                if (listener == null)
+                    return;
+                dispatch(listener, new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onError();
+                    }
+                });
+            }
+        });
+        writer.start();
+        return writer;
+    }
+
+    /**
+     * 订阅BLE通知或指示，写入CCCD描述符后，每个通知都复制到该订阅的无锁缓冲区中
+     * 分发器线程每次把缓冲区中已到达的所有通知作为一批交给listener，高频通知不会为每个包post一个Runnable
+     * 缓冲区已满时丢弃新到的通知，数量见NotificationRing.Batch#getDroppedCount；BLE压缩协商成功后通知先解码再放入缓冲区
+     * 同一个特征值重复订阅时只替换listener
+     *
+     * @param indication 为true时使用指示（需要对方确认），否则使用通知
+     */
+    public void subscribe(UUID serviceUUID, UUID characterUUID, boolean indication, OnNotifyListener listener) {
+        subscribe(getCharacteristic(serviceUUID, characterUUID), indication, listener);
+    }
+
+    //订阅handle对应的特征值，handle已经失效时立即回调onError
+    public void subscribe(CharacteristicHandle handle, boolean indication, OnNotifyListener listener) {
+        if (listener != null)
+            subscribe(handle, indication, listener, listener);
+    }
+
+    /**
+     * 订阅使用分片协议（见BleReassembler）的通知或指示，分片重组成完整的消息后交给listener
+     * 重组在listener的分发器中进行，消息直接重组到预先分配的缓冲区中，不会为每个分片或消息分配数组
+     *
+     * @param maxMessageSize 一条消息的最大字节数，超过的消息会被丢弃
+     * @return 用于查询丢失的分片数、丢弃的消息数；handle已经失效时回调onError
+     */
+    public BleReassembler subscribeMessages(UUID serviceUUID, UUID characterUUID, boolean indication, int maxMessageSize, OnMessageListener listener) {
+        return subscribeMessages(getCharacteristic(serviceUUID, characterUUID), indication, maxMessageSize, listener);
+    }
+
+    public BleReassembler subscribeMessages(CharacteristicHandle handle, boolean indication, int maxMessageSize, final OnMessageListener listener) {
+        final BleReassembler reassembler = new BleReassembler(maxMessageSize);
+        if (listener == null)
+            return reassembler;
+        final BleReassembler.MessageListener messageListener = new BleReassembler.MessageListener() {
+            @Override
+            public void onMessage(byte[] data, int offset, int length) {
+                listener.onMessage(data, offset, length);
+            }
+        };
+        subscribe(handle, indication, new OnNotifyListener() {
+            @Override
+            public void onSubscribed() {
+            }
+
+            @Override
+            public void onNotify(NotificationRing.Batch batch) {
+                for (int i = 0; i < batch.size(); i++)
+                    reassembler.feed(batch.getData(i), 0, batch.getLength(i), messageListener);
+            }
+
+            @Override
+            public void onError() {
+                listener.onError();
+            }
+        }, listener);
+        return reassembler;
+    }
+
+    //owner用于选择分发器，一般就是listener本身
+    private void subscribe(CharacteristicHandle handle, boolean indication, OnNotifyListener listener, Object owner) {
+        if (handle == null || !handle.isValid()) {
+            postSubscribeError(listener, owner);
+            return;
+        }
+
+        BleLink link = handle.index.link;
+        BluetoothGattCharacteristic characteristic = handle.characteristic;
+        Subscription subscription = link.subscriptions.get(characteristic);
+        if (subscription != null) {
+            subscription.setListener(listener, owner);
+            return;
+        }
+        subscription = new Subscription(link, characteristic, listener, owner);
+        link.subscriptions.put(characteristic, subscription);
+        writeNotificationConfig(handle.index, characteristic, indication ? BluetoothGattDescriptor.ENABLE_INDICATION_VALUE
+                : BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, subscription);
+    }
+
+    private void postSubscribeError(final OnNotifyListener listener, Object owner) {
+        dispatch(owner, new Runnable() {
+            @Override
+            public void run() {
+                listener.onError();
+            }
+        });
+    }
+
+    //取消订阅，缓冲区中还没有交给listener的通知会被丢弃
+    public void unsubscribe(UUID serviceUUID, UUID characterUUID) {
+        unsubscribe(getCharacteristic(serviceUUID, characterUUID));
+    }
+
+    public void unsubscribe(CharacteristicHandle handle) {
+        if (handle == null || !handle.isValid())
+            return;
+        BluetoothGattCharacteristic characteristic = handle.characteristic;
+        if (handle.index.link.subscriptions.remove(characteristic) != null)
+            writeNotificationConfig(handle.index, characteristic, BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE, null);
+    }
+
+    //通过GattQueue写入CCCD描述符，subscription不为null时回调订阅结果
+    private void writeNotificationConfig(GattIndex index, final BluetoothGattCharacteristic characteristic,
+                                         final byte[] value, final Subscription subscription) {
+        final BluetoothGatt gatt = index.gatt;
+        final ConcurrentHashMap<BluetoothGattCharacteristic, Subscription> subscriptions = index.link.subscriptions;
+        boolean enable = subscription != null;
+        final BluetoothGattDescriptor descriptor = characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
+        if (!gatt.setCharacteristicNotification(characteristic, enable) || descriptor == null) {
+            if (enable) {
+                subscriptions.remove(characteristic, subscription);
+                subscription.notifySubscribed(false);
+            }
+            return;
+        }
+        boolean queued = index.queue.enqueue(new GattQueue.Operation(descriptor, gattTimeout) {
+            @Override
+            protected boolean start() {
+                descriptor.setValue(value);
+                return gatt.writeDescriptor(descriptor);
+            }
+
+            @Override
+            protected void onComplete(int status, byte[] result) {
+                if (subscription == null)
+                    return;
+                if (status != GattQueue.STATUS_SUCCESS)
+                    subscriptions.remove(characteristic, subscription);
+                subscription.notifySubscribed(status == GattQueue.STATUS_SUCCESS);
+            }
+        });
+        if (!queued && enable) {
+            subscriptions.remove(characteristic, subscription);
+            subscription.notifySubscribed(false);
+        }
+    }
+
+    /**
+     * 获取特征值的句柄，之后的读写不需要再查找服务和特征值
+     * 句柄在连接断开或服务改变（重新回调onServicesDiscovered）后失效，需要重新获取
+     *
+     * @return 还没有发现服务、服务或特征值不存在时返回null
+     */
+    public CharacteristicHandle getCharacteristic(UUID serviceUUID, UUID characterUUID) {
+        return getCharacteristic(bleLink, serviceUUID, characterUUID);
+    }
+
+    //获取指定设备的特征值句柄，用该句柄读写、订阅时作用于该设备
+    public CharacteristicHandle getCharacteristic(String mac, UUID serviceUUID, UUID characterUUID) {
+        return getCharacteristic(mac == null ? null : bleLinks.get(mac), serviceUUID, characterUUID);
+    }
+
+    private CharacteristicHandle getCharacteristic(BleLink link, UUID serviceUUID, UUID characterUUID) {
+        GattIndex index = link == null ? null : link.index;
+        if (index == null || !index.valid) {
+            Log.w(TAG, "no discovered ble services, connect and wait for onFoundBleUUIDs first");
+            return null;
+        }
+        CharacteristicHandle handle = index.get(serviceUUID, characterUUID);
+        if (handle == null)
+            Log.w(TAG, "characteristic " + characterUUID + " not found in service " + serviceUUID + " of " + link.mac);
+        else
+            link.choose(serviceUUID, characterUUID);
+        return handle;
+    }
+
+    //当前BLE连接协商后的MTU，单个包最多MTU-3字节
+    public int getMtu() {
+        BleLink link = bleLink;
+        return link == null ? BLE_DEFAULT_MTU : link.mtu;
+    }
+
+    public int getMtu(String mac) {
+        BleLink link = mac == null ? null : bleLinks.get(mac);
+        return link == null ? BLE_DEFAULT_MTU : link.mtu;
+    }
+
+    /**
+     * 设置BLE连接空闲时（没有批量写入）使用的连接优先级，已连接的设备立即生效
+     * 批量写入期间总是使用CONNECTION_PRIORITY_HIGH，结束后恢复为该优先级
+     *
+     * @param priority BluetoothGatt.CONNECTION_PRIORITY_BALANCED或CONNECTION_PRIORITY_LOW_POWER，默认为BALANCED
+     */
+    public void setIdleConnectionPriority(int priority) {
+        idleConnectionPriority = priority;
+        for (BleLink link : bleLinks.values()) {
+            if (link.state == BLE_CONNECTED && link.bulkCount.get() == 0)
+                link.applyConnectionPriority(priority);
+        }
+    }
+
+    /**
+     * 立即请求当前BLE连接的连接优先级，下一次批量写入开始或结束时会被覆盖
+     *
+     * @return 没有BLE连接或系统拒绝时返回false
+     */
+    public boolean requestConnectionPriority(int priority) {
+        BleLink link = bleLink;
+        return link != null && link.state == BLE_CONNECTED && link.applyConnectionPriority(priority);
+    }
+
+    public boolean requestConnectionPriority(String mac, int priority) {
+        BleLink link = mac == null ? null : bleLinks.get(mac);
+        return link != null && link.state == BLE_CONNECTED && link.applyConnectionPriority(priority);
+    }
+
+    //是否在连接后请求2M PHY，只有双方都支持时才会切换，默认开启，对之后的连接生效
+    public void setPreferPhy2M(boolean prefer) {
+        preferPhy2M = prefer;
+    }
+
+    /**
+     * 当前BLE连接实际使用的连接参数
+     * 系统没有公开连接间隔，只能得到最近一次请求的优先级
+     *
+     * @return 没有BLE连接时返回null
+     */
+    public LinkParameters getLinkParameters() {
+        return getLinkParameters(bleLink);
+    }
+
+    public LinkParameters getLinkParameters(String mac) {
+        return getLinkParameters(mac == null ? null : bleLinks.get(mac));
+    }
+
+    private LinkParameters getLinkParameters(BleLink link) {
+        if (link == null || link.state != BLE_CONNECTED)
+            return null;
+        return new LinkParameters(link.mtu, link.connectionPriority, link.txPhy, link.rxPhy, isLe2MPhySupported());
+    }
+
+    //重新读取当前BLE连接的PHY，结果通过getLinkParameters获取
+    public void readPhy() {
+        readPhy(bleLink);
+    }
+
+    public void readPhy(String mac) {
+        readPhy(mac == null ? null : bleLinks.get(mac));
+    }
+
+    private void readPhy(BleLink link) {
+        final BluetoothGatt gatt = link == null ? null : link.gatt;
+        if (gatt == null || link.state != BLE_CONNECTED || Build.VERSION.SDK_INT < Build.VERSION_CODES.O)
+            return;
+        link.queue.enqueue(new GattQueue.Operation(PHY_REQUEST, gattTimeout) {
+            @Override
+            protected boolean start() {
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O)
+                    return false;
+                gatt.readPhy();
+                return true;
+            }
+
+            @Override
+            protected void onComplete(int status, byte[] value) {
+            }
+        });
+    }
+
+    //本机是否支持2M PHY，Android 8.0以下不支持
+    private boolean isLe2MPhySupported() {
+        BluetoothAdapter adapter = getBluetoothAdapter();
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && adapter != null && adapter.isLe2MPhySupported();
+    }
+
+    /**
+     * 设置之后发起的每个GATT操作的超时时间
+     *
+     * @param timeout 单位为毫秒
+     */
+    public void setGattTimeout(long timeout) {
+        this.gattTimeout = timeout;
+    }
+
+    /**
+     * 设置所有BLE连接同时执行的GATT操作数，默认为GATT_MAX_IN_FLIGHT，不小于已连接的设备数时不会限制任何设备
+     * 全局上限用于：部分旧版本协议栈在多个连接同时有GATT操作时容易返回GATT_BUSY或133，
+     * 或者需要让某个设备的大量传输（例如固件升级）不占满所有设备共享的射频时间，此时调低，超过时各个设备轮流执行
+     */
+    public void setGattConcurrency(int maxInFlight) {
+        gattArbiter.setMaxInFlight(maxInFlight);
+    }
+
+    /**
+     * 当前BLE连接的GATT队列统计信息，包括队列深度、每个操作的平均和最大延迟
+     * 多个设备同时连接时，平均等待时间包括等待其他设备的时间
+     *
+     * @return 没有BLE连接时返回null
+     */
+    public GattQueue.Stats getGattStats() {
+        BleLink link = bleLink;
+        return link == null ? null : link.queue.getStats();
+    }
+
+    public GattQueue.Stats getGattStats(String mac) {
+        BleLink link = mac == null ? null : bleLinks.get(mac);
+        return link == null ? null : link.queue.getStats();
+    }
+
+    /**
+     * 所有BLE连接的吞吐量统计，速率为各个设备的速率之和
+     */
+    public BleStats getBleStats() {
+        int count = 0;
+        long sent = 0;
+        long received = 0;
+        float sendRate = 0;
+        float receiveRate = 0;
+        for (BleLink link : bleLinks.values()) {
+            BleStats stats = link.getStats();
+            count++;
+            sent += stats.getBytesSent();
+            received += stats.getBytesReceived();
+            sendRate += stats.getSendRate();
+            receiveRate += stats.getReceiveRate();
+        }
+        return new BleStats(count, sent, received, sendRate, receiveRate);
+    }
+
+    //指定设备的吞吐量统计，没有该设备的连接时返回null
+    public BleStats getBleStats(String mac) {
+        BleLink link = mac == null ? null : bleLinks.get(mac);
+        return link == null ? null : link.getStats();
+    }
+
+    //通过listener对应的分发器执行BLE读取回调，data为null表示读取失败
+    private void notifyBleRead(final OnReadListener listener, final byte[] data) {
+        if (listener == null)
+            return;
+        dispatch(listener, new Runnable() {
+            @Override
+            public void run() {
+                if (data != null)
+                    listener.onReceived(data);
+                else
+                    listener.onError();
+            }
+        });
+    }
+
+    /**
+     * 开启或关闭经典蓝牙的负载压缩，对之后建立的连接生效，两端都需要开启
+     * 连接建立后双方交换支持的压缩方式，对方在COMPRESSION_HANDSHAKE_TIMEOUT内没有回应时不压缩，此时对方会把本端的握手消息当作普通数据收到；
+     * 协商成功后每次write的数据单独压缩，对方按write的边界收到解压后的数据
+     * 太小或压缩后没有变小的数据会原样发送，Deflater、Inflater在连接期间复用
+     *
+     * @param minSize 小于该大小的数据不压缩
+     */
+    public void setClassicCompression(boolean enabled, int minSize) {
+        this.classicCompressionEnabled = enabled;
+        this.classicCompressionMinSize = minSize;
+    }
+
+    /**
+     * 开启或关闭BLE的负载压缩，对之后建立的连接生效
+     * 外设需要提供一个可读写的能力特征值，读取的值为PayloadCodec#hello的格式；发现服务后先读取该特征值，
+     * 外设支持时写入本端的hello，外设回应这次写入之后双方才开始编码，之后所有读写、通知、批量写入的每个特征值都以1个字节的压缩标记开头
+     * 外设没有该特征值、不支持或交换失败时不压缩，可以和普通外设正常通信；每次重新发现服务后重新交换
+     * 通知解码后最多BLE_MAX_MTU - 3个字节，超过的通知会被丢弃
+     *
+     * @param serviceUUID 为null时关闭BLE压缩
+     * @param minSize     小于该大小的数据不压缩
+     */
+    public void setBleCompression(UUID serviceUUID, UUID characterUUID, int minSize) {
+        this.bleCompressionServiceUUID = characterUUID == null ? null : serviceUUID;
+        this.bleCompressionCharacterUUID = characterUUID;
+        this.bleCompressionMinSize = minSize;
+    }
+
+    /**
+     * 当前连接已发送数据的压缩率（原始字节数/实际发送的字节数），优先返回经典蓝牙连接的压缩率
+     * 没有开启压缩或还没有发送数据时为1
+     */
+    public float getCompressionRatio() {
+        ClassicLink link = getClassicLink();
+        BleLink bleLink = this.bleLink;
+        PayloadCodec codec = link != null ? link.codec : bleLink != null ? bleLink.codec : null;
+        return codec == null ? 1 : codec.getCompressionRatio();
+    }
+
+    //多客户端服务器中接入的设备或BLE设备的压缩率
+    public float getCompressionRatio(String mac) {
+        ClassicLink link = mac == null ? null : acceptedLinks.get(mac);
+        BleLink bleLink = mac == null ? null : bleLinks.get(mac);
+        PayloadCodec codec = link != null ? link.codec : bleLink != null ? bleLink.codec : null;
+        return codec == null ? 1 : codec.getCompressionRatio();
+    }
+
+    /**
+     * 创建经典蓝牙连接，开启压缩时先交换压缩能力，在I/O线程中执行
+     * 握手期间收到的不是握手消息的数据会退回输入流，之后按普通数据交给listener
+     *
+     * @throws IOException 发送握手消息失败，此时socket已经关闭
+     */
+    private ClassicLink openClassicLink(BluetoothSocket socket, String acceptedMac) throws IOException {
+        if (!classicCompressionEnabled)
+            return new ClassicLink(socket, socket.getInputStream(), acceptedMac, null);
+
+        PushbackInputStream inputStream;
+        int remoteCodecs;
+        try {
+            inputStream = new PushbackInputStream(socket.getInputStream(), PayloadCodec.HELLO_SIZE);
+            PayloadCodec.writeHello(socket.getOutputStream(), PayloadCodec.CODEC_DEFLATE);
+            remoteCodecs = PayloadCodec.readHello(inputStream, COMPRESSION_HANDSHAKE_TIMEOUT);
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+        PayloadCodec codec = null;
+        if ((remoteCodecs & PayloadCodec.CODEC_DEFLATE) != 0)
+            codec = new PayloadCodec(Deflater.BEST_SPEED, classicCompressionMinSize, PayloadCodec.DEFAULT_MAX_SIZE);
+        return new ClassicLink(socket, inputStream, acceptedMac, codec);
+    }
+
+
+    /**
+     * 一个BLE连接，拥有自己的GATT队列、状态、listener和订阅，多个设备的连接互不影响
+     * 连接断开后系统会自动重连（autoConnect），重连后重新发现服务，之前的句柄和订阅都会失效
+     */
+    private class BleLink {
+        final String mac;
+        private final BluetoothDevice device;
+        private final int strategy;
+        volatile BluetoothGatt gatt;
+        volatile int state = BLE_CONNECTING;
+        private volatile boolean closed;
+        private volatile OnConnectListener listener;
+        volatile GattQueue queue = new GattQueue(gattScheduler, GattQueue.DEFAULT_CAPACITY, gattArbiter);
+        volatile GattIndex index;//onServicesDiscovered时建立的服务、特征值索引，连接断开或服务改变后失效
+        final ConcurrentHashMap<BluetoothGattCharacteristic, Subscription> subscriptions = new ConcurrentHashMap<>();
+        final PayloadCodec codec;//开启BLE压缩时不为null，codecReady之后才使用
+        volatile boolean codecReady;//本次发现服务后与外设交换压缩能力成功
+        //压缩、解压的临时缓冲区，每个连接一份，由codec保护，结果只复制出实际长度
+        private byte[] encodeBuffer;
+        private byte[] decodeBuffer;
+        final GattPoller poller = new GattPoller(gattScheduler, pollReader);
+
+        //连接参数：协商后的MTU、最近一次请求的优先级、当前的PHY
+        volatile int mtu = BLE_DEFAULT_MTU;
+        volatile int connectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+        volatile int txPhy = BluetoothDevice.PHY_LE_1M;
+        volatile int rxPhy = BluetoothDevice.PHY_LE_1M;
+        final AtomicInteger bulkCount = new AtomicInteger();//正在进行的批量写入数，不为0时使用高优先级
+
+        //吞吐量统计，从连接建立开始
+        final AtomicLong bytesSent = new AtomicLong();
+        final AtomicLong bytesReceived = new AtomicLong();
+        private volatile long connectedTime;
+        private final Object[] eventKeys;//连接回调的合并key，多个设备使用同一个listener时互不替换
+
+        //连接耗时，从connect或连接断开开始计算，单位为纳秒，-1表示还没有完成
+        private long connectStart;
+        private volatile long connectDuration = -1;
+        private volatile long servicesDuration = -1;
+        private volatile int attempts;//本次连接调用connectGatt的次数，包括重试
+        private volatile int reconnectCount;
+        private boolean reconnecting;//已经建立的连接断开后正在后台重连
+
+        //GATT缓存，profile为连接前读取的缓存或最近一次保存的值
+        volatile GattProfileCache.Profile profile;
+        private volatile List<BluetoothGattService> services;//最近一次发现的服务
+        private final ArrayList<UUID[]> chosen = new ArrayList<>();//用户获取过句柄的特征值，由自身保护
+        private boolean mtuRequested;//本次连接已经发起MTU请求
+
+        private final Runnable timeoutTask = new Runnable() {
+            @Override
+            public void run() {
+                onConnectTimeout();
+            }
+        };
+
+        private final Runnable retryTask = new Runnable() {
+            @Override
+            public void run() {
+                connectGatt();
+            }
+        };
+
+        final BluetoothGattCallback callback = new BluetoothGattCallback() {
+            @Override
+            public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+                BluetoothGatt current = BleLink.this.gatt;
+                if (closed || current != null && current != gatt)
+                    return;//已经关闭，或者重试之前的连接迟到的回调
+                if (status == BluetoothGatt.GATT_SUCCESS && newState == BluetoothProfile.STATE_CONNECTED)
+                    onConnected(gatt);
+                else if (status != BluetoothGatt.GATT_SUCCESS || newState == BluetoothProfile.STATE_DISCONNECTED)
+                    onDisconnected(gatt, status);
+            }
+
+            @Override
+            public void onServicesDiscovered(final BluetoothGatt gatt, int status) {
+                final GattQueue queue = BleLink.this.queue;
+                //服务改变后会重新回调，旧的索引和其中的句柄都失效，已有的订阅需要重新建立
+                GattIndex old = index;
+                if (status == BluetoothGatt.GATT_SUCCESS)
+                    index = new GattIndex(BleLink.this, gatt, queue, gatt.getServices());
+                else
+                    index = null;
+                if (status == BluetoothGatt.GATT_SUCCESS && servicesDuration == -1)
+                    servicesDuration = System.nanoTime() - connectStart;
+                if (old != null) {
+                    old.valid = false;
+                    cancelSubscriptions();
+                }
+                codecReady = false;
+
+                //先协商MTU，之后用户发起的操作都排在MTU请求之后，批量写入可以直接使用协商后的包长度
+                if (!mtuRequested)
+                    requestMtu(gatt);
+                //双方都支持时切换到2M PHY，协商结果在onPhyUpdate中返回
+                if (preferPhy2M && isLe2MPhySupported()) {
+                    queue.enqueue(new GattQueue.Operation(PHY_REQUEST, gattTimeout) {
+                        @Override
+                        protected boolean start() {
+                            //isLe2MPhySupported已经检查过版本，这里直接检查是为了让lint识别API 26的调用
+                            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O)
+                                return false;
+                            gatt.setPreferredPhy(BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+                            return true;
+                        }
+
+                        @Override
+                        protected void onComplete(int status, byte[] value) {
+                        }
+                    });
+                }
+                //还没有批量写入时使用空闲的优先级
+                if (bulkCount.get() == 0)
+                    applyConnectionPriority(idleConnectionPriority);
+                if (codec != null && index != null)
+                    negotiateCompression(index);
+
+                final List<BluetoothGattService> serviceList = gatt.getServices();
+                if (status == BluetoothGatt.GATT_SUCCESS && serviceList != null && gattCacheEnabled)
+                    validateProfile(serviceList);
+                if (serviceList != null && serviceList.size() > 0)
+                    notifyConnect(CONNECT_EVENT_SERVICES, serviceList);
+            }
+
+            //读写的结果由GattQueue交给对应操作的回调，并立即发起下一个操作
+            @Override
+            public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+                queue.complete(characteristic, status, characteristic.getValue());
+            }
+
+            @Override
+            public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+                queue.complete(characteristic, status, null);
+            }
+
+            @Override
+            public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    BleLink.this.mtu = mtu;
+                    GattProfileCache.Profile profile = BleLink.this.profile;
+                    if (services != null && (profile == null || profile.getMtu() != mtu))
+                        saveProfile();
+                }
+                queue.complete(MTU_REQUEST, status, null);
+            }
+
+            //对方不支持2M PHY时也会回调，此时仍然是1M
+            @Override
+            public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    BleLink.this.txPhy = txPhy;
+                    BleLink.this.rxPhy = rxPhy;
+                }
+                queue.complete(PHY_REQUEST, status, null);
+            }
+
+            @Override
+            public void onPhyRead(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    BleLink.this.txPhy = txPhy;
+                    BleLink.this.rxPhy = rxPhy;
+                }
+                queue.complete(PHY_REQUEST, status, null);
+            }
+
+            @Override
+            public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+                queue.complete(descriptor, status, descriptor.getValue());
+            }
+
+            @Override
+            public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+                queue.complete(descriptor, status, null);
+            }
+
+            //通知只复制到订阅的缓冲区中，由分发器成批交给listener
+            @Override
+            public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+                Subscription subscription = subscriptions.get(characteristic);
+                if (subscription != null)
+                    subscription.onNotify(characteristic, characteristic.getValue());
+            }
+        };
+
+        BleLink(BluetoothDevice device, int strategy, OnConnectListener listener) {
+            this.mac = device.getAddress();
+            this.device = device;
+            this.strategy = strategy;
+            this.listener = listener;
+            this.eventKeys = new Object[CONNECT_EVENT_NAMES.length];
+            for (int i = 0; i < eventKeys.length; i++)
+                eventKeys[i] = mac + "/" + CONNECT_EVENT_NAMES[i];
+            this.codec = bleCompressionServiceUUID != null ? new PayloadCodec(Deflater.BEST_SPEED, bleCompressionMinSize, PayloadCodec.DEFAULT_MAX_SIZE) : null;
+        }
+
+        //开始连接
+        synchronized void start() {
+            connectStart = System.nanoTime();
+            attempts = 0;
+            connectGatt();
+        }
+
+        //调用一次connectGatt，直接连接时开始计时
+        private void connectGatt() {
+            Activity activity = BluetoothHelper.this.activity.get();
+            synchronized (this) {
+                if (closed)
+                    return;
+                if (activity == null) {
+                    fail();
+                    return;
+                }
+                attempts++;
+                //只有用户发起的直接连接使用autoConnect=false，重连在后台进行
+                boolean auto = reconnecting || strategy == BLE_CONNECT_AUTO;
+                gatt = device.connectGatt(activity, auto, callback, BluetoothDevice.TRANSPORT_LE);
+                if (!auto)
+                    handler.postDelayed(timeoutTask, connectTimeout);
+            }
+        }
+
+        private synchronized void onConnected(BluetoothGatt gatt) {
+            handler.removeCallbacks(timeoutTask);
+            state = BLE_CONNECTED;
+            reconnecting = false;
+            long now = System.nanoTime();
+            connectDuration = now - connectStart;
+            if (connectedTime == 0)
+                connectedTime = now;
+            notifyConnect(CONNECT_EVENT_CONNECTED, null);
+            //连接过的设备先用缓存的服务表回调，MTU交换不依赖服务发现，与服务发现同时进行
+            GattProfileCache.Profile cached = profile;
+            if (cached != null) {
+                if (cached.getMtu() > BLE_DEFAULT_MTU)
+                    requestMtu(gatt);
+                notifyConnect(CONNECT_EVENT_SERVICES, toServiceList(cached));
+            }
+            //连接成功不代表可以通信，只有当onServicesDiscovered被回调时才可以开始通信
+            gatt.discoverServices();
+        }
+
+        private synchronized void onDisconnected(BluetoothGatt gatt, int status) {
+            handler.removeCallbacks(timeoutTask);
+            boolean wasConnected = state == BLE_CONNECTED;
+            state = BLE_CONNECTING;
+            onLinkLost();
+            gatt.close();
+            this.gatt = null;
+
+            if (wasConnected) {
+                //已经建立的连接断开，在后台重连，设备回到范围内后再次回调onConnected
+                reconnecting = true;
+                reconnectCount++;
+                connectStart = System.nanoTime();
+                connectDuration = -1;
+                servicesDuration = -1;
+                attempts = 0;
+                notifyConnect(CONNECT_EVENT_DISCONNECTED, null);
+                connectGatt();
+            } else if (status == 133 && attempts <= connectRetries) {
+                //133（GATT_ERROR）多数是协议栈的临时错误，例如超过连接数限制或上一次连接还没有释放，关闭后稍等再重试
+                handler.postDelayed(retryTask, CONNECT_RETRY_DELAY * attempts);
+            } else {
+                fail();
+            }
+        }
+
+        //直接连接超时，不再重试
+        private synchronized void onConnectTimeout() {
+            if (closed || state != BLE_CONNECTING)
+                return;
+            fail();
+        }
+
+        //连接失败，回调onError并移除该连接
+        private void fail() {
+            notifyConnect(CONNECT_EVENT_ERROR, null);
+            close();
+            bleLinks.remove(mac, this);
+            if (bleLink == this)
+                bleLink = null;
+        }
+
+        ConnectStats getConnectStats() {
+            return new ConnectStats(strategy, attempts, connectDuration, servicesDuration, reconnectCount);
+        }
+
+        //把缓存的服务表转换为系统的服务对象，只能用来查看UUID和属性，不能用于读写
+        private List<BluetoothGattService> toServiceList(GattProfileCache.Profile cached) {
+            List<BluetoothGattService> serviceList = new ArrayList<>();
+            for (GattProfileCache.Service cachedService : cached.getServices()) {
+                BluetoothGattService service = new BluetoothGattService(cachedService.getUUID(), cachedService.getType());
+                for (GattProfileCache.Characteristic characteristic : cachedService.getCharacteristics())
+                    service.addCharacteristic(new BluetoothGattCharacteristic(characteristic.getUUID(), characteristic.getProperties(), 0));
+                serviceList.add(service);
+            }
+            return serviceList;
+        }
+
+        //通过listener对应的分发器执行连接回调
+        private void notifyConnect(final int event, final List<BluetoothGattService> services) {
+            final OnConnectListener listener = this.listener;
+            if (listener == null)
+                return;
+            dispatch(listener, new Runnable() {
+                @Override
+                public void run() {
+                    switch (event) {
+                        case CONNECT_EVENT_CONNECTED:
+                            listener.onConnected();
+                            break;
+                        case CONNECT_EVENT_DISCONNECTED:
+                            listener.onDisconnect();
+                            break;
+                        case CONNECT_EVENT_SERVICES:
+                            listener.onFoundBleUUIDs(services);
+                            break;
+                        default:
+                            listener.onError();
+                            break;
+                    }
+                }
+            }, eventKeys[event]);
+        }
+
+        //连接断开：索引失效，还没有完成的GATT操作都回调onError，订阅回调onError，连接参数恢复默认值
+        private void onLinkLost() {
+            poller.stop();
+            GattIndex old = index;
+            index = null;
+            if (old != null)
+                old.valid = false;
+            GattQueue lost = queue;
+            queue = new GattQueue(gattScheduler, GattQueue.DEFAULT_CAPACITY, gattArbiter);
+            lost.close();
+            cancelSubscriptions();
+            mtu = BLE_DEFAULT_MTU;
+            connectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+            txPhy = BluetoothDevice.PHY_LE_1M;
+            rxPhy = BluetoothDevice.PHY_LE_1M;
+            services = null;
+            mtuRequested = false;
+            codecReady = false;
+        }
+
+        /**
+         * 读取外设的压缩能力特征值，外设支持时写入本端的hello，写入成功后开始编码
+         * 两个操作排在GATT队列中，之前发起的读写不受影响，之后发起的读写在写入成功后才编码
+         */
+        private void negotiateCompression(final GattIndex index) {
+            final CharacteristicHandle handle = index.get(bleCompressionServiceUUID, bleCompressionCharacterUUID);
+            if (handle == null)
+                return;
+            final BluetoothGattCharacteristic characteristic = handle.characteristic;
+            index.queue.enqueue(new GattQueue.Operation(characteristic, gattTimeout) {
+                @Override
+                protected boolean start() {
+                    return handle.isValid() && index.gatt.readCharacteristic(characteristic);
+                }
+
+                @Override
+                protected void onComplete(int status, byte[] value) {
+                    if (status != GattQueue.STATUS_SUCCESS || value == null)
+                        return;
+                    int codecs = PayloadCodec.parseHello(value, 0, value.length);
+                    if (codecs != -1 && (codecs & PayloadCodec.CODEC_DEFLATE) != 0)
+                        sendHello(index, handle);
+                }
+            });
+        }
+
+        private void sendHello(final GattIndex index, final CharacteristicHandle handle) {
+            final BluetoothGattCharacteristic characteristic = handle.characteristic;
+            index.queue.enqueue(new GattQueue.Operation(characteristic, gattTimeout) {
+                @Override
+                protected boolean start() {
+                    if (!handle.isValid())
+                        return false;
+                    characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+                    characteristic.setValue(PayloadCodec.hello(PayloadCodec.CODEC_DEFLATE));
+                    return index.gatt.writeCharacteristic(characteristic);
+                }
+
+                @Override
+                protected void onComplete(int status, byte[] value) {
+                    //服务改变后旧索引上的结果不算数
+                    if (status == GattQueue.STATUS_SUCCESS && handle.isValid())
+                        codecReady = true;
+                }
+            });
+        }
+
+        private void requestMtu(final BluetoothGatt gatt) {
+            mtuRequested = true;
+            queue.enqueue(new GattQueue.Operation(MTU_REQUEST, gattTimeout) {
+                @Override
+                protected boolean start() {
+                    return gatt.requestMtu(BLE_MAX_MTU);
+                }
+
+                @Override
+                protected void onComplete(int status, byte[] value) {
+                }
+            });
+        }
+
+        //在IO线程中读取缓存，一般在连接建立之前完成，否则本次连接不使用缓存
+        void loadProfile() {
+            executeIo("BluetoothHelper-GattCache", new Runnable() {
+                @Override
+                public void run() {
+                    GattProfileCache.Profile cached = gattCache.load(mac);
+                    if (cached != null && services == null && !closed)
+                        profile = cached;
+                }
+            });
+        }
+
+        //在后台比较实际的服务表与缓存，不一致时删除缓存，然后保存新的服务表
+        private void validateProfile(List<BluetoothGattService> serviceList) {
+            services = serviceList;
+            final GattProfileCache.Profile cached = profile;
+            final GattProfileCache.Profile live = buildProfile();
+            executeIo("BluetoothHelper-GattCache", new Runnable() {
+                @Override
+                public void run() {
+                    if (cached != null && cached.sameServices(live)) {
+                        //MTU还没有协商完成时在onMtuChanged中保存
+                        if (cached.getChosen().size() == live.getChosen().size()
+                                && (live.getMtu() == cached.getMtu() || live.getMtu() == BLE_DEFAULT_MTU))
+                            return;
+                    } else if (cached != null) {
+                        Log.w(TAG, "gatt cache of " + mac + " is out of date");
+                        gattCache.invalidate(mac);
+                    }
+                    profile = live;
+                    gattCache.save(live);
+                }
+            });
+        }
+
+        //用户获取了特征值的句柄，第一次获取时更新缓存
+        void choose(UUID serviceUUID, UUID characterUUID) {
+            synchronized (chosen) {
+                for (UUID[] pair : chosen) {
+                    if (pair[0].equals(serviceUUID) && pair[1].equals(characterUUID))
+                        return;
+                }
+                chosen.add(new UUID[]{serviceUUID, characterUUID});
+            }
+            if (gattCacheEnabled && services != null)
+                saveProfile();
+        }
+
+        private void saveProfile() {
+            final GattProfileCache.Profile live = buildProfile();
+            profile = live;
+            executeIo("BluetoothHelper-GattCache", new Runnable() {
+                @Override
+                public void run() {
+                    gattCache.save(live);
+                }
+            });
+        }
+
+        //由最近一次发现的服务、当前MTU、使用过的特征值建立缓存；这次连接还没有使用的特征值沿用缓存中的记录
+        private GattProfileCache.Profile buildProfile() {
+            GattProfileCache.Builder builder = new GattProfileCache.Builder(mac, mtu);
+            List<BluetoothGattService> serviceList = services;
+            if (serviceList != null) {
+                for (BluetoothGattService service : serviceList) {
+                    builder.addService(service.getUuid(), service.getType());
+                    for (BluetoothGattCharacteristic characteristic : service.getCharacteristics())
+                        builder.addCharacteristic(characteristic.getUuid(), characteristic.getProperties());
+                }
+            }
+            synchronized (chosen) {
+                for (UUID[] pair : chosen)
+                    builder.choose(pair[0], pair[1]);
+            }
+            GattProfileCache.Profile cached = profile;
+            if (cached != null) {
+                for (GattProfileCache.Characteristic characteristic : cached.getChosen())
+                    builder.choose(characteristic.getServiceUUID(), characteristic.getUUID());
+            }
+            return builder.build();
+        }
+
+        //旧的特征值对象不会再收到通知，所有订阅回调onError，由用户重新订阅
+        private void cancelSubscriptions() {
+            for (Subscription subscription : subscriptions.values())
+                subscription.notifySubscribed(false);
+            subscriptions.clear();
+        }
+
+        //请求连接优先级，系统没有回调，成功发起即认为生效
+        boolean applyConnectionPriority(int priority) {
+            BluetoothGatt gatt = this.gatt;
+            if (gatt == null || !gatt.requestConnectionPriority(priority))
+                return false;
+            connectionPriority = priority;
+            return true;
+        }
+
+        //一个批量写入结束，是最后一个时恢复空闲的优先级
+        void endBulkWrite() {
+            if (bulkCount.decrementAndGet() == 0 && state == BLE_CONNECTED)
+                applyConnectionPriority(idleConnectionPriority);
+        }
+
+        //压缩协商成功后编码写入的数据，在GATT操作发起时调用
+        byte[] encode(byte[] data) {
+            return codecReady ? encode(data, 0, data.length) : data;
+        }
+
+        byte[] encode(byte[] data, int offset, int length) {
+            synchronized (codec) {
+                int capacity = PayloadCodec.maxEncodedSize(length);
+                if (encodeBuffer == null || encodeBuffer.length < capacity)
+                    encodeBuffer = new byte[Math.max(capacity, BLE_MAX_MTU)];
+                return Arrays.copyOf(encodeBuffer, codec.encode(data, offset, length, encodeBuffer, 0));
+            }
+        }
+
+        //压缩协商成功后解码读取的数据，数据格式错误时返回null
+        byte[] decode(byte[] value) {
+            if (!codecReady || value == null)
+                return value;
+            //读取、通知、轮询的结果可能在不同线程中解码，与encode共用codec的锁，Inflater也不能同时使用
+            synchronized (codec) {
+                if (decodeBuffer == null)
+                    decodeBuffer = new byte[codec.getMaxSize()];
+                try {
+                    return Arrays.copyOf(decodeBuffer, codec.decode(value, 0, value.length, decodeBuffer, 0));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return null;
+                }
+            }
+        }
+
+        //压缩协商成功后把通知解码到decodeBuffer中再放入ring，不为每个通知分配数组
+        boolean offerNotification(NotificationRing ring, Object source, byte[] value) {
+            if (!codecReady)
+                return ring.offer(source, value, 0, value.length);
+            synchronized (codec) {
+                if (decodeBuffer == null)
+                    decodeBuffer = new byte[codec.getMaxSize()];
+                try {
+                    return ring.offer(source, decodeBuffer, 0, codec.decode(value, 0, value.length, decodeBuffer, 0));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return false;
+                }
+            }
+        }
+
+        BleStats getStats() {
+            long start = connectedTime;
+            float elapsed = start == 0 ? 0 : (System.nanoTime() - start) / 1e9f;
+            long sent = bytesSent.get();
+            long received = bytesReceived.get();
+            return new BleStats(1, sent, received, elapsed <= 0 ? 0 : sent / elapsed, elapsed <= 0 ? 0 : received / elapsed);
+        }
+
+        //断开并释放连接，还没有完成的GATT操作都回调onError，不会回调onDisconnect
+        void close() {
+            closed = true;
+            handler.removeCallbacks(timeoutTask);
+            handler.removeCallbacks(retryTask);
+            state = BLE_DISCONNECTING;
+            listener = null;
+            poller.stop();
+            subscriptions.clear();
+            GattIndex old = index;
+            index = null;
+            if (old != null)
+                old.valid = false;
+            queue.close();
+            BluetoothGatt gatt = this.gatt;
+            if (gatt != null) {
+                gatt.disconnect();
+                gatt.close();
+                this.gatt = null;
+            }
+            state = BLE_DISCONNECTED;
+        }
+    }
+
+    /**
+     * 一个特征值的通知订阅
+     * GATT回调线程把通知放入缓冲区，缓冲区从空变为非空时向分发器提交一次drainTask，由drainTask成批取出
+     */
+    private class Subscription {
+        private final NotificationRing ring;
+        private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+        private volatile OnNotifyListener listener;
+        private volatile Object owner;//用于选择分发器
+
+        private final NotificationRing.BatchListener batchListener = new NotificationRing.BatchListener() {
+            @Override
+            public void onBatch(NotificationRing.Batch batch) {
+                listener.onNotify(batch);
+            }
+        };
+
+        private final Runnable drainTask = new DrainTask();
+        private final BleLink link;
+        private final Object drainKey;//分发器中的合并key，不同设备、不同特征值的通知不会互相替换
+
+        Subscription(BleLink link, BluetoothGattCharacteristic characteristic, OnNotifyListener listener, Object owner) {
+            this.link = link;
+            //槽位按当前的MTU分配，MTU变大后在收到更长的通知时扩大
+            this.ring = new NotificationRing(NOTIFICATION_RING_CAPACITY, link.mtu - 3, BLE_MAX_MTU - 3);
+            this.drainKey = link.mac + "/" + characteristic.getUuid();
+            this.listener = listener;
+            this.owner = owner;
+        }
+
+        void setListener(OnNotifyListener listener, Object owner) {
+            this.owner = owner;
+            this.listener = listener;
+        }
+
+        //在GATT回调线程中执行
+        void onNotify(BluetoothGattCharacteristic characteristic, byte[] value) {
+            if (value == null)
+                return;
+            link.bytesReceived.addAndGet(value.length);
+            link.offerNotification(ring, characteristic, value);
+            if (drainScheduled.compareAndSet(false, true))
+                dispatch(owner, drainTask, drainKey);
+        }
+
+        void notifySubscribed(final boolean success) {
+            final OnNotifyListener listener = this.listener;
+            dispatch(owner, new Runnable() {
+                @Override
+                public void run() {
+                    if (success)
+                        listener.onSubscribed();
+                    else
+                        listener.onError();
+                }
+            });
+        }
+
+        //被分发器丢弃时只清除标记，缓冲区中的通知留给下一次drain
+        private class DrainTask implements Runnable, CallbackDispatcher.Droppable {
+            @Override
+            public void run() {
+                //先清除标记再取出，取出期间到达的通知会重新提交drainTask，不会遗漏
+                drainScheduled.set(false);
+                ring.drain(batchListener, NOTIFICATION_MAX_BATCH);
+                //每次只取出一批，剩下的重新排队，多个设备的通知在分发器中轮流交给listener
+                if (ring.size() > 0 && drainScheduled.compareAndSet(false, true))
+                    dispatch(owner, this, drainKey);
+            }
+
+            @Override
+            public void onDropped() {
+                drainScheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * readMessage的一次执行，每个分片一次读取，上一次读取完成后才排入下一次
+     */
+    private class MessageReader implements BleReassembler.MessageListener {
+        private final CharacteristicHandle handle;
+        private final BleReassembler reassembler;
+        private final OnMessageListener listener;
+        private int resyncCount;//连续收到不属于任何消息的分片的次数
+
+        MessageReader(CharacteristicHandle handle, BleReassembler reassembler, OnMessageListener listener) {
+            this.handle = handle;
+            this.reassembler = reassembler;
+            this.listener = listener;
+        }
+
+        void readNext() {
+            final BluetoothGatt gatt = handle.index.gatt;
+            final BluetoothGattCharacteristic characteristic = handle.characteristic;
+            boolean queued = handle.index.queue.enqueue(new GattQueue.Operation(characteristic, gattTimeout) {
+                @Override
+                protected boolean start() {
+                    return handle.isValid() && gatt.readCharacteristic(characteristic);
+                }
+
+                @Override
+                protected void onComplete(int status, byte[] value) {
+                    onFragment(status, value);
+                }
+            });
+            if (!queued)
+                notifyMessage(listener, null);
+        }
+
+        //在GATT回调线程中执行
+        private void onFragment(int status, byte[] value) {
+            if (status != GattQueue.STATUS_SUCCESS || value == null) {
+                notifyMessage(listener, null);
+                return;
+            }
+            BleLink link = handle.index.link;
+            link.bytesReceived.addAndGet(value.length);
+            value = link.decode(value);
+            if (value == null) {
+                notifyMessage(listener, null);
+                return;
+            }
+            if (reassembler.feed(value, 0, value.length, this) > 0)
+                return;
+            if (reassembler.isAssembling()) {
+                resyncCount = 0;
+                readNext();
+            } else if (++resyncCount <= MESSAGE_READ_MAX_RESYNC) {
+                readNext();
+            } else {
+                notifyMessage(listener, null);
+            }
+        }
+
+        @Override
+        public void onMessage(byte[] data, int offset, int length) {
+            notifyMessage(listener, Arrays.copyOfRange(data, offset, offset + length));
+        }
+    }
+
+    /**
+     * 一个已建立的经典蓝牙连接，拥有自己的读取线程、写入线程和listener
+     */
+    private class ClassicLink {
+        private final BluetoothSocket socket;
+        private final InputStream inputStream;//压缩握手时包装过的socket输入流
+        private final String acceptedMac;//多客户端服务器接入的连接才有，关闭时从acceptedLinks中移除
+
+        //协商了压缩时不为null，此时每次write的数据单独编码并加上4个字节的长度前缀，读取线程切出每条消息解码后再交给listener
+        final PayloadCodec codec;
+        private final FrameDecoder wireDecoder;
+        private volatile FrameDecoder userDecoder;
+        private byte[] encodeBuffer;//由codec保护
+        private byte[] decodeBuffer;//只在读取线程中使用
+
+        private volatile OnBufferReadListener readListener;
+        private volatile OnFrameListener frameListener;
+        private volatile boolean closed;
+        private volatile boolean corrupted;//收到的压缩数据无法解码
+
+        private ClassicReader reader;//每个连接只有一个读取线程
+        private BufferPool pool;
+        private ClassicWriteQueue writeQueue;//每个连接只有一个写入线程
+
+        //在分发器线程把缓冲池中的数据交给用户，用户没有设置listener时直接归还
+        private final BufferPool.Delivery delivery = new BufferPool.Delivery() {
+            @Override
+            public void deliver(BufferPool.Buffer buffer) {
+                OnBufferReadListener listener = readListener;
+                if (listener != null)
+                    listener.onReceived(buffer);
+                else
+                    buffer.release();
+            }
+        };
+
+        ClassicLink(BluetoothSocket socket, InputStream inputStream, String acceptedMac, PayloadCodec codec) {
+            this.socket = socket;
+            this.inputStream = inputStream;
+            this.acceptedMac = acceptedMac;
+            this.codec = codec;
+            this.wireDecoder = codec == null ? null
+                    : new FrameDecoder(Framer.lengthPrefixed(4, PayloadCodec.maxEncodedSize(codec.getMaxSize())));
+        }
+
+        void read(OnBufferReadListener listener) {
+            this.readListener = listener;
+            this.frameListener = null;
+            startReader(null);
+        }
+
+        void read(Framer framer, OnFrameListener listener) {
+            this.frameListener = listener;
+            this.readListener = null;
+            startReader(new FrameDecoder(framer));
+        }
+
+        //启动读取线程，如果已经在读取，只切换读取模式
+        private synchronized void startReader(FrameDecoder frameDecoder) {
+            if (closed)
+                return;
+
+            //压缩时读取线程始终按长度前缀分帧，用户的FrameDecoder在解码后使用
+            if (codec != null) {
+                userDecoder = frameDecoder;
+                frameDecoder = wireDecoder;
+            }
+
+            if (reader != null && reader.isRunning()) {
+                reader.setFrameDecoder(frameDecoder);
+                return;
+            }
+
+            pool = new BufferPool(CLASSIC_READ_BUFFER_COUNT, CLASSIC_READ_BUFFER_SIZE, delivery);
+            reader = new ClassicReader(inputStream, pool, new ClassicReader.Callback() {
+                @Override
+                public void onReceived(BufferPool.Buffer buffer) {
+                    //通过分发器执行回调，Buffer本身就是Runnable
+                    dispatch(readListener, buffer);
+                }
+
+                @Override
+                public void onFrame(byte[] data, int offset, int length) {
+                    if (codec != null) {
+                        onEncodedFrame(data, offset, length);
+                        return;
+                    }
+                    OnFrameListener listener = frameListener;
+                    if (listener != null)
+                        listener.onFrame(data, offset, length);
+                }
+
+                @Override
+                public void onEnd(IOException e) {
+                    if (e != null)
+                        e.printStackTrace();
+                    notifyReadEnd(e);
+                    //多客户端服务器中对方断开后，移除该连接
+                    if (acceptedMac != null && acceptedLinks.remove(acceptedMac, ClassicLink.this)) {
+                        close();
+                        notifyAccept(acceptListener, acceptedMac, ACCEPT_EVENT_DISCONNECTED);
+                    }
+                }
+            });
+            reader.setFrameDecoder(frameDecoder);
+            if (!executeLoop("BluetoothHelper-reader", reader)) {
+                reader.stop();
+                reader = null;
+                notifyReadEnd(new IOException("too many bluetooth I/O tasks"));
+                failNoThread();
+            }
+        }
+
+        //没有空闲线程执行读取或写入时关闭连接，不能让连接看起来正常却永远不收发数据
+        private void failNoThread() {
+            if (acceptedMac != null && acceptedLinks.remove(acceptedMac, this)) {
+                close();
+                notifyAccept(acceptListener, acceptedMac, ACCEPT_EVENT_DISCONNECTED);
+            } else {
+                close();
+            }
+        }
+
+        //解码一条压缩消息，再按用户的读取模式交给listener，在读取线程中执行
+        private void onEncodedFrame(byte[] data, int offset, int length) {
+            if (decodeBuffer == null)
+                decodeBuffer = new byte[codec.getMaxSize()];
+            try {
+                int size = codec.decode(data, offset, length, decodeBuffer, 0);
+                FrameDecoder decoder = userDecoder;
+                if (decoder != null)
+                    decoder.feed(decodeBuffer, 0, size, userFrameListener);
+                else
+                    deliverDecoded(size);
+            } catch (IOException e) {
+                //之后的数据已不可信，断开连接，读取线程结束时回调onError
+                e.printStackTrace();
+                corrupted = true;
+                close();
+            }
+        }
+
+        private final FrameDecoder.OnFrameListener userFrameListener = new FrameDecoder.OnFrameListener() {
+            @Override
+            public void onFrame(byte[] data, int offset, int length) {
+                OnFrameListener listener = frameListener;
+                if (listener != null)
+                    listener.onFrame(data, offset, length);
+            }
+        };
+
+        //把解码后的数据按缓冲池的大小分块交给OnBufferReadListener，缓冲池耗尽时和未压缩时一样暂停读取
+        private void deliverDecoded(int size) {
+            int offset = 0;
+            while (offset < size && !closed) {
+                BufferPool.Buffer buffer;
+                try {
+                    buffer = pool.acquire(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (buffer == null)
+                    continue;
+                int length = Math.min(size - offset, buffer.getData().length);
+                System.arraycopy(decodeBuffer, offset, buffer.getData(), 0, length);
+                buffer.setLength(length);
+                offset += length;
+                dispatch(readListener, buffer);
+            }
+        }
+
+        //压缩时把一次写入编码成一条带长度前缀的消息，返回null表示数据太大
+        private byte[] encode(byte[] data, int offset, int length) {
+            if (length > codec.getMaxSize())
+                return null;
+            synchronized (codec) {
+                int capacity = 4 + PayloadCodec.maxEncodedSize(length);
+                if (encodeBuffer == null || encodeBuffer.length < capacity)
+                    encodeBuffer = new byte[Math.max(capacity, CLASSIC_READ_BUFFER_SIZE)];
+                int size = codec.encode(data, offset, length, encodeBuffer, 4);
+                encodeBuffer[0] = (byte) (size >>> 24);
+                encodeBuffer[1] = (byte) (size >>> 16);
+                encodeBuffer[2] = (byte) (size >>> 8);
+                encodeBuffer[3] = (byte) size;
+                return Arrays.copyOf(encodeBuffer, 4 + size);
+            }
+        }
+
+        synchronized ClassicReader.Stats getReadStats() {
+            return reader == null ? null : reader.getStats();
+        }
+
+        //读取结束，外部关闭连接会抛出异常，但没有读写出错
+        private void notifyReadEnd(IOException e) {
+            final boolean isClosed = !corrupted && (e == null || closed || !socket.isConnected());
+
+            //按帧读取时在读取线程执行回调
+            OnFrameListener frameListener = this.frameListener;
+            if (frameListener != null) {
+                if (isClosed)
+                    frameListener.onClose();
+                else
+                    frameListener.onError();
+            }
+
+            //通过listener对应的分发器执行回调
+            final OnBufferReadListener readListener = this.readListener;
+            if (readListener != null) {
+                dispatch(readListener, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isClosed)
+                            readListener.onClose();
+                        else
+                            readListener.onError();
+                    }
+                });
+            }
+        }
+
+        void write(byte[] data, OnWriteListener listener) {
+            if (codec != null && (data = encode(data, 0, data.length)) == null) {
+                postWriteResult(listener, false);
+                return;
+            }
+            ClassicWriteQueue writeQueue = getWriteQueue();
+            //队列已满时不阻塞调用线程，直接回调写入失败
+            if (writeQueue == null || !writeQueue.offer(data, listener))
+                postWriteResult(listener, false);
+        }
+
+        //内部发送，不阻塞调用线程，写入后在写入线程执行onSent
+        boolean write(byte[] data, int offset, int length, Runnable onSent) {
+            if (codec != null) {
+                data = encode(data, offset, length);
+                if (data == null)
+                    return false;
+                offset = 0;
+                length = data.length;
+            }
+            ClassicWriteQueue writeQueue = getWriteQueue();
+            return writeQueue != null && writeQueue.offer(data, offset, length, onSent);
+        }
+
+        //第一次写入时才创建写入线程
+        private synchronized ClassicWriteQueue getWriteQueue() {
+            if (closed)
+                return null;
+            if (writeQueue != null && writeQueue.isRunning())
+                return writeQueue;
+
+            OutputStream outputStream;
+            try {
+                outputStream = socket.getOutputStream();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+
+            writeQueue = new ClassicWriteQueue(outputStream, new ClassicWriteQueue.Callback() {
+                @Override
+                public void onWritten(Object tag) {
+                    //内部发送（例如文件传输）的tag是Runnable，直接在写入线程执行
+                    if (tag instanceof Runnable)
+                        ((Runnable) tag).run();
+                    else
+                        postWriteResult((OnWriteListener) tag, true);
+                }
+
+                @Override
+                public void onFailed(Object tag, IOException e) {
+                    if (e != null)
+                        e.printStackTrace();
+                    if (!(tag instanceof Runnable))
+                        postWriteResult((OnWriteListener) tag, false);
+                }
+            }, ClassicWriteQueue.DEFAULT_CAPACITY, classicWriteMaxBatchSize, classicWriteMaxLatency);
+            if (!executeLoop("BluetoothHelper-writer", writeQueue)) {
+                writeQueue.stop();
+                writeQueue = null;
+                failNoThread();
+            }
+            return writeQueue;
+        }
+
+        //停止读取、写入线程并关闭socket，阻塞中的read会在socket关闭后返回，可以重复调用
+        void close() {
+            synchronized (this) {
+                if (closed)
+                    return;
+                closed = true;
+                if (reader != null)
+                    reader.stop();
+                if (writeQueue != null)
+                    writeQueue.stop();
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 已解析的特征值句柄，由getCharacteristic获取，同一个连接中可以一直复用
+     */
+    public static class CharacteristicHandle {
+        private final GattIndex index;
+        private final BluetoothGattCharacteristic characteristic;
+
+        CharacteristicHandle(GattIndex index, BluetoothGattCharacteristic characteristic) {
+            this.index = index;
+            this.characteristic = characteristic;
+        }
+
+        public UUID getServiceUUID() {
+            return characteristic.getService().getUuid();
+        }
+
+        public UUID getUUID() {
+            return characteristic.getUuid();
+        }
+
+        public BluetoothGattCharacteristic getCharacteristic() {
+            return characteristic;
+        }
+
+        //句柄所属设备的mac
+        public String getAddress() {
+            return index.link.mac;
+        }
+
+        //连接断开或服务改变后返回false，此时用该句柄发起的操作都会立即失败
+        public boolean isValid() {
+            return index.valid;
+        }
+    }
+
+    /**
+     * 一次服务发现得到的服务、特征值索引，建立后不再修改
+     */
+    private static class GattIndex {
+        final BleLink link;
+        final BluetoothGatt gatt;
+        final GattQueue queue;
+        private final HashMap<UUID, HashMap<UUID, CharacteristicHandle>> handles = new HashMap<>();
+        volatile boolean valid = true;
+
+        GattIndex(BleLink link, BluetoothGatt gatt, GattQueue queue, List<BluetoothGattService> services) {
+            this.link = link;
+            this.gatt = gatt;
+            this.queue = queue;
+            if (services == null)
+                return;
+            for (BluetoothGattService service : services) {
+                //同一个UUID有多个服务时与BluetoothGatt#getService一致，使用第一个
+                if (handles.containsKey(service.getUuid()))
+                    continue;
+                HashMap<UUID, CharacteristicHandle> characteristics = new HashMap<>();
+                for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                    if (!characteristics.containsKey(characteristic.getUuid()))
+                        characteristics.put(characteristic.getUuid(), new CharacteristicHandle(this, characteristic));
+                }
+                handles.put(service.getUuid(), characteristics);
+            }
+        }
+
+        CharacteristicHandle get(UUID serviceUUID, UUID characterUUID) {
+            HashMap<UUID, CharacteristicHandle> characteristics = handles.get(serviceUUID);
+            return characteristics == null ? null : characteristics.get(characterUUID);
+        }
+    }
+
+    /**
+     * BLE吞吐量统计，字节数为实际收发的特征值长度（包括压缩标记、分片头），速率为从连接建立到现在的平均值
+     */
+    public static class BleStats {
+        private final int deviceCount;
+        private final long bytesSent;
+        private final long bytesReceived;
+        private final float sendRate;
+        private final float receiveRate;
+
+        BleStats(int deviceCount, long bytesSent, long bytesReceived, float sendRate, float receiveRate) {
+            this.deviceCount = deviceCount;
+            this.bytesSent = bytesSent;
+            this.bytesReceived = bytesReceived;
+            this.sendRate = sendRate;
+            this.receiveRate = receiveRate;
+        }
+
+        public int getDeviceCount() {
+            return deviceCount;
+        }
+
+        //写入和批量写入被协议栈接收的字节数
+        public long getBytesSent() {
+            return bytesSent;
+        }
+
+        //读取和通知收到的字节数
+        public long getBytesReceived() {
+            return bytesReceived;
+        }
+
+        //单位为字节/秒
+        public float getSendRate() {
+            return sendRate;
+        }
+
+        public float getReceiveRate() {
+            return receiveRate;
+        }
+
+        @Override
+        public String toString() {
+            return "devices=" + deviceCount + ", sent=" + bytesSent + ", received=" + bytesReceived
+                    + ", sendRate=" + sendRate + "B/s, receiveRate=" + receiveRate + "B/s";
+        }
+    }
+
+    /**
+     * 扫描统计，时间从调用scan开始计算，单位为毫秒，-1表示该种扫描还没有结果
+     */
+    public static class ScanStats {
+        private final int mode;
+        private final long classicFirstResultTime;
+        private final long bleFirstResultTime;
+        private final int classicResultCount;
+        private final int bleResultCount;
+        private final int bleFilteredCount;
+        private final boolean filterOffloaded;
+
+        //时间单位为纳秒
+        ScanStats(int mode, long classicFirstResultTime, long bleFirstResultTime, int classicResultCount, int bleResultCount,
+                  int bleFilteredCount, boolean filterOffloaded) {
+            this.mode = mode;
+            this.classicFirstResultTime = classicFirstResultTime;
+            this.bleFirstResultTime = bleFirstResultTime;
+            this.classicResultCount = classicResultCount;
+            this.bleResultCount = bleResultCount;
+            this.bleFilteredCount = bleFilteredCount;
+            this.filterOffloaded = filterOffloaded;
+        }
+
+        //SCAN_MODE_SEQUENTIAL或SCAN_MODE_CONCURRENT
+        public int getMode() {
+            return mode;
+        }
+
+        //经典蓝牙扫描到第一个设备的时间
+        public float getClassicFirstResultTime() {
+            return classicFirstResultTime < 0 ? -1 : classicFirstResultTime / 1e6f;
+        }
+
+        //BLE扫描到第一个设备的时间，顺序扫描时包括等待经典蓝牙扫描结束的时间
+        public float getBleFirstResultTime() {
+            return bleFirstResultTime < 0 ? -1 : bleFirstResultTime / 1e6f;
+        }
+
+        //经典蓝牙扫描结果数，包括重复的设备
+        public int getClassicResultCount() {
+            return classicResultCount;
+        }
+
+        //BLE扫描结果数，包括同一个设备的多次广播，不包括被过滤掉的
+        public int getBleResultCount() {
+            return bleResultCount;
+        }
+
+        //到达应用后被软件过滤掉的BLE扫描结果数，过滤条件交给系统时为0
+        public int getBleFilteredCount() {
+            return bleFilteredCount;
+        }
+
+        //过滤条件是否在控制器中执行，为false但有过滤条件时在协议栈或软件中过滤
+        public boolean isFilterOffloaded() {
+            return filterOffloaded;
+        }
+
+        @Override
+        public String toString() {
+            return "mode=" + mode + ", classicFirst=" + getClassicFirstResultTime() + "ms (" + classicResultCount
+                    + "), bleFirst=" + getBleFirstResultTime() + "ms (" + bleResultCount + ", filtered " + bleFilteredCount
+                    + (filterOffloaded ? ", offloaded" : "") + ")";
+        }
+    }
+
+    /**
+     * BLE连接耗时，时间单位都是毫秒，-1表示还没有完成
+     */
+    public static class ConnectStats {
+        private final int strategy;
+        private final int attempts;
+        private final long connectTime;
+        private final long servicesTime;
+        private final int reconnectCount;
+
+        //connectTime、servicesTime单位为纳秒
+        ConnectStats(int strategy, int attempts, long connectTime, long servicesTime, int reconnectCount) {
+            this.strategy = strategy;
+            this.attempts = attempts;
+            this.connectTime = connectTime;
+            this.servicesTime = servicesTime;
+            this.reconnectCount = reconnectCount;
+        }
+
+        //BLE_CONNECT_DIRECT或BLE_CONNECT_AUTO
+        public int getStrategy() {
+            return strategy;
+        }
+
+        //最近一次连接调用connectGatt的次数，大于1说明遇到了133并重试
+        public int getAttempts() {
+            return attempts;
+        }
+
+        //从connect（或连接断开）到连接建立的时间
+        public float getConnectTime() {
+            return connectTime < 0 ? -1 : connectTime / 1e6f;
+        }
+
+        //从connect（或连接断开）到发现服务的时间，之后才可以通信
+        public float getServicesTime() {
+            return servicesTime < 0 ? -1 : servicesTime / 1e6f;
+        }
+
+        //已经建立的连接断开后重连的次数
+        public int getReconnectCount() {
+            return reconnectCount;
+        }
+
+        @Override
+        public String toString() {
+            return "strategy=" + strategy + ", attempts=" + attempts + ", connectTime=" + getConnectTime() + "ms, servicesTime="
+                    + getServicesTime() + "ms, reconnects=" + reconnectCount;
+        }
+    }
+
+    /**
+     * BLE连接参数
+     */
+    public static class LinkParameters {
+        private final int mtu;
+        private final int connectionPriority;
+        private final int txPhy;
+        private final int rxPhy;
+        private final boolean le2MPhySupported;
+
+        LinkParameters(int mtu, int connectionPriority, int txPhy, int rxPhy, boolean le2MPhySupported) {
+            this.mtu = mtu;
+            this.connectionPriority = connectionPriority;
+            this.txPhy = txPhy;
+            this.rxPhy = rxPhy;
+            this.le2MPhySupported = le2MPhySupported;
+        }
+
+        public int getMtu() {
+            return mtu;
+        }
+
+        //最近一次成功请求的BluetoothGatt.CONNECTION_PRIORITY_*
+        public int getConnectionPriority() {
+            return connectionPriority;
+        }
+
+        //BluetoothDevice.PHY_LE_1M、PHY_LE_2M或PHY_LE_CODED
+        public int getTxPhy() {
+            return txPhy;
+        }
+
+        public int getRxPhy() {
+            return rxPhy;
+        }
+
+        //本机是否支持2M PHY，对方是否支持只能从getTxPhy、getRxPhy看出
+        public boolean isLe2MPhySupported() {
+            return le2MPhySupported;
+        }
+
+        @Override
+        public String toString() {
+            return "mtu=" + mtu + ", connectionPriority=" + connectionPriority + ", txPhy=" + txPhy + ", rxPhy=" + rxPhy
+                    + ", le2MPhySupported=" + le2MPhySupported;
+        }
+    }
+
+    public interface OnScanListener {
+        void onStart();
+
+        void onFound(BluetoothInfo info);
+
+        void onStop();
+
+        void onCancel();
+
+        void onError();
+    }
+
+    /**
+     * 批量扫描回调，BleScanFilter设置了reportDelay时BLE扫描到的新设备每批只回调一次onFoundBatch，
+     * 经典蓝牙扫描的结果仍然逐个回调onFound；没有设置reportDelay时与OnScanListener相同
+     */
+    public interface OnBatchScanListener extends OnScanListener {
+        //list中都是第一次扫描到的设备
+        void onFoundBatch(List<BluetoothInfo> list);
+    }
+
+    /**
+     * 扫描到的设备改变或丢失时的回调，onUpdated对同一个设备的频率见setScanUpdateRate，
+     * 回调的BluetoothInfo与onFound中的是同一个对象，只需要刷新该设备
+     */
+    public interface OnScanUpdateListener extends OnScanListener {
+        //changes为BluetoothInfo.CHANGE_*的组合
+        void onUpdated(BluetoothInfo info, int changes);
+
+        //BLE设备超过setScanLostTimeout的时间没有被扫描到
+        void onLost(BluetoothInfo info);
+    }
+
+    public interface OnConnectListener {
+        void onConnected();
+
+        void onFoundBleUUIDs(List<BluetoothGattService> serviceList);
+
+        void onError();
+
+        void onDisconnect();
+    }
+
+    public interface OnReadListener {
+        void onReceived(byte[] data);
+
+        void onError();
+
+        void onClose();
+    }
+
+    /**
+     * 经典蓝牙读取回调，buffer在调用release()之前归回调方所有，可以交给其他线程处理
+     */
+    public interface OnBufferReadListener {
+        void onReceived(BufferPool.Buffer buffer);
+
+        void onError();
+
+        void onClose();
+    }
+
+    /**
+     * 经典蓝牙按帧读取回调，所有方法都在读取线程中执行
+     * data只在onFrame执行期间有效，需要保留或交给其他线程时必须复制[offset, offset + length)
+     */
+    public interface OnFrameListener {
+        void onFrame(byte[] data, int offset, int length);
+
+        void onError();
+
+        void onClose();
+    }
+
+    /**
+     * 经典蓝牙多客户端服务器回调
+     * onDisconnected只有在该连接正在读取时才能及时发现对方断开
+     */
+    public interface OnAcceptListener {
+        void onAccepted(String mac);
+
+        void onDisconnected(String mac);
+
+        void onError();
+    }
+
+    /**
+     * 文件传输回调，transferred包括续传之前已经传输的部分
+     */
+    public interface OnFileTransferListener {
+        void onProgress(long transferred, long total);
+
+        void onComplete(File file);
+
+        void onError();
+    }
+
+    /**
+     * BLE通知回调，onNotify每次收到一批通知，batch只在回调执行期间有效
+     * batch.getSource(i)是该通知来源的BluetoothGattCharacteristic
+     */
+    public interface OnNotifyListener {
+        void onSubscribed();
+
+        void onNotify(NotificationRing.Batch batch);
+
+        void onError();
+    }
+
+    /**
+     * 轮询回调，只在读取结果改变时回调onChanged
+     */
+    public interface OnPollListener {
+        void onChanged(byte[] data);
+
+        //一次读取失败，轮询继续
+        void onError();
+    }
+
+    /**
+     * BLE分片消息回调，data只在onMessage执行期间有效，需要保留时必须复制[offset, offset + length)
+     */
+    public interface OnMessageListener {
+        void onMessage(byte[] data, int offset, int length);
+
+        void onError();
+    }
+
+    /**
+     * BLE批量写入回调，OVERFLOW_COALESCE时进度回调只保留最新的
+     */
+    public interface OnBulkWriteListener {
+        void onProgress(int sent, int total);
+
+        //throughput为有效吞吐量，单位为字节/秒
+        void onComplete(float throughput);
+
+        void onError();
+    }
+
+    public interface OnWriteListener {
+        void onSuccess();
+
+        void onError();
+    }
+
+
+    public static class BluetoothInfo {
+        public static final int SUPPORT_TYPE_CLASSIC = 1;
+        public static final int SUPPORT_TYPE_BLE = 2;
+        public static final int SUPPORT_TYPE_ALL = 3;//同时支持经典蓝牙和BLE蓝牙
+
+        //OnScanUpdateListener#onUpdated中改变的内容
+        public static final int CHANGE_RSSI = 1;
+        public static final int CHANGE_NAME = 2;
+        public static final int CHANGE_SUPPORT_TYPE = 4;
+        public static final int CHANGE_CLASSIC_UUIDS = 8;
+
+        private int supportType;
+        private String name;
+        private String mac;
+        private int rssi;//信号强度
         private ArrayList<UUID> classicUUIDList;
 
+        //扫描时使用，只在主线程中访问
+        boolean reported;//已经回调过onFound
+        int pendingChanges;//还没有回调onUpdated的改变
+        int dispatchedChanges;//已经交给分发器、还没有交给onUpdated的改变，由自身保护，分发器合并回调时不会丢失
+        long lastBleSeen;//最近一次被BLE扫描到的System.nanoTime()，0表示没有被BLE扫描到
+
         public int getSupportType() {
             return supportType;
         }
@@ -0,0 +1,118 @@
+package com.s10715.bluetoothhelper.utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 固定数量、固定大小的接收缓冲池
+ * 读取线程从池中取出Buffer，读满数据后交给回调方，回调方用完后调用Buffer#release()归还
+ * 所有Buffer在构造时一次性分配，稳定运行时不会产生新的对象
+ */
+public class BufferPool {
+
+    private final ArrayBlockingQueue<Buffer> freeBuffers;
+    private final int bufferSize;
+    private final int bufferCount;
+    private final Delivery delivery;
+
+    /**
+     * @param delivery Buffer#run()被调用时的处理方，为null时run()直接归还Buffer
+     */
+    public BufferPool(int bufferCount, int bufferSize, Delivery delivery) {
+        this.bufferCount = bufferCount;
+        this.bufferSize = bufferSize;
+        this.delivery = delivery;
+
+        freeBuffers = new ArrayBlockingQueue<>(bufferCount);
+        for (int i = 0; i < bufferCount; i++)
+            freeBuffers.offer(new Buffer(this, bufferSize));
+    }
+
+    /**
+     * 取出一个空闲的Buffer，没有空闲Buffer时最多等待timeout毫秒
+     *
+     * @return 超时返回null
+     */
+    public Buffer acquire(long timeout) throws InterruptedException {
+        Buffer buffer = freeBuffers.poll(timeout, TimeUnit.MILLISECONDS);
+        if (buffer != null) {
+            buffer.length = 0;
+            buffer.inUse.set(true);
+        }
+        return buffer;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getBufferCount() {
+        return bufferCount;
+    }
+
+    //当前空闲的Buffer数量，等于getBufferCount()时说明所有数据都已经被处理完
+    public int getFreeCount() {
+        return freeBuffers.size();
+    }
+
+    private void recycle(Buffer buffer) {
+        freeBuffers.offer(buffer);
+    }
+
+
+    public interface Delivery {
+        void deliver(Buffer buffer);
+    }
+
+    /**
+     * Buffer本身实现了Runnable，post到Handler时不需要再为每块数据创建新的Runnable
+     * 被CallbackDispatcher丢弃时自动归还
+     */
+    public static class Buffer implements Runnable, CallbackDispatcher.Droppable {
+        private final BufferPool pool;
+        private final byte[] data;
+        private int length;
+        private final AtomicBoolean inUse = new AtomicBoolean();
+
+        private Buffer(BufferPool pool, int size) {
+            this.pool = pool;
+            this.data = new byte[size];
+        }
+
+        //只有[0, getLength())之间的数据有效
+        public byte[] getData() {
+            return data;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public void setLength(int length) {
+            this.length = length;
+        }
+
+        /**
+         * 归还到缓冲池，归还后不能再访问getData()返回的数组
+         * 重复调用只会归还一次，多个线程同时调用（例如用户release时分发器丢弃）也是如此
+         */
+        public void release() {
+            if (inUse.compareAndSet(true, false))
+                pool.recycle(this);
+        }
+
+        @Override
+        public void run() {
+            if (pool.delivery != null)
+                pool.delivery.deliver(this);
+            else
+                release();
+        }
+
+        @Override
+        public void onDropped() {
+            release();
+        }
+    }
+}
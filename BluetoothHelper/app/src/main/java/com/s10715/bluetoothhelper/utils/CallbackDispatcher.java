@@ -0,0 +1,257 @@
+package com.s10715.bluetoothhelper.utils;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 回调分发器，决定用户回调在哪个线程执行，并限制等待执行的回调数量
+ * TARGET_MAIN：在主线程执行，主线程的消息队列中同一时间最多只有一个分发任务
+ * TARGET_BACKGROUND：在分发器自己的后台线程执行
+ * TARGET_INLINE：在产生回调的线程（读取线程、写入线程、Binder线程等）直接执行，不经过队列
+ * 队列已满时按overflowPolicy处理：阻塞产生回调的线程、丢弃最早的回调、或合并同一个key的回调只保留最新的
+ * TARGET_MAIN不能使用OVERFLOW_BLOCK，回调常常在主线程产生，主线程等待自己执行回调会卡死界面
+ */
+public class CallbackDispatcher implements Executor {
+
+    public static final int TARGET_MAIN = 1;
+    public static final int TARGET_BACKGROUND = 2;
+    public static final int TARGET_INLINE = 3;
+
+    public static final int OVERFLOW_BLOCK = 1;//阻塞产生回调的线程，直到队列有空位，不能用于TARGET_MAIN
+    public static final int OVERFLOW_DROP_OLDEST = 2;//丢弃队列中最早的回调
+    public static final int OVERFLOW_COALESCE = 3;//同一个key还没有执行的回调只保留最新的一次，没有key或该key没有在排队的回调按OVERFLOW_DROP_OLDEST处理
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    //主线程每次最多连续执行的回调数，超过后重新post，避免长时间占用主线程
+    private static final int MAIN_DRAIN_BATCH = 64;
+    //最多保留的空闲Slot数
+    private static final int MAX_FREE_SLOTS = 64;
+
+    private final int target;
+    private final int overflowPolicy;
+    private final Executor mainExecutor;
+    private final ArrayBlockingQueue<Runnable> queue;
+
+    //OVERFLOW_COALESCE时带key的回调包装在Slot中排队，表中是每个key最后排队的Slot，队列满时替换其中的回调；
+    //Slot执行或被丢弃后就从表中移除，key（例如每个扫描到的设备）不会一直保留，移除的Slot放回freeSlots重复使用，稳定运行时不会分配新对象
+    private final HashMap<Object, CoalesceSlot> coalesceSlots = new HashMap<>();//由自身保护
+    private final ArrayDeque<CoalesceSlot> freeSlots = new ArrayDeque<>();//由coalesceSlots保护
+
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile Thread drainThread;//执行回调的线程，在该线程上提交回调时不能阻塞
+    private volatile boolean running = true;
+
+    private final Runnable mainDrainTask = new Runnable() {
+        @Override
+        public void run() {
+            drainThread = Thread.currentThread();
+            for (int i = 0; i < MAIN_DRAIN_BATCH; i++) {
+                Runnable task = queue.poll();
+                if (task == null)
+                    break;
+                runSafely(task);
+            }
+            drainScheduled.set(false);
+            if (!queue.isEmpty())
+                scheduleMainDrain();
+        }
+    };
+
+    /**
+     * @param mainExecutor target为TARGET_MAIN时用于把分发任务交给主线程，一般由BluetoothHelper#createCallbackDispatcher提供
+     */
+    public CallbackDispatcher(int target, int capacity, int overflowPolicy, Executor mainExecutor) {
+        if (target == TARGET_MAIN && mainExecutor == null)
+            throw new IllegalArgumentException("mainExecutor is required for TARGET_MAIN");
+        if (target == TARGET_MAIN && overflowPolicy == OVERFLOW_BLOCK)
+            throw new IllegalArgumentException("OVERFLOW_BLOCK can not be used with TARGET_MAIN");
+        this.target = target;
+        this.overflowPolicy = overflowPolicy;
+        this.mainExecutor = mainExecutor;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+
+        if (target == TARGET_BACKGROUND) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    drainThread = Thread.currentThread();
+                    while (running) {
+                        try {
+                            runSafely(queue.take());
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                }
+            }, "BluetoothHelper-dispatch");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public int getTarget() {
+        return target;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        execute(task, null);
+    }
+
+    /**
+     * @param coalesceKey 只在OVERFLOW_COALESCE时有效，队列已满时同一个key还没有执行的回调会被新的回调替换
+     */
+    public void execute(Runnable task, Object coalesceKey) {
+        if (task == null || !running)
+            return;
+
+        if (target == TARGET_INLINE) {
+            runSafely(task);
+            return;
+        }
+
+        if (overflowPolicy == OVERFLOW_COALESCE && coalesceKey != null) {
+            Runnable replaced = null;
+            boolean enqueue = false;
+            synchronized (coalesceSlots) {
+                CoalesceSlot slot = coalesceSlots.get(coalesceKey);
+                if (slot != null && queue.remainingCapacity() == 0) {
+                    replaced = slot.latest;
+                    slot.latest = task;
+                } else {
+                    //队列还有空位时不合并，同一个key可能有多个Slot在排队，表中只记录最后一个
+                    slot = freeSlots.poll();
+                    if (slot == null)
+                        slot = new CoalesceSlot();
+                    slot.key = coalesceKey;
+                    slot.latest = task;
+                    coalesceSlots.put(coalesceKey, slot);
+                    task = slot;
+                    enqueue = true;
+                }
+            }
+            if (!enqueue) {
+                //已经在排队，只替换了内容
+                if (replaced != null)
+                    drop(replaced);
+                return;
+            }
+        }
+
+        if (!queue.offer(task)) {
+            if (overflowPolicy == OVERFLOW_BLOCK && Thread.currentThread() != drainThread) {
+                try {
+                    queue.put(task);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    drop(task);
+                    return;
+                }
+            } else if (overflowPolicy == OVERFLOW_BLOCK) {
+                //在执行回调的线程上提交时阻塞会死锁，直接执行
+                runSafely(task);
+                return;
+            } else {
+                while (!queue.offer(task)) {
+                    Runnable oldest = queue.poll();
+                    if (oldest != null)
+                        drop(oldest);
+                }
+            }
+        }
+
+        if (target == TARGET_MAIN)
+            scheduleMainDrain();
+    }
+
+    //等待执行的回调数
+    public int getQueuedCount() {
+        return queue.size();
+    }
+
+    //因为队列已满被丢弃或被合并掉的回调数
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    //停止分发，队列中还没有执行的回调都会被丢弃
+    public void shutdown() {
+        running = false;
+        Runnable task;
+        while ((task = queue.poll()) != null)
+            drop(task);
+        Thread thread = drainThread;
+        if (target == TARGET_BACKGROUND && thread != null)
+            thread.interrupt();
+    }
+
+    private void scheduleMainDrain() {
+        if (drainScheduled.compareAndSet(false, true))
+            mainExecutor.execute(mainDrainTask);
+    }
+
+    private void drop(Runnable task) {
+        droppedCount.incrementAndGet();
+        if (task instanceof Droppable)
+            ((Droppable) task).onDropped();
+    }
+
+    private void runSafely(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            //后台线程中用户回调抛出的异常不应该终止分发
+            if (target != TARGET_BACKGROUND)
+                throw e;
+            e.printStackTrace();
+        }
+    }
+
+
+    /**
+     * 被丢弃时需要释放资源的回调（例如持有缓冲池中Buffer的回调）实现该接口
+     */
+    public interface Droppable {
+        void onDropped();
+    }
+
+    //字段都由coalesceSlots保护
+    private class CoalesceSlot implements Runnable, Droppable {
+        private Object key;
+        private Runnable latest;
+
+        //取出最新的回调，并把自己从表中移除，之后同一个key的回调会重新排队
+        private Runnable take() {
+            synchronized (coalesceSlots) {
+                Runnable task = latest;
+                if (coalesceSlots.get(key) == this)
+                    coalesceSlots.remove(key);
+                key = null;
+                latest = null;
+                if (freeSlots.size() < MAX_FREE_SLOTS)
+                    freeSlots.push(this);
+                return task;
+            }
+        }
+
+        @Override
+        public void run() {
+            Runnable task = take();
+            if (task != null)
+                task.run();
+        }
+
+        @Override
+        public void onDropped() {
+            Runnable task = take();
+            if (task instanceof Droppable)
+                ((Droppable) task).onDropped();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.s10715.bluetoothhelper.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 经典蓝牙读取循环，运行在读取线程中
+ * 每次read都读到从BufferPool取出的Buffer里，再把Buffer交给Callback，不会为每块数据分配新的数组
+ * 缓冲池用完时读取线程会等待，直到回调方归还Buffer（相当于对发送方的背压）
+ * 设置了FrameDecoder时改为分帧模式，数据读到FrameDecoder的缓冲区中，在读取线程中直接回调完整的帧
+ * 部分设备上没有数据时read会立即返回0而不是阻塞，此时按指数退避休眠，避免空闲连接一直占用CPU
+ */
+public class ClassicReader implements Runnable {
+
+    //缓冲池耗尽时每次等待的时间，等待期间会检查是否已经stop
+    private static final long ACQUIRE_TIMEOUT = 200;
+
+    //read返回0时的休眠时间，单位为毫秒，连续返回0时从MIN_BACKOFF开始加倍，直到MAX_BACKOFF，读到数据后重置
+    private static final long MIN_BACKOFF = 1;
+    private static final long MAX_BACKOFF = 32;
+
+    private final InputStream inputStream;
+    private final BufferPool pool;
+    private final Callback callback;
+
+    private volatile FrameDecoder frameDecoder;//为null时按数据块读取
+
+    private volatile boolean running = true;
+
+    //统计信息，只在读取线程中修改
+    private volatile long wakeups;//read返回的次数
+    private volatile long emptyReads;//read返回0的次数
+    private volatile long bytesRead;
+    private volatile long backoffTime;//因为read返回0而休眠的总时间，单位为毫秒
+    private long backoff;//下一次read返回0时的休眠时间
+
+    public ClassicReader(InputStream inputStream, BufferPool pool, Callback callback) {
+        this.inputStream = inputStream;
+        this.pool = pool;
+        this.callback = callback;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                FrameDecoder decoder = frameDecoder;
+                if (decoder != null) {
+                    int bytes = decoder.readFrom(inputStream);
+                    if (bytes == -1)
+                        break;
+                    if (onRead(bytes))
+                        decoder.decode(callback);
+                    continue;
+                }
+
+                BufferPool.Buffer buffer = pool.acquire(ACQUIRE_TIMEOUT);
+                if (buffer == null)
+                    continue;
+
+                int bytes;
+                try {
+                    bytes = inputStream.read(buffer.getData());
+                } catch (IOException e) {
+                    buffer.release();
+                    throw e;
+                }
+
+                if (bytes == -1) {
+                    buffer.release();
+                    break;
+                }
+                //没有读到数据时不应该调用用户回调，先归还Buffer再休眠
+                if (bytes == 0) {
+                    buffer.release();
+                    onRead(0);
+                    continue;
+                }
+                onRead(bytes);
+                buffer.setLength(bytes);
+                callback.onReceived(buffer);
+            }
+            callback.onEnd(null);
+        } catch (IOException e) {
+            callback.onEnd(running ? e : null);
+        } catch (InterruptedException e) {
+            callback.onEnd(null);
+        } finally {
+            running = false;
+        }
+    }
+
+    /**
+     * 记录一次read的结果，没有读到数据时休眠
+     *
+     * @return 是否读到了数据
+     */
+    private boolean onRead(int bytes) throws InterruptedException {
+        wakeups++;
+        if (bytes > 0) {
+            bytesRead += bytes;
+            backoff = 0;
+            return true;
+        }
+
+        emptyReads++;
+        backoff = backoff == 0 ? MIN_BACKOFF : Math.min(backoff * 2, MAX_BACKOFF);
+        Thread.sleep(backoff);
+        backoffTime += backoff;
+        return false;
+    }
+
+    //当前统计信息的快照，可以在任意线程调用
+    public Stats getStats() {
+        return new Stats(wakeups, emptyReads, bytesRead, backoffTime);
+    }
+
+    /**
+     * 切换分帧模式，为null时恢复按数据块读取
+     * 正在阻塞的read返回后才会生效，切换时旧FrameDecoder中不完整的数据会被丢弃
+     */
+    public void setFrameDecoder(FrameDecoder frameDecoder) {
+        this.frameDecoder = frameDecoder;
+    }
+
+    //停止读取，正在阻塞的read需要关闭socket才会返回
+    public void stop() {
+        running = false;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+
+    /**
+     * 读取线程的统计信息，用于确认空闲的连接几乎不占用CPU：空闲时wakeups、emptyReads应该几乎不增长
+     */
+    public static class Stats {
+        private final long wakeups;
+        private final long emptyReads;
+        private final long bytesRead;
+        private final long backoffTime;
+
+        Stats(long wakeups, long emptyReads, long bytesRead, long backoffTime) {
+            this.wakeups = wakeups;
+            this.emptyReads = emptyReads;
+            this.bytesRead = bytesRead;
+            this.backoffTime = backoffTime;
+        }
+
+        //read返回的次数
+        public long getWakeups() {
+            return wakeups;
+        }
+
+        //read返回0的次数
+        public long getEmptyReads() {
+            return emptyReads;
+        }
+
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        //平均每次read读到的字节数，越大说明每次唤醒读取线程越划算
+        public float getBytesPerWakeup() {
+            return wakeups == 0 ? 0 : (float) bytesRead / wakeups;
+        }
+
+        //因为read返回0而休眠的总时间，单位为毫秒
+        public long getBackoffTime() {
+            return backoffTime;
+        }
+
+        @Override
+        public String toString() {
+            return "wakeups=" + wakeups + ", emptyReads=" + emptyReads + ", bytesRead=" + bytesRead
+                    + ", bytesPerWakeup=" + getBytesPerWakeup() + ", backoffTime=" + backoffTime + "ms";
+        }
+    }
+
+    /**
+     * onFrame只在分帧模式下调用，在读取线程中执行，data只在回调执行期间有效
+     */
+    public interface Callback extends FrameDecoder.OnFrameListener {
+        /**
+         * 在读取线程中调用，buffer在release()之前归回调方所有
+         */
+        void onReceived(BufferPool.Buffer buffer);
+
+        /**
+         * 读取结束
+         *
+         * @param e 读写出错时不为null，对方关闭或主动stop时为null
+         */
+        void onEnd(IOException e);
+    }
+}
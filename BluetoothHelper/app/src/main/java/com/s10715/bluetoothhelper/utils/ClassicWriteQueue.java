@@ -0,0 +1,221 @@
+package com.s10715.bluetoothhelper.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 经典蓝牙写入队列，每个连接只有一个写入线程，按提交顺序写入
+ * 写入线程每次取出队列中已有的小数据，合并成一次socket写入（不超过maxBatchSize），
+ * maxLatency大于0时还会最多等待maxLatency毫秒，让更多数据合并进来
+ * 合并写入后，每次提交对应的回调仍会按提交顺序分别调用
+ */
+public class ClassicWriteQueue implements Runnable {
+
+    public static final int DEFAULT_CAPACITY = 256;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 4096;
+    public static final long DEFAULT_MAX_LATENCY = 0;
+
+    //队列为空时每次等待的时间，等待期间会检查是否已经stop
+    private static final long POLL_TIMEOUT = 200;
+
+    private final OutputStream outputStream;
+    private final Callback callback;
+    private final ArrayBlockingQueue<Request> queue;
+
+    private final byte[] batch;//合并写入用的缓冲区
+    private final Request[] batchRequests;//当前合并写入包含的请求，用于按顺序回调
+    private final long maxLatencyNanos;
+
+    private volatile boolean running = true;
+
+    public ClassicWriteQueue(OutputStream outputStream, Callback callback) {
+        this(outputStream, callback, DEFAULT_CAPACITY, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_LATENCY);
+    }
+
+    /**
+     * @param capacity     队列中最多等待写入的请求数
+     * @param maxBatchSize 一次socket写入的最大字节数，超过该大小的单个请求直接写入，不参与合并
+     * @param maxLatency   单位为毫秒，为了合并更多数据，第一个请求最多等待的时间，为0表示只合并队列中已有的数据
+     */
+    public ClassicWriteQueue(OutputStream outputStream, Callback callback, int capacity, int maxBatchSize, long maxLatency) {
+        this.outputStream = outputStream;
+        this.callback = callback;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batch = new byte[maxBatchSize];
+        this.batchRequests = new Request[capacity];
+        this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxLatency);
+    }
+
+    /**
+     * 提交写入请求，不会阻塞，队列已满或已停止时返回false
+     * 提交后不能再修改data中的内容
+     *
+     * @param tag 回调时原样传回，用于区分不同的写入
+     */
+    public boolean offer(byte[] data, Object tag) {
+        return offer(data, 0, data.length, tag);
+    }
+
+    //只写入data[offset, offset + length)，其余同offer(byte[], Object)
+    public boolean offer(byte[] data, int offset, int length, Object tag) {
+        if (!running)
+            return false;
+        Request request = new Request(data, offset, length, tag);
+        return queue.offer(request) && !withdrawIfStopped(request);
+    }
+
+    /**
+     * 提交写入请求，队列已满时阻塞直到有空位
+     *
+     * @return 已停止时返回false
+     */
+    public boolean put(byte[] data, Object tag) throws InterruptedException {
+        return put(data, 0, data.length, tag);
+    }
+
+    //只写入data[offset, offset + length)，其余同put(byte[], Object)
+    public boolean put(byte[] data, int offset, int length, Object tag) throws InterruptedException {
+        if (!running)
+            return false;
+        Request request = new Request(data, offset, length, tag);
+        queue.put(request);
+        return !withdrawIfStopped(request);
+    }
+
+    /**
+     * 加入队列后再检查一次是否已经停止：写入线程停止后最后一次取出剩余请求时可能已经错过了这个请求，
+     * 此时把它从队列中取回，由调用方按提交失败处理；取不回说明写入线程已经取走，会回调onWritten或onFailed
+     *
+     * @return 是否取回了request
+     */
+    private boolean withdrawIfStopped(Request request) {
+        return !running && queue.remove(request);
+    }
+
+    //停止写入，还没有写入的请求都会回调onFailed
+    public void stop() {
+        running = false;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    //等待写入的请求数
+    public int getPendingCount() {
+        return queue.size();
+    }
+
+    @Override
+    public void run() {
+        Request carry = null;//上一次合并时放不下的请求，留到下一次写入
+        int count = 0;
+        try {
+            while (running) {
+                Request first = carry != null ? carry : queue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+                carry = null;
+                if (first == null)
+                    continue;
+
+                //大数据直接写入，不复制到合并缓冲区
+                if (first.length >= batch.length) {
+                    batchRequests[0] = first;
+                    count = 1;
+                    outputStream.write(first.data, first.offset, first.length);
+                    outputStream.flush();
+                    completeBatch(count);
+                    count = 0;
+                    continue;
+                }
+
+                int size = append(first, 0);
+                batchRequests[count++] = first;
+
+                long deadline = System.nanoTime() + maxLatencyNanos;
+                while (count < batchRequests.length) {
+                    Request next = queue.poll();
+                    if (next == null) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0)
+                            break;
+                        next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null)
+                            break;
+                    }
+                    if (size + next.length > batch.length) {
+                        carry = next;
+                        break;
+                    }
+                    size = append(next, size);
+                    batchRequests[count++] = next;
+                }
+
+                outputStream.write(batch, 0, size);
+                outputStream.flush();
+                completeBatch(count);
+                count = 0;
+            }
+            failPending(carry, count, null);
+        } catch (IOException e) {
+            running = false;
+            failPending(carry, count, e);
+        } catch (InterruptedException e) {
+            running = false;
+            failPending(carry, count, null);
+        }
+    }
+
+    private int append(Request request, int offset) {
+        System.arraycopy(request.data, request.offset, batch, offset, request.length);
+        return offset + request.length;
+    }
+
+    private void completeBatch(int count) {
+        for (int i = 0; i < count; i++) {
+            callback.onWritten(batchRequests[i].tag);
+            batchRequests[i] = null;
+        }
+    }
+
+    //写入出错或停止时，把正在写入的、放不下的和队列中剩余的请求都按顺序回调onFailed
+    private void failPending(Request carry, int count, IOException e) {
+        for (int i = 0; i < count; i++) {
+            callback.onFailed(batchRequests[i].tag, e);
+            batchRequests[i] = null;
+        }
+        if (carry != null)
+            callback.onFailed(carry.tag, e);
+        Request request;
+        while ((request = queue.poll()) != null)
+            callback.onFailed(request.tag, e);
+    }
+
+
+    public interface Callback {
+        //在写入线程中调用，数据已经写入socket
+        void onWritten(Object tag);
+
+        /**
+         * 在写入线程中调用
+         *
+         * @param e 写入出错时不为null，主动stop时为null
+         */
+        void onFailed(Object tag, IOException e);
+    }
+
+    private static class Request {
+        final byte[] data;
+        final int offset;
+        final int length;
+        final Object tag;
+
+        Request(byte[] data, int offset, int length, Object tag) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            this.tag = tag;
+        }
+    }
+}
@@ -0,0 +1,588 @@
+package com.s10715.bluetoothhelper.utils;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * 经典蓝牙文件传输，一个对象对应一次发送或一次接收
+ * 协议消息都是4字节长度前缀的帧（见createFramer），帧的第一个字节是消息类型
+ * 发送方用FileChannel按块读取文件，最多同时有window块等待确认，每块都带CRC32校验
+ * 接收方校验通过后直接写入文件并确认，数据不会保存在内存中；校验失败时要求发送方从已确认的位置重发
+ * 接收中的数据保存在"文件名.part"中，连接断开后重新传输同一个文件时，从接收方已经确认的位置继续
+ * 是否是同一个文件由发送方文件的大小、修改时间和开头部分的CRC32判断，记录在"文件名.part.id"中，不一致时重新接收
+ */
+public class FileTransfer implements Runnable, FrameDecoder.OnFrameListener {
+
+    public static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+    public static final int MAX_CHUNK_SIZE = 64 * 1024;
+    public static final int DEFAULT_WINDOW = 4;
+    public static final long DEFAULT_TIMEOUT = 15000;//单位为毫秒，发送方超过该时间没有收到任何确认时失败
+
+    //消息类型
+    private static final byte TYPE_OFFER = 1;//发送方->接收方：文件大小(8) + 块大小(4) + 修改时间(8) + 开头的CRC32(4) + 文件名(UTF-8)
+    private static final byte TYPE_ACCEPT = 2;//接收方->发送方：开始位置(8)，即接收方已有的数据长度
+    private static final byte TYPE_DATA = 3;//发送方->接收方：位置(8) + CRC32(4) + 数据
+    private static final byte TYPE_ACK = 4;//接收方->发送方：位置(8)，之前的数据都已写入文件
+    private static final byte TYPE_NACK = 5;//接收方->发送方：位置(8)，从该位置开始重发
+    private static final byte TYPE_CANCEL = 6;//任一方取消传输
+
+    private static final int LENGTH_FIELD_SIZE = 4;
+    private static final int DATA_HEADER_SIZE = 1 + 8 + 4;
+    private static final int PAYLOAD_OFFSET = LENGTH_FIELD_SIZE + DATA_HEADER_SIZE;
+    private static final int MAX_FRAME_SIZE = DATA_HEADER_SIZE + MAX_CHUNK_SIZE;
+    private static final int OFFER_HEADER_SIZE = DATA_HEADER_SIZE + 8 + 4;
+    private static final int IDENTITY_HEAD_SIZE = 4096;//计算CRC32的文件开头部分的大小
+
+    private static final int STATE_RUNNING = 0;
+    private static final int STATE_COMPLETE = 1;
+    private static final int STATE_FAILED = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String PART_SUFFIX = ".part";
+    private static final String IDENTITY_SUFFIX = ".part.id";
+
+    private final boolean sender;
+    private final Transport transport;
+    private final Listener listener;
+    private final Object lock = new Object();
+    private final CRC32 crc = new CRC32();
+
+    private int state = STATE_RUNNING;
+    private volatile long transferred;
+    private volatile long total = -1;
+
+    //发送方
+    private File file;
+    private int chunkSize;
+    private long timeout;
+    private Slot[] slots;
+    private long startOffset = -1;//接收方回复的开始位置，-1表示还没有回复
+    private long acked;
+    private long rewindOffset = -1;//收到NACK后需要重发的位置
+    private long lastProgressTime;
+
+    //接收方
+    private File directory;
+    private File targetFile;
+    private File partFile;
+    private File identityFile;
+    private FileChannel receiveChannel;
+    private boolean nackPending;//已经要求重发，在收到重发的数据之前忽略后面的块
+    private byte[] wrappedArray;//FrameDecoder的接收缓冲区是固定的，只在数组变化时重新wrap
+    private ByteBuffer wrappedBuffer;
+
+    private FileTransfer(boolean sender, Transport transport, Listener listener) {
+        this.sender = sender;
+        this.transport = transport;
+        this.listener = listener;
+    }
+
+    /**
+     * 创建发送方，调用run()开始发送，run()会阻塞到传输结束，需要在后台线程执行
+     *
+     * @param chunkSize 每块的大小，不能超过MAX_CHUNK_SIZE
+     * @param window    最多同时等待确认的块数
+     */
+    public static FileTransfer sender(File file, int chunkSize, int window, long timeout, Transport transport, Listener listener) {
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE)
+            throw new IllegalArgumentException("chunkSize must be in (0, " + MAX_CHUNK_SIZE + "]");
+        if (window <= 0)
+            throw new IllegalArgumentException("window must be positive");
+
+        FileTransfer transfer = new FileTransfer(true, transport, listener);
+        transfer.file = file;
+        transfer.chunkSize = chunkSize;
+        transfer.timeout = timeout;
+        transfer.slots = new Slot[window];
+        for (int i = 0; i < window; i++)
+            transfer.slots[i] = transfer.new Slot(chunkSize);
+        return transfer;
+    }
+
+    //创建接收方，收到的文件保存在directory中，同名文件会被覆盖
+    public static FileTransfer receiver(File directory, Transport transport, Listener listener) {
+        FileTransfer transfer = new FileTransfer(false, transport, listener);
+        transfer.directory = directory;
+        return transfer;
+    }
+
+    //双方都要用该Framer读取连接中的数据，然后把每一帧交给onFrame
+    public static Framer createFramer() {
+        return Framer.lengthPrefixed(LENGTH_FIELD_SIZE, MAX_FRAME_SIZE);
+    }
+
+    public boolean isSender() {
+        return sender;
+    }
+
+    //已经被对方确认（发送方）或已经写入文件（接收方）的字节数，续传时包括之前已经传输的部分
+    public long getTransferred() {
+        return transferred;
+    }
+
+    //文件大小，接收方在收到对方的文件信息之前为-1
+    public long getTotal() {
+        return total;
+    }
+
+    public boolean isFinished() {
+        synchronized (lock) {
+            return state != STATE_RUNNING;
+        }
+    }
+
+    //取消传输并通知对方，已经接收的部分会保留，之后可以续传
+    public void cancel() {
+        if (fail(new IOException("file transfer cancelled")))
+            transport.send(controlFrame(TYPE_CANCEL, 0), 0, LENGTH_FIELD_SIZE + 9, null);
+    }
+
+    //连接断开时调用
+    public void onClosed() {
+        fail(new IOException("connection closed"));
+    }
+
+    @Override
+    public void run() {
+        if (!sender)
+            return;
+
+        FileChannel channel = null;
+        try {
+            channel = new FileInputStream(file).getChannel();
+            total = channel.size();
+            sendOffer(channel);
+
+            long position = awaitStart();
+            int next = 0;
+            while (true) {
+                Slot slot;
+                synchronized (lock) {
+                    while (true) {
+                        checkRunning();
+                        if (rewindOffset >= 0) {
+                            position = rewindOffset;
+                            rewindOffset = -1;
+                        }
+                        if (acked >= total) {
+                            state = STATE_COMPLETE;
+                            break;
+                        }
+                        if (position < total && position - acked < (long) slots.length * chunkSize && !slots[next].sending)
+                            break;
+                        awaitProgress();
+                    }
+                    if (state == STATE_COMPLETE)
+                        break;
+                    slot = slots[next];
+                    slot.sending = true;
+                }
+
+                int length = (int) Math.min(chunkSize, total - position);
+                slot.read(channel, position, length);
+                if (!transport.send(slot.frame, 0, PAYLOAD_OFFSET + length, slot))
+                    throw new IOException("connection closed");
+                position += length;
+                next = (next + 1) % slots.length;
+            }
+            listener.onComplete(file);
+        } catch (IOException e) {
+            fail(e);
+        } finally {
+            closeQuietly(channel);
+        }
+    }
+
+    @Override
+    public void onFrame(byte[] data, int offset, int length) {
+        if (length < 1)
+            return;
+        try {
+            if (sender)
+                onSenderFrame(data, offset, length);
+            else
+                onReceiverFrame(data, offset, length);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void onSenderFrame(byte[] data, int offset, int length) throws IOException {
+        byte type = data[offset];
+        if (type == TYPE_CANCEL) {
+            fail(new IOException("file transfer cancelled by remote device"));
+            return;
+        }
+        if (length < 9)
+            throw new IOException("malformed file transfer message");
+
+        long value = readLong(data, offset + 1);
+        boolean progress = false;
+        synchronized (lock) {
+            if (state != STATE_RUNNING)
+                return;
+            switch (type) {
+                case TYPE_ACCEPT:
+                    if (value < 0 || value > total)
+                        throw new IOException("invalid start offset " + value);
+                    startOffset = value;
+                    acked = value;
+                    progress = true;
+                    break;
+                case TYPE_ACK:
+                    if (value > acked) {
+                        acked = value;
+                        progress = true;
+                    }
+                    break;
+                case TYPE_NACK:
+                    //NACK之后的数据接收方都会忽略，从该位置开始重发
+                    rewindOffset = value;
+                    lastProgressTime = System.currentTimeMillis();
+                    break;
+                default:
+                    break;
+            }
+            if (progress) {
+                transferred = acked;
+                lastProgressTime = System.currentTimeMillis();
+            }
+            lock.notifyAll();
+        }
+        if (progress)
+            listener.onProgress(transferred, total);
+    }
+
+    private void onReceiverFrame(byte[] data, int offset, int length) throws IOException {
+        byte type = data[offset];
+        if (type == TYPE_CANCEL) {
+            fail(new IOException("file transfer cancelled by remote device"));
+            return;
+        }
+
+        synchronized (lock) {
+            if (state != STATE_RUNNING)
+                return;
+            if (type == TYPE_OFFER)
+                onOffer(data, offset, length);
+            else if (type == TYPE_DATA)
+                onData(data, offset, length);
+        }
+    }
+
+    private void onOffer(byte[] data, int offset, int length) throws IOException {
+        if (length <= OFFER_HEADER_SIZE)
+            throw new IOException("malformed file transfer message");
+
+        long size = readLong(data, offset + 1);
+        long lastModified = readLong(data, offset + DATA_HEADER_SIZE);
+        int headChecksum = readInt(data, offset + DATA_HEADER_SIZE + 8);
+        //只取文件名，防止对方通过路径写到directory之外
+        String name = new File(new String(data, offset + OFFER_HEADER_SIZE, length - OFFER_HEADER_SIZE, UTF_8)).getName();
+        if (size < 0 || name.length() == 0)
+            throw new IOException("malformed file transfer message");
+
+        closeQuietly(receiveChannel);
+        targetFile = new File(directory, name);
+        partFile = new File(directory, name + PART_SUFFIX);
+        identityFile = new File(directory, name + IDENTITY_SUFFIX);
+        receiveChannel = new RandomAccessFile(partFile, "rw").getChannel();
+
+        //.part中只有校验通过的数据，并且是按顺序写入的，是同一个文件时可以直接从末尾续传
+        //同名的另一个文件留下的.part不能续传，否则会把两个文件的数据拼在一起
+        long existing = receiveChannel.size();
+        if (existing > size || !sameIdentity(size, lastModified, headChecksum)) {
+            receiveChannel.truncate(0);
+            existing = 0;
+            writeIdentity(size, lastModified, headChecksum);
+        }
+        total = size;
+        transferred = existing;
+        nackPending = false;
+        send(TYPE_ACCEPT, existing);
+        listener.onProgress(existing, size);
+
+        if (existing == size)
+            finishReceive();
+    }
+
+    private void onData(byte[] data, int offset, int length) throws IOException {
+        if (receiveChannel == null || length < DATA_HEADER_SIZE)
+            return;
+
+        long position = readLong(data, offset + 1);
+        int checksum = readInt(data, offset + 9);
+        int payload = offset + DATA_HEADER_SIZE;
+        int size = length - DATA_HEADER_SIZE;
+
+        long expected = transferred;
+        if (position != expected) {
+            //已经收到过的块直接忽略，跳过了数据时要求从expected重发
+            if (position > expected && !nackPending) {
+                nackPending = true;
+                send(TYPE_NACK, expected);
+            }
+            return;
+        }
+        crc.reset();
+        crc.update(data, payload, size);
+        if ((int) crc.getValue() != checksum) {
+            nackPending = true;
+            send(TYPE_NACK, expected);
+            return;
+        }
+        nackPending = false;
+
+        if (data != wrappedArray) {
+            wrappedArray = data;
+            wrappedBuffer = ByteBuffer.wrap(data);
+        }
+        wrappedBuffer.clear();
+        wrappedBuffer.position(payload);
+        wrappedBuffer.limit(payload + size);
+        while (wrappedBuffer.hasRemaining())
+            expected += receiveChannel.write(wrappedBuffer, expected);
+
+        transferred = expected;
+        send(TYPE_ACK, expected);
+        listener.onProgress(expected, total);
+
+        if (expected == total)
+            finishReceive();
+    }
+
+    //接收完成，把.part重命名为目标文件
+    private void finishReceive() throws IOException {
+        receiveChannel.force(false);
+        receiveChannel.close();
+        receiveChannel = null;
+        identityFile.delete();
+        if (targetFile.exists() && !targetFile.delete())
+            throw new IOException("cannot replace " + targetFile);
+        if (!partFile.renameTo(targetFile))
+            throw new IOException("cannot rename " + partFile + " to " + targetFile);
+        state = STATE_COMPLETE;
+        listener.onComplete(targetFile);
+    }
+
+    //.part.id中记录的是否是这个文件，文件不存在或损坏时返回false
+    private boolean sameIdentity(long size, long lastModified, int headChecksum) {
+        if (!identityFile.exists() || identityFile.length() != 20)
+            return false;
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(identityFile, "r");
+            return in.readLong() == size && in.readLong() == lastModified && in.readInt() == headChecksum;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void writeIdentity(long size, long lastModified, int headChecksum) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(identityFile, "rw");
+        try {
+            out.setLength(0);
+            out.writeLong(size);
+            out.writeLong(lastModified);
+            out.writeInt(headChecksum);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void sendOffer(FileChannel channel) throws IOException {
+        byte[] name = file.getName().getBytes(UTF_8);
+        if (name.length > MAX_FRAME_SIZE - OFFER_HEADER_SIZE)
+            throw new IOException("file name too long");
+
+        //文件开头部分的CRC32，与大小、修改时间一起作为文件的标识，接收方用来判断.part是否属于这个文件
+        ByteBuffer head = ByteBuffer.allocate((int) Math.min(IDENTITY_HEAD_SIZE, total));
+        while (head.hasRemaining()) {
+            if (channel.read(head, head.position()) < 0)
+                throw new EOFException("file was truncated during transfer");
+        }
+        crc.reset();
+        crc.update(head.array(), 0, head.position());
+
+        int headerOffset = LENGTH_FIELD_SIZE + DATA_HEADER_SIZE;
+        byte[] frame = new byte[LENGTH_FIELD_SIZE + OFFER_HEADER_SIZE + name.length];
+        writeInt(frame, 0, OFFER_HEADER_SIZE + name.length);
+        frame[LENGTH_FIELD_SIZE] = TYPE_OFFER;
+        writeLong(frame, LENGTH_FIELD_SIZE + 1, total);
+        writeInt(frame, LENGTH_FIELD_SIZE + 9, chunkSize);
+        writeLong(frame, headerOffset, file.lastModified());
+        writeInt(frame, headerOffset + 8, (int) crc.getValue());
+        System.arraycopy(name, 0, frame, LENGTH_FIELD_SIZE + OFFER_HEADER_SIZE, name.length);
+        if (!transport.send(frame, 0, frame.length, null))
+            throw new IOException("connection closed");
+    }
+
+    //等待接收方回复开始位置
+    private long awaitStart() throws IOException {
+        synchronized (lock) {
+            lastProgressTime = System.currentTimeMillis();
+            while (startOffset < 0) {
+                checkRunning();
+                awaitProgress();
+            }
+            return startOffset;
+        }
+    }
+
+    //在lock上等待确认，超过timeout没有任何进展时失败，必须持有lock
+    private void awaitProgress() throws IOException {
+        long remaining = lastProgressTime + timeout - System.currentTimeMillis();
+        if (remaining <= 0)
+            throw new IOException("file transfer timeout");
+        try {
+            lock.wait(remaining);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("file transfer interrupted");
+        }
+    }
+
+    private void checkRunning() throws IOException {
+        if (state == STATE_FAILED)
+            throw new IOException("file transfer stopped");
+    }
+
+    private void send(byte type, long value) throws IOException {
+        if (!transport.send(controlFrame(type, value), 0, LENGTH_FIELD_SIZE + 9, null))
+            throw new IOException("connection closed");
+    }
+
+    //确认消息很小，每块只有一个，直接分配
+    private static byte[] controlFrame(byte type, long value) {
+        byte[] frame = new byte[LENGTH_FIELD_SIZE + 9];
+        writeInt(frame, 0, 9);
+        frame[LENGTH_FIELD_SIZE] = type;
+        writeLong(frame, LENGTH_FIELD_SIZE + 1, value);
+        return frame;
+    }
+
+    //只有第一次失败会回调，返回false表示已经结束
+    private boolean fail(IOException e) {
+        synchronized (lock) {
+            if (state != STATE_RUNNING)
+                return false;
+            state = STATE_FAILED;
+            closeQuietly(receiveChannel);
+            receiveChannel = null;
+            lock.notifyAll();
+        }
+        listener.onError(e);
+        return true;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null)
+            return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static long readLong(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++)
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        return value;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        int value = 0;
+        for (int i = 0; i < 4; i++)
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        return value;
+    }
+
+    private static void writeLong(byte[] data, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            data[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+        for (int i = 3; i >= 0; i--) {
+            data[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+
+    public interface Transport {
+        /**
+         * 按顺序发送一帧，不能长时间阻塞
+         *
+         * @param onSent 数据写入连接后调用，调用之前不能修改data，为null时不需要通知
+         * @return 连接已断开或发送队列已满时返回false
+         */
+        boolean send(byte[] data, int offset, int length, Runnable onSent);
+    }
+
+    /**
+     * 传输回调，发送方的onComplete在发送线程执行，其余回调都在读取线程执行
+     */
+    public interface Listener {
+        void onProgress(long transferred, long total);
+
+        void onComplete(File file);
+
+        void onError(IOException e);
+    }
+
+    /**
+     * 发送方的一块数据，整帧（长度前缀、消息头和数据）放在同一个数组中，一次发送
+     * 发送完成前不能再使用，作为Transport#send的onSent
+     */
+    private class Slot implements Runnable {
+        final byte[] frame;
+        final ByteBuffer payload;
+        boolean sending;//由lock保护
+
+        Slot(int chunkSize) {
+            frame = new byte[PAYLOAD_OFFSET + chunkSize];
+            payload = ByteBuffer.wrap(frame, PAYLOAD_OFFSET, chunkSize).slice();
+        }
+
+        //从文件的position处读取length个字节并填写消息头
+        void read(FileChannel channel, long position, int length) throws IOException {
+            payload.clear();
+            payload.limit(length);
+            while (payload.hasRemaining()) {
+                if (channel.read(payload, position + payload.position()) < 0)
+                    throw new EOFException("file was truncated during transfer");
+            }
+
+            crc.reset();
+            crc.update(frame, PAYLOAD_OFFSET, length);
+            writeInt(frame, 0, DATA_HEADER_SIZE + length);
+            frame[LENGTH_FIELD_SIZE] = TYPE_DATA;
+            writeLong(frame, LENGTH_FIELD_SIZE + 1, position);
+            writeInt(frame, LENGTH_FIELD_SIZE + 9, (int) crc.getValue());
+        }
+
+        @Override
+        public void run() {
+            synchronized (lock) {
+                sending = false;
+                lock.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.s10715.bluetoothhelper.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 在接收缓冲区上按Framer的规则分帧
+ * 数据直接读到内部缓冲区，帧以(data, offset, length)的形式从缓冲区中切出交给listener，不会额外复制
+ * 交给listener的数组只在onFrame执行期间有效，需要保留时必须自己复制
+ */
+public class FrameDecoder {
+
+    //每次从InputStream读取时至少留出的空间
+    private static final int MIN_READ_SIZE = 1024;
+
+    private final Framer framer;
+    private final byte[] buffer;
+    private int start;//未处理数据的起点
+    private int end;//未处理数据的终点
+
+    public FrameDecoder(Framer framer) {
+        this.framer = framer;
+        this.buffer = new byte[framer.getMaxWireSize() + MIN_READ_SIZE];
+    }
+
+    public Framer getFramer() {
+        return framer;
+    }
+
+    /**
+     * 从inputStream读取一次数据到接收缓冲区
+     *
+     * @return read的返回值，-1表示已经读到末尾
+     */
+    public int readFrom(InputStream inputStream) throws IOException {
+        if (start > 0 && buffer.length - end < MIN_READ_SIZE)
+            compact();
+        int bytes = inputStream.read(buffer, end, buffer.length - end);
+        if (bytes > 0)
+            end += bytes;
+        return bytes;
+    }
+
+    /**
+     * 把已经在内存中的数据（例如BLE的特征值）放入接收缓冲区并分帧
+     *
+     * @return 本次解析出的帧数
+     */
+    public int feed(byte[] data, int offset, int length, OnFrameListener listener) throws IOException {
+        int count = 0;
+        while (length > 0) {
+            if (start > 0 && buffer.length - end < length)
+                compact();
+            int copy = Math.min(length, buffer.length - end);
+            System.arraycopy(data, offset, buffer, end, copy);
+            end += copy;
+            offset += copy;
+            length -= copy;
+            count += decode(listener);
+        }
+        return count;
+    }
+
+    /**
+     * 解析接收缓冲区中所有完整的帧
+     *
+     * @return 本次解析出的帧数
+     * @throws IOException 帧长度超过Framer的maxFrameSize，此时缓冲区中的数据已不可信，应该断开连接
+     */
+    public int decode(OnFrameListener listener) throws IOException {
+        int count = 0;
+        while (start < end) {
+            int consumed = framer.decode(buffer, start, end - start);
+            if (consumed == 0)
+                break;
+            listener.onFrame(buffer, framer.frameOffset, framer.frameLength);
+            start += consumed;
+            count++;
+        }
+        if (start == end)
+            start = end = 0;
+        return count;
+    }
+
+    //丢弃缓冲区中所有未处理的数据
+    public void reset() {
+        start = end = 0;
+        framer.reset();
+    }
+
+    //把未处理的数据移到缓冲区开头
+    private void compact() {
+        System.arraycopy(buffer, start, buffer, 0, end - start);
+        end -= start;
+        start = 0;
+    }
+
+
+    public interface OnFrameListener {
+        //data只在回调执行期间有效
+        void onFrame(byte[] data, int offset, int length);
+    }
+}
@@ -0,0 +1,167 @@
+package com.s10715.bluetoothhelper.utils;
+
+import java.io.IOException;
+
+/**
+ * 分帧规则，把字节流切分成一个个完整的帧
+ * 同一个Framer保存了解析状态，只能给一个连接使用
+ * 提供三种常用规则：长度前缀、分隔符、固定长度
+ */
+public abstract class Framer {
+
+    protected final int maxFrameSize;
+
+    //decode找到完整的帧后，帧内容在buf中的位置
+    int frameOffset;
+    int frameLength;
+
+    protected Framer(int maxFrameSize) {
+        if (maxFrameSize <= 0)
+            throw new IllegalArgumentException("maxFrameSize must be positive");
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * 长度前缀：每帧以lengthFieldSize个字节的无符号长度开头（大端），长度不包含前缀本身，交给用户的帧不包含前缀
+     *
+     * @param lengthFieldSize 可选值为1、2、4
+     */
+    public static Framer lengthPrefixed(int lengthFieldSize, int maxFrameSize) {
+        return new LengthPrefixedFramer(lengthFieldSize, maxFrameSize);
+    }
+
+    /**
+     * 分隔符：以delimiter结尾，交给用户的帧不包含分隔符，例如"\n".getBytes()
+     */
+    public static Framer delimiter(byte[] delimiter, int maxFrameSize) {
+        return new DelimiterFramer(delimiter, maxFrameSize);
+    }
+
+    //固定长度：每frameSize个字节为一帧
+    public static Framer fixedSize(int frameSize) {
+        return new FixedSizeFramer(frameSize);
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    //一帧在字节流中最多占用的字节数（包括长度前缀、分隔符），用于确定接收缓冲区大小
+    abstract int getMaxWireSize();
+
+    /**
+     * 从buf[offset, offset + length)的开头查找一个完整的帧
+     *
+     * @return 找到时返回这一帧在字节流中占用的字节数，帧内容的位置保存在frameOffset、frameLength中；数据不完整时返回0
+     * @throws IOException 帧长度超过maxFrameSize
+     */
+    abstract int decode(byte[] buf, int offset, int length) throws IOException;
+
+    //连接断开或重新开始时清空解析状态
+    void reset() {
+    }
+
+
+    private static class LengthPrefixedFramer extends Framer {
+        private final int lengthFieldSize;
+
+        LengthPrefixedFramer(int lengthFieldSize, int maxFrameSize) {
+            super(maxFrameSize);
+            if (lengthFieldSize != 1 && lengthFieldSize != 2 && lengthFieldSize != 4)
+                throw new IllegalArgumentException("lengthFieldSize must be 1, 2 or 4");
+            this.lengthFieldSize = lengthFieldSize;
+        }
+
+        @Override
+        int getMaxWireSize() {
+            return lengthFieldSize + maxFrameSize;
+        }
+
+        @Override
+        int decode(byte[] buf, int offset, int length) throws IOException {
+            if (length < lengthFieldSize)
+                return 0;
+
+            long frameSize = 0;
+            for (int i = 0; i < lengthFieldSize; i++)
+                frameSize = (frameSize << 8) | (buf[offset + i] & 0xFF);
+            if (frameSize > maxFrameSize)
+                throw new IOException("frame size " + frameSize + " exceeds max frame size " + maxFrameSize);
+
+            if (length - lengthFieldSize < frameSize)
+                return 0;
+
+            frameOffset = offset + lengthFieldSize;
+            frameLength = (int) frameSize;
+            return lengthFieldSize + frameLength;
+        }
+    }
+
+    private static class DelimiterFramer extends Framer {
+        private final byte[] delimiter;
+        private int scanned;//当前帧已经查找过的字节数，下次从这里继续查找，避免重复扫描
+
+        DelimiterFramer(byte[] delimiter, int maxFrameSize) {
+            super(maxFrameSize);
+            if (delimiter == null || delimiter.length == 0)
+                throw new IllegalArgumentException("delimiter must not be empty");
+            this.delimiter = delimiter.clone();
+        }
+
+        @Override
+        int getMaxWireSize() {
+            return maxFrameSize + delimiter.length;
+        }
+
+        @Override
+        int decode(byte[] buf, int offset, int length) throws IOException {
+            byte first = delimiter[0];
+            int last = length - delimiter.length;
+            for (int i = scanned; i <= last; i++) {
+                if (buf[offset + i] != first)
+                    continue;
+                int j = 1;
+                while (j < delimiter.length && buf[offset + i + j] == delimiter[j])
+                    j++;
+                if (j == delimiter.length) {
+                    if (i > maxFrameSize)
+                        break;
+                    scanned = 0;
+                    frameOffset = offset;
+                    frameLength = i;
+                    return i + delimiter.length;
+                }
+            }
+            scanned = Math.max(scanned, last + 1);
+            if (scanned > maxFrameSize)
+                throw new IOException("no delimiter found within max frame size " + maxFrameSize);
+            return 0;
+        }
+
+        @Override
+        void reset() {
+            scanned = 0;
+        }
+    }
+
+    private static class FixedSizeFramer extends Framer {
+
+        FixedSizeFramer(int frameSize) {
+            super(frameSize);
+        }
+
+        @Override
+        int getMaxWireSize() {
+            return maxFrameSize;
+        }
+
+        @Override
+        int decode(byte[] buf, int offset, int length) {
+            if (length < maxFrameSize)
+                return 0;
+            frameOffset = offset;
+            frameLength = maxFrameSize;
+            return maxFrameSize;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.s10715.bluetoothhelper.utils;
+
+import java.util.ArrayDeque;
+
+/**
+ * 多个BLE连接之间的GATT操作调度，所有连接的GattQueue共用一个
+ * 同一时间最多有maxInFlight个GATT操作在执行，其余连接按轮询顺序等待：一个操作结束后许可先交给等待最久的连接，
+ * 该连接的下一个操作排到所有等待的连接之后，一个连续发起操作的设备不会使其他设备一直等待
+ * 每个GattQueue同一时间只占用一个许可，maxInFlight不小于连接数时不会有连接等待，只有调低后才会轮流执行
+ */
+public class GattArbiter {
+
+    private final ArrayDeque<GattQueue> waiting = new ArrayDeque<>();
+    private volatile int maxInFlight;
+    private int inFlight;//由this保护
+
+    //统计信息，由this保护
+    private long grantedCount;
+    private long waitCount;//没有立即得到许可的次数
+
+    /**
+     * @param maxInFlight 同时执行的GATT操作数，每个连接同一时间最多占用一个
+     */
+    public GattArbiter(int maxInFlight) {
+        if (maxInFlight <= 0)
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        this.maxInFlight = maxInFlight;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    //修改同时执行的操作数，增加时立即把许可交给等待的连接
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight <= 0)
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        this.maxInFlight = maxInFlight;
+        grantWaiting();
+    }
+
+    /**
+     * 请求一个许可，没有空闲的许可时queue进入等待，之后由GattQueue#onPermit通知
+     *
+     * @return 立即得到许可时返回true
+     */
+    boolean acquire(GattQueue queue) {
+        synchronized (this) {
+            if (inFlight < maxInFlight && waiting.isEmpty()) {
+                inFlight++;
+                grantedCount++;
+                return true;
+            }
+            waitCount++;
+            if (!waiting.contains(queue))
+                waiting.offer(queue);
+            return false;
+        }
+    }
+
+    //归还一个许可，交给等待最久的连接
+    void release() {
+        synchronized (this) {
+            inFlight--;
+        }
+        grantWaiting();
+    }
+
+    //queue关闭时取消等待
+    synchronized void remove(GattQueue queue) {
+        waiting.remove(queue);
+    }
+
+    //正在执行的操作数
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    //正在等待许可的连接数
+    public synchronized int getWaitingCount() {
+        return waiting.size();
+    }
+
+    //得到许可的总次数
+    public synchronized long getGrantedCount() {
+        return grantedCount;
+    }
+
+    //因为其他连接占用许可而等待的次数，占getGrantedCount的比例越高说明连接之间的竞争越激烈
+    public synchronized long getWaitCount() {
+        return waitCount;
+    }
+
+    //在锁外通知等待的连接，GattQueue#onPermit会发起操作，可能再次调用acquire、release
+    private void grantWaiting() {
+        while (true) {
+            GattQueue next;
+            synchronized (this) {
+                if (inFlight >= maxInFlight || waiting.isEmpty())
+                    return;
+                next = waiting.poll();
+                inFlight++;
+                grantedCount++;
+            }
+            next.onPermit();
+        }
+    }
+}
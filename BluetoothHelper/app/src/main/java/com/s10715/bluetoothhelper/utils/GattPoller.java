@@ -0,0 +1,284 @@
+package com.s10715.bluetoothhelper.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+/**
+ * 定时轮询多个特征值，用于不支持通知的设备
+ * 所有特征值共用一个定时任务：每次只在最早到期的时间点运行，发起所有已到期的读取后再按下一个到期时间重新安排
+ * 同一个特征值同一时间只有一次读取，读取耗时超过周期时自动延长周期（平均耗时的5/4），读取变快后恢复到设定的周期
+ * 读取结果与上一次相同时不回调
+ */
+public class GattPoller {
+
+    private static final int LATENCY_SHIFT = 3;//平均耗时的平滑系数为1/8
+
+    private final GattQueue.Scheduler scheduler;
+    private final Reader reader;
+    private final LinkedHashMap<Object, Poll> polls = new LinkedHashMap<>();//由this保护
+    private long scheduledTime = Long.MAX_VALUE;//定时任务下一次运行的时间，Long.MAX_VALUE表示没有安排，由this保护
+
+    private final Runnable tickTask = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+
+    public GattPoller(GattQueue.Scheduler scheduler, Reader reader) {
+        this.scheduler = scheduler;
+        this.reader = reader;
+    }
+
+    /**
+     * 开始轮询target，已经在轮询时只修改周期和listener
+     *
+     * @param period 期望的读取周期，单位为毫秒
+     */
+    public Poll add(Object target, long period, Listener listener) {
+        if (period <= 0)
+            throw new IllegalArgumentException("period must be positive");
+        Poll poll;
+        synchronized (this) {
+            poll = polls.get(target);
+            if (poll == null) {
+                poll = new Poll(target);
+                polls.put(target, poll);
+            }
+            poll.period = period * 1000000;
+            poll.listener = listener;
+            if (!poll.reading)
+                poll.nextTime = System.nanoTime();
+        }
+        reschedule();
+        return poll;
+    }
+
+    //停止轮询target，正在进行的读取完成后不再回调
+    public void remove(Object target) {
+        synchronized (this) {
+            Poll poll = polls.remove(target);
+            if (poll != null)
+                poll.removed = true;
+        }
+        reschedule();
+    }
+
+    public synchronized Poll get(Object target) {
+        return polls.get(target);
+    }
+
+    //停止所有轮询
+    public void stop() {
+        synchronized (this) {
+            for (Poll poll : polls.values())
+                poll.removed = true;
+            polls.clear();
+            scheduledTime = Long.MAX_VALUE;
+        }
+        scheduler.cancel(tickTask);
+    }
+
+    public synchronized int size() {
+        return polls.size();
+    }
+
+    //发起所有已到期的读取
+    private void tick() {
+        ArrayList<Poll> due = new ArrayList<>();
+        long now = System.nanoTime();
+        synchronized (this) {
+            scheduledTime = Long.MAX_VALUE;
+            for (Poll poll : polls.values()) {
+                if (!poll.reading && poll.nextTime <= now) {
+                    poll.reading = true;
+                    poll.startTime = now;
+                    due.add(poll);
+                }
+            }
+        }
+        for (Poll poll : due) {
+            if (!reader.read(poll.target, poll))
+                poll.complete(null);
+        }
+        reschedule();
+    }
+
+    //按最早的到期时间重新安排定时任务，已经安排在更早的时间时不需要修改
+    private void reschedule() {
+        long delay;
+        synchronized (this) {
+            long next = Long.MAX_VALUE;
+            for (Poll poll : polls.values()) {
+                if (!poll.reading && poll.nextTime < next)
+                    next = poll.nextTime;
+            }
+            if (next == Long.MAX_VALUE || next >= scheduledTime)
+                return;
+            scheduledTime = next;
+            delay = Math.max(0, (next - System.nanoTime() + 999999) / 1000000);
+        }
+        scheduler.cancel(tickTask);
+        scheduler.schedule(tickTask, delay);
+    }
+
+    private void onComplete(Poll poll, byte[] value) {
+        Listener listener;
+        boolean changed = false;
+        synchronized (this) {
+            if (!poll.reading)
+                return;
+            poll.reading = false;
+            long now = System.nanoTime();
+            long latency = now - poll.startTime;
+            //平均耗时和实际周期都用整数的指数平均
+            poll.latency = poll.latency == 0 ? latency : poll.latency + ((latency - poll.latency) >> LATENCY_SHIFT);
+            if (poll.lastStartTime != 0) {
+                long interval = poll.startTime - poll.lastStartTime;
+                poll.interval = poll.interval == 0 ? interval : poll.interval + ((interval - poll.interval) >> LATENCY_SHIFT);
+            }
+            poll.lastStartTime = poll.startTime;
+            poll.nextTime = Math.max(now, poll.startTime + poll.getEffectivePeriodNanos());
+
+            if (value == null) {
+                poll.errorCount++;
+            } else {
+                poll.readCount++;
+                if (poll.value != null && Arrays.equals(poll.value, value)) {
+                    poll.suppressedCount++;
+                } else {
+                    poll.value = value.clone();
+                    poll.changedCount++;
+                    changed = true;
+                }
+            }
+            listener = poll.removed ? null : poll.listener;
+        }
+        if (listener != null) {
+            if (value == null)
+                listener.onError(poll);
+            else if (changed)
+                listener.onChanged(poll, value);
+        }
+        reschedule();
+    }
+
+
+    /**
+     * 发起一次读取
+     */
+    public interface Reader {
+        //读取完成后必须调用poll.complete，返回false表示无法发起，此时不需要调用
+        boolean read(Object target, Poll poll);
+    }
+
+    public interface Listener {
+        //读取结果与上一次不同
+        void onChanged(Poll poll, byte[] value);
+
+        //读取失败，仍然按周期继续轮询
+        void onError(Poll poll);
+    }
+
+    /**
+     * 一个特征值的轮询，统计信息由GattPoller保护
+     */
+    public class Poll {
+        private final Object target;
+        private Listener listener;
+        private long period;//单位为纳秒
+        private boolean reading;
+        private boolean removed;
+        private long nextTime;
+        private long startTime;
+        private long lastStartTime;
+        private long latency;//平均耗时，单位为纳秒
+        private long interval;//两次读取开始的平均间隔，单位为纳秒
+        private byte[] value;
+
+        private long readCount;
+        private long changedCount;
+        private long suppressedCount;
+        private long errorCount;
+
+        private Poll(Object target) {
+            this.target = target;
+        }
+
+        //读取完成，value为null表示失败
+        public void complete(byte[] value) {
+            onComplete(this, value);
+        }
+
+        public Object getTarget() {
+            return target;
+        }
+
+        //期望的读取频率，单位为次/秒
+        public float getTargetRate() {
+            synchronized (GattPoller.this) {
+                return 1e9f / period;
+            }
+        }
+
+        //实际的读取频率，单位为次/秒，还没有完成两次读取时为0
+        public float getAchievedRate() {
+            synchronized (GattPoller.this) {
+                return interval == 0 ? 0 : 1e9f / interval;
+            }
+        }
+
+        //当前使用的周期，单位为毫秒，读取耗时超过期望的周期时比它长
+        public long getEffectivePeriod() {
+            synchronized (GattPoller.this) {
+                return getEffectivePeriodNanos() / 1000000;
+            }
+        }
+
+        //平均读取耗时，单位为毫秒
+        public float getAverageLatency() {
+            synchronized (GattPoller.this) {
+                return latency / 1e6f;
+            }
+        }
+
+        public long getReadCount() {
+            synchronized (GattPoller.this) {
+                return readCount;
+            }
+        }
+
+        //因为结果不变而没有回调的次数
+        public long getSuppressedCount() {
+            synchronized (GattPoller.this) {
+                return suppressedCount;
+            }
+        }
+
+        public long getChangedCount() {
+            synchronized (GattPoller.this) {
+                return changedCount;
+            }
+        }
+
+        public long getErrorCount() {
+            synchronized (GattPoller.this) {
+                return errorCount;
+            }
+        }
+
+        private long getEffectivePeriodNanos() {
+            return Math.max(period, latency + (latency >> 2));
+        }
+
+        @Override
+        public String toString() {
+            synchronized (GattPoller.this) {
+                return "target=" + getTargetRate() + "/s, achieved=" + getAchievedRate() + "/s, period=" + getEffectivePeriod()
+                        + "ms, latency=" + getAverageLatency() + "ms, reads=" + readCount + ", suppressed=" + suppressedCount
+                        + ", errors=" + errorCount;
+            }
+        }
+    }
+}
@@ -0,0 +1,374 @@
+package com.s10715.bluetoothhelper.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * BLE设备的GATT信息缓存，以mac为key保存服务表、协商后的MTU和用户使用过的特征值
+ * 每个设备一个文件，二进制格式，一般只有几百字节；读取过的设备同时保存在内存中
+ * 缓存只用于提前得到服务表，每次连接仍然要发现服务，发现的结果与缓存不一致时由调用方invalidate
+ * 文件读写都是阻塞的，不要在主线程中调用load和save
+ */
+public class GattProfileCache {
+
+    private static final int MAGIC = 0x47415454;//"GATT"
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".gatt";
+
+    private final File directory;
+    private final Object fileLock = new Object();//同一时间只写入一个文件，避免临时文件冲突
+    private final HashMap<String, Profile> profiles = new HashMap<>();//由this保护，值为null表示已知没有缓存
+
+    //统计信息，由this保护
+    private long hitCount;
+    private long missCount;
+    private long invalidateCount;
+
+    public GattProfileCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * 读取设备的缓存
+     *
+     * @return 没有缓存或文件损坏时返回null
+     */
+    public Profile load(String mac) {
+        synchronized (this) {
+            if (profiles.containsKey(mac)) {
+                Profile profile = profiles.get(mac);
+                if (profile == null)
+                    missCount++;
+                else
+                    hitCount++;
+                return profile;
+            }
+        }
+        Profile profile = null;
+        File file = getFile(mac);
+        if (file.exists()) {
+            try {
+                profile = read(mac, file);
+            } catch (IOException e) {
+                e.printStackTrace();
+                file.delete();
+            }
+        }
+        synchronized (this) {
+            profiles.put(mac, profile);
+            if (profile == null)
+                missCount++;
+            else
+                hitCount++;
+        }
+        return profile;
+    }
+
+    //保存设备的缓存，先写入临时文件再替换，写入失败时不会留下损坏的文件
+    public void save(Profile profile) {
+        synchronized (this) {
+            profiles.put(profile.mac, profile);
+        }
+        if (!directory.exists() && !directory.mkdirs())
+            return;
+        synchronized (fileLock) {
+            writeFile(profile);
+        }
+    }
+
+    private void writeFile(Profile profile) {
+        File file = getFile(profile.mac);
+        File temp = new File(directory, file.getName() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            write(profile, out);
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                file.delete();
+                if (!temp.renameTo(file))
+                    throw new IOException("can not rename " + temp);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    //缓存与实际的服务不一致时调用，删除该设备的缓存
+    public void invalidate(String mac) {
+        synchronized (this) {
+            profiles.put(mac, null);
+            invalidateCount++;
+        }
+        getFile(mac).delete();
+    }
+
+    //删除所有设备的缓存
+    public void clear() {
+        synchronized (this) {
+            profiles.clear();
+        }
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            if (file.getName().endsWith(SUFFIX))
+                file.delete();
+        }
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    //因为与实际的服务不一致而删除的次数
+    public synchronized long getInvalidateCount() {
+        return invalidateCount;
+    }
+
+    private File getFile(String mac) {
+        return new File(directory, mac.replace(":", "").toUpperCase() + SUFFIX);
+    }
+
+    //文件格式：MAGIC(4) VERSION(1) MTU(2) 服务数(2) {UUID(16) 类型(1) 特征值数(2) {UUID(16) 属性(1)}} 使用过的特征值数(2) {服务序号(2) 特征值序号(2)}
+    private static void write(Profile profile, DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeShort(profile.mtu);
+        out.writeShort(profile.services.size());
+        for (Service service : profile.services) {
+            writeUUID(out, service.uuid);
+            out.writeByte(service.type);
+            out.writeShort(service.characteristics.size());
+            for (Characteristic characteristic : service.characteristics) {
+                writeUUID(out, characteristic.uuid);
+                out.writeByte(characteristic.properties);
+            }
+        }
+        out.writeShort(profile.chosen.size());
+        for (Characteristic characteristic : profile.chosen) {
+            Service service = characteristic.service;
+            out.writeShort(profile.services.indexOf(service));
+            out.writeShort(service.characteristics.indexOf(characteristic));
+        }
+    }
+
+    private static Profile read(String mac, File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION)
+                throw new IOException("unknown gatt cache format: " + file);
+            int mtu = in.readUnsignedShort();
+            int serviceCount = in.readUnsignedShort();
+            Builder builder = new Builder(mac, mtu);
+            for (int i = 0; i < serviceCount; i++) {
+                UUID uuid = readUUID(in);
+                int type = in.readUnsignedByte();
+                builder.addService(uuid, type);
+                int characteristicCount = in.readUnsignedShort();
+                for (int j = 0; j < characteristicCount; j++) {
+                    UUID characteristic = readUUID(in);
+                    builder.addCharacteristic(characteristic, in.readUnsignedByte());
+                }
+            }
+            int chosenCount = in.readUnsignedShort();
+            for (int i = 0; i < chosenCount; i++) {
+                int service = in.readUnsignedShort();
+                int characteristic = in.readUnsignedShort();
+                if (service >= builder.services.size() || characteristic >= builder.services.get(service).characteristics.size())
+                    throw new IOException("broken gatt cache: " + file);
+                builder.chosen.add(builder.services.get(service).characteristics.get(characteristic));
+            }
+            return builder.build();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeUUID(DataOutputStream out, UUID uuid) throws IOException {
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    private static UUID readUUID(DataInputStream in) throws IOException {
+        long most = in.readLong();
+        return new UUID(most, in.readLong());
+    }
+
+
+    /**
+     * 一个设备的GATT信息，建立后不再修改
+     */
+    public static class Profile {
+        private final String mac;
+        private final int mtu;
+        private final List<Service> services;
+        private final List<Characteristic> chosen;
+
+        private Profile(String mac, int mtu, List<Service> services, List<Characteristic> chosen) {
+            this.mac = mac;
+            this.mtu = mtu;
+            this.services = Collections.unmodifiableList(services);
+            this.chosen = Collections.unmodifiableList(chosen);
+        }
+
+        public String getAddress() {
+            return mac;
+        }
+
+        //上次连接协商后的MTU
+        public int getMtu() {
+            return mtu;
+        }
+
+        public List<Service> getServices() {
+            return services;
+        }
+
+        //上次连接时用户通过getCharacteristic使用过的特征值，按第一次使用的顺序
+        public List<Characteristic> getChosen() {
+            return chosen;
+        }
+
+        //服务表（服务、特征值的UUID、类型和属性，包括顺序）是否相同，不比较MTU和使用过的特征值
+        public boolean sameServices(Profile other) {
+            if (other == null || services.size() != other.services.size())
+                return false;
+            for (int i = 0; i < services.size(); i++) {
+                Service a = services.get(i);
+                Service b = other.services.get(i);
+                if (!a.uuid.equals(b.uuid) || a.type != b.type || a.characteristics.size() != b.characteristics.size())
+                    return false;
+                for (int j = 0; j < a.characteristics.size(); j++) {
+                    Characteristic x = a.characteristics.get(j);
+                    Characteristic y = b.characteristics.get(j);
+                    if (!x.uuid.equals(y.uuid) || x.properties != y.properties)
+                        return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    public static class Service {
+        private final UUID uuid;
+        private final int type;
+        private final List<Characteristic> characteristics = new ArrayList<>();
+
+        private Service(UUID uuid, int type) {
+            this.uuid = uuid;
+            this.type = type;
+        }
+
+        public UUID getUUID() {
+            return uuid;
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        public List<Characteristic> getCharacteristics() {
+            return Collections.unmodifiableList(characteristics);
+        }
+    }
+
+    public static class Characteristic {
+        private final Service service;
+        private final UUID uuid;
+        private final int properties;
+
+        private Characteristic(Service service, UUID uuid, int properties) {
+            this.service = service;
+            this.uuid = uuid;
+            this.properties = properties;
+        }
+
+        public UUID getServiceUUID() {
+            return service.uuid;
+        }
+
+        public UUID getUUID() {
+            return uuid;
+        }
+
+        public int getProperties() {
+            return properties;
+        }
+    }
+
+    /**
+     * 按发现服务的顺序添加服务和特征值，建立Profile
+     */
+    public static class Builder {
+        private final String mac;
+        private final int mtu;
+        private final ArrayList<Service> services = new ArrayList<>();
+        private final ArrayList<Characteristic> chosen = new ArrayList<>();
+
+        public Builder(String mac, int mtu) {
+            this.mac = mac;
+            this.mtu = mtu;
+        }
+
+        public Builder addService(UUID uuid, int type) {
+            services.add(new Service(uuid, type));
+            return this;
+        }
+
+        //添加到最近一次addService的服务中，属性只保存低8位
+        public Builder addCharacteristic(UUID uuid, int properties) {
+            if (services.isEmpty())
+                throw new IllegalStateException("addService first");
+            Service service = services.get(services.size() - 1);
+            service.characteristics.add(new Characteristic(service, uuid, properties & 0xFF));
+            return this;
+        }
+
+        //标记已添加的特征值为使用过，不存在时忽略
+        public Builder choose(UUID serviceUUID, UUID characterUUID) {
+            for (Service service : services) {
+                if (!service.uuid.equals(serviceUUID))
+                    continue;
+                for (Characteristic characteristic : service.characteristics) {
+                    if (characteristic.uuid.equals(characterUUID)) {
+                        if (!chosen.contains(characteristic))
+                            chosen.add(characteristic);
+                        return this;
+                    }
+                }
+                return this;//与GattIndex一致，同一个UUID有多个服务时只使用第一个
+            }
+            return this;
+        }
+
+        public Profile build() {
+            return new Profile(mac, mtu, services, chosen);
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package com.s10715.bluetoothhelper.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GATT操作队列，每个BLE连接一个
+ * 同一个连接同一时间只能有一个GATT操作，前一个操作还没有回调时发起的操作会被系统直接丢弃，
+ * 所以读、写、描述符等操作都先进入队列，前一个操作回调后立即发起下一个
+ * 每个操作都有自己的超时时间和完成回调，超时后认为该操作失败，继续下一个；超时的操作之后迟到的回调会被忽略，不会结束下一个操作
+ * 有多个连接时可以共用一个GattArbiter，每个操作发起前先得到许可，连接之间轮流执行
+ */
+public class GattQueue {
+
+    public static final int STATUS_SUCCESS = 0;//与BluetoothGatt.GATT_SUCCESS相同，其余大于0的值都是GATT的错误码
+    public static final int STATUS_TIMEOUT = -1;//超过超时时间没有回调
+    public static final int STATUS_REJECTED = -2;//系统拒绝发起该操作，例如连接已断开
+    public static final int STATUS_CANCELLED = -3;//队列关闭时还没有完成
+
+    public static final int DEFAULT_CAPACITY = 256;
+    public static final long DEFAULT_TIMEOUT = 5000;
+
+    private final Scheduler scheduler;
+    private final int capacity;
+    private final GattArbiter arbiter;
+    private final ArrayDeque<Operation> pending = new ArrayDeque<>();
+    private Operation current;//正在执行或等待许可的操作，由this保护
+    private boolean permitted;//是否持有arbiter的许可，由this保护
+    private boolean closed;
+    //最近一个超时的操作的target，该target的下一次回调是迟到的回调，由this保护；收到其他target的回调后说明它不会再来
+    private Object staleTarget;
+
+    //统计信息，由this保护
+    private long completedCount;
+    private long failedCount;
+    private long timeoutCount;
+    private long totalLatency;//单位为纳秒，从发起到回调
+    private long maxLatency;
+    private long totalWait;//单位为纳秒，从进入队列到发起
+
+    //超时检查，同一时间只有一个操作在执行，所以整个队列共用一个Runnable
+    private final Runnable timeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            Operation operation;
+            synchronized (GattQueue.this) {
+                operation = current;
+                //还在等待许可的操作发起时才开始计时
+                if (operation == null || operation.deadline == Long.MAX_VALUE)
+                    return;
+                //定时器提前执行时按剩余时间重新计划，否则该操作不会再超时
+                long remaining = operation.deadline - System.nanoTime();
+                if (remaining > 0) {
+                    scheduler.schedule(this, TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+                    return;
+                }
+            }
+            finish(operation, STATUS_TIMEOUT, null);
+        }
+    };
+
+    public GattQueue(Scheduler scheduler) {
+        this(scheduler, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param scheduler 用于超时检查，在Android中一般由Handler实现
+     * @param capacity  最多等待执行的操作数
+     */
+    public GattQueue(Scheduler scheduler, int capacity) {
+        this(scheduler, capacity, null);
+    }
+
+    /**
+     * @param arbiter 多个连接共用的调度，为null时操作立即发起
+     */
+    public GattQueue(Scheduler scheduler, int capacity, GattArbiter arbiter) {
+        this.scheduler = scheduler;
+        this.capacity = capacity;
+        this.arbiter = arbiter;
+    }
+
+    /**
+     * 把操作加入队列，队列为空时立即发起
+     *
+     * @return 队列已满或已关闭时返回false，此时不会回调该操作的onComplete
+     */
+    public boolean enqueue(Operation operation) {
+        synchronized (this) {
+            if (closed || pending.size() >= capacity)
+                return false;
+            operation.enqueueTime = System.nanoTime();
+            if (current != null) {
+                pending.offer(operation);
+                return true;
+            }
+            current = operation;
+        }
+        if (acquire())
+            start(operation);
+        return true;
+    }
+
+    /**
+     * 在GATT回调中调用，完成正在执行的操作并立即发起下一个
+     *
+     * @param target 回调对应的特征值、描述符等，必须与正在执行的操作的target相同
+     * @return 没有正在执行的操作、target不一致或者是已经超时的操作的迟到回调时返回false
+     */
+    public boolean complete(Object target, int status, byte[] value) {
+        Operation operation;
+        synchronized (this) {
+            //超时的操作迟到的回调，与正在执行的操作target相同时也不能用来结束它
+            if (target == staleTarget) {
+                staleTarget = null;
+                return false;
+            }
+            //GATT回调是按顺序的，其他target的回调到达后不会再有迟到的回调
+            staleTarget = null;
+            operation = current;
+            //还在等待许可的操作没有发起，不会有对应的回调
+            if (operation == null || operation.target != target || operation.deadline == Long.MAX_VALUE)
+                return false;
+        }
+        return finish(operation, status, value);
+    }
+
+    //关闭队列，正在执行和等待执行的操作都回调STATUS_CANCELLED，之后不能再加入操作
+    public void close() {
+        ArrayList<Operation> cancelled = new ArrayList<>();
+        boolean release;
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            if (current != null)
+                cancelled.add(current);
+            cancelled.addAll(pending);
+            current = null;
+            pending.clear();
+            release = permitted;
+            permitted = false;
+        }
+        scheduler.cancel(timeoutTask);
+        if (arbiter != null) {
+            arbiter.remove(this);
+            if (release)
+                arbiter.release();
+        }
+        for (Operation operation : cancelled)
+            operation.onComplete(STATUS_CANCELLED, null);
+    }
+
+    //队列深度，包括正在执行的操作
+    public synchronized int getDepth() {
+        return pending.size() + (current != null ? 1 : 0);
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(getDepth(), completedCount, failedCount, timeoutCount, totalLatency, maxLatency, totalWait);
+    }
+
+    //arbiter把许可交给该队列，发起等待中的操作
+    void onPermit() {
+        Operation operation;
+        synchronized (this) {
+            operation = closed ? null : current;
+            permitted = operation != null;
+        }
+        if (operation == null)
+            arbiter.release();//已经关闭，归还许可
+        else
+            start(operation);
+    }
+
+    //请求发起current的许可，没有arbiter时总是成功，没有立即得到许可时由onPermit发起
+    private boolean acquire() {
+        if (arbiter == null)
+            return true;
+        if (!arbiter.acquire(this))
+            return false;
+        synchronized (this) {
+            if (!closed) {
+                permitted = true;
+                return true;
+            }
+        }
+        arbiter.release();
+        return false;
+    }
+
+    //发起operation，系统拒绝时继续发起下一个
+    private void start(Operation operation) {
+        while (operation != null) {
+            long now = System.nanoTime();
+            operation.startTime = now;
+            operation.deadline = now + TimeUnit.MILLISECONDS.toNanos(operation.timeout);
+            scheduler.schedule(timeoutTask, operation.timeout);
+            if (operation.start())
+                return;
+            operation = finishAndTakeNext(operation, STATUS_REJECTED, null);
+        }
+    }
+
+    private boolean finish(Operation operation, int status, byte[] value) {
+        synchronized (this) {
+            if (current != operation)
+                return false;
+        }
+        start(finishAndTakeNext(operation, status, value));
+        return true;
+    }
+
+    /**
+     * 结束operation并回调，先取出下一个操作再回调，回调中加入的操作会排在已有的操作之后
+     *
+     * @return 下一个需要发起的操作，没有时返回null
+     */
+    private Operation finishAndTakeNext(Operation operation, int status, byte[] value) {
+        Operation next;
+        boolean release;
+        synchronized (this) {
+            if (current != operation)
+                return null;
+            long latency = System.nanoTime() - operation.startTime;
+            completedCount++;
+            if (status == STATUS_TIMEOUT) {
+                timeoutCount++;
+                staleTarget = operation.target;
+            }
+            if (status != STATUS_SUCCESS)
+                failedCount++;
+            totalLatency += latency;
+            maxLatency = Math.max(maxLatency, latency);
+            totalWait += operation.startTime - operation.enqueueTime;
+
+            next = pending.poll();
+            current = next;
+            //在锁内取消，避免取消掉其他线程刚发起的下一个操作的超时检查
+            scheduler.cancel(timeoutTask);
+            release = permitted;
+            permitted = false;
+        }
+        //先归还许可，等待中的其他连接优先发起，本队列的下一个操作重新排队
+        if (release)
+            arbiter.release();
+        operation.onComplete(status, value);
+        if (next != null && !acquire())
+            return null;
+        return next;
+    }
+
+
+    /**
+     * 超时检查的定时器
+     */
+    public interface Scheduler {
+        //delay毫秒后执行task
+        void schedule(Runnable task, long delay);
+
+        //取消task所有还没有执行的计划
+        void cancel(Runnable task);
+    }
+
+    /**
+     * 一个GATT操作，start发起操作，GATT回调后由GattQueue#complete结束
+     */
+    public abstract static class Operation {
+        private final Object target;
+        private final long timeout;
+        private long enqueueTime;
+        private long startTime;
+        private long deadline = Long.MAX_VALUE;//发起之前不会超时
+
+        /**
+         * @param target  用于和GATT回调对应，一般是要操作的特征值或描述符
+         * @param timeout 单位为毫秒
+         */
+        protected Operation(Object target, long timeout) {
+            this.target = target;
+            this.timeout = timeout;
+        }
+
+        public Object getTarget() {
+            return target;
+        }
+
+        /**
+         * 发起GATT操作，在调用enqueue的线程或上一个操作回调的线程中执行
+         *
+         * @return 系统拒绝时返回false
+         */
+        protected abstract boolean start();
+
+        /**
+         * 操作结束，在GATT回调的线程、超时定时器的线程或调用close的线程中执行
+         *
+         * @param status STATUS_SUCCESS、GATT的错误码或GattQueue中的STATUS_*
+         * @param value  读取操作的结果，其他操作为null
+         */
+        protected abstract void onComplete(int status, byte[] value);
+    }
+
+    /**
+     * 队列的统计信息，时间单位都是毫秒
+     */
+    public static class Stats {
+        private final int depth;
+        private final long completedCount;
+        private final long failedCount;
+        private final long timeoutCount;
+        private final long totalLatency;
+        private final long maxLatency;
+        private final long totalWait;
+
+        Stats(int depth, long completedCount, long failedCount, long timeoutCount, long totalLatency, long maxLatency, long totalWait) {
+            this.depth = depth;
+            this.completedCount = completedCount;
+            this.failedCount = failedCount;
+            this.timeoutCount = timeoutCount;
+            this.totalLatency = totalLatency;
+            this.maxLatency = maxLatency;
+            this.totalWait = totalWait;
+        }
+
+        //当前的队列深度，包括正在执行的操作
+        public int getDepth() {
+            return depth;
+        }
+
+        //已经结束的操作数，包括失败的操作
+        public long getCompletedCount() {
+            return completedCount;
+        }
+
+        public long getFailedCount() {
+            return failedCount;
+        }
+
+        public long getTimeoutCount() {
+            return timeoutCount;
+        }
+
+        //平均每个操作从发起到回调的时间
+        public float getAverageLatency() {
+            return completedCount == 0 ? 0 : totalLatency / 1e6f / completedCount;
+        }
+
+        public float getMaxLatency() {
+            return maxLatency / 1e6f;
+        }
+
+        //平均每个操作在队列中等待的时间
+        public float getAverageWait() {
+            return completedCount == 0 ? 0 : totalWait / 1e6f / completedCount;
+        }
+
+        //按平均延迟计算，该连接每秒最多能完成的操作数
+        public float getMaxRate() {
+            float latency = getAverageLatency();
+            return latency == 0 ? 0 : 1000 / latency;
+        }
+
+        @Override
+        public String toString() {
+            return "depth=" + depth + ", completed=" + completedCount + ", failed=" + failedCount + ", timeout=" + timeoutCount
+                    + ", averageLatency=" + getAverageLatency() + "ms, maxLatency=" + getMaxLatency() + "ms, averageWait=" + getAverageWait() + "ms";
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.s10715.bluetoothhelper.utils;
+
+/**
+ * BLE通知的无锁环形缓冲区，单生产者（GATT回调线程）、单消费者（分发线程）
+ * 所有槽位在构造时按初始大小一次性分配，通知的内容复制到槽位中；MTU变大后，槽位在第一次放入更长的通知时扩大一次，之后不会再产生新的对象
+ * 消费者一次取出所有已到达的通知作为一批交给回调，不需要为每个通知post一个Runnable
+ * 缓冲区已满时丢弃新到的通知并计数，不会阻塞GATT回调线程
+ */
+public class NotificationRing {
+
+    private final byte[][] data;
+    private final int[] lengths;
+    private final long[] timestamps;
+    private final Object[] sources;
+    private final int mask;
+    private final int maxSlotSize;
+    private final Batch batch = new Batch();
+
+    //head只由消费者修改，tail只由生产者修改
+    private volatile long head;
+    private volatile long tail;
+
+    private volatile long receivedCount;
+    private volatile long droppedCount;
+
+    /**
+     * @param capacity 槽位数，会向上取整为2的幂
+     * @param slotSize 单个通知的最大字节数，一般是MTU-3
+     */
+    public NotificationRing(int capacity, int slotSize) {
+        this(capacity, slotSize, slotSize);
+    }
+
+    /**
+     * @param initialSlotSize 槽位的初始大小，一般是当前协商的MTU-3
+     * @param maxSlotSize     单个通知的最大字节数，一般是最大MTU-3
+     */
+    public NotificationRing(int capacity, int initialSlotSize, int maxSlotSize) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.mask = size - 1;
+        this.maxSlotSize = maxSlotSize;
+        this.data = new byte[size][Math.min(initialSlotSize, maxSlotSize)];
+        this.lengths = new int[size];
+        this.timestamps = new long[size];
+        this.sources = new Object[size];
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * 生产者放入一个通知，只能在一个线程中调用
+     *
+     * @param source 通知来自哪里，一般是特征值，原样交给消费者
+     * @return 缓冲区已满或value超过maxSlotSize时返回false，该通知被丢弃
+     */
+    public boolean offer(Object source, byte[] value, int offset, int length) {
+        long t = tail;
+        if (t - head > mask || length > maxSlotSize) {
+            droppedCount++;
+            return false;
+        }
+        int index = (int) t & mask;
+        //该槽位此时不属于消费者，可以直接替换，tail的volatile写保证消费者看到新的数组
+        if (data[index].length < length)
+            data[index] = new byte[length];
+        System.arraycopy(value, offset, data[index], 0, length);
+        lengths[index] = length;
+        timestamps[index] = System.nanoTime();
+        sources[index] = source;
+        receivedCount++;
+        tail = t + 1;//volatile写，之前写入槽位的内容对消费者可见
+        return true;
+    }
+
+    /**
+     * 消费者取出最多maxCount个通知作为一批交给listener，只能在一个线程中调用
+     *
+     * @return 本批的通知数，为0时不会回调listener
+     */
+    public int drain(BatchListener listener, int maxCount) {
+        long h = head;
+        int count = (int) Math.min(tail - h, maxCount);
+        if (count <= 0)
+            return 0;
+        batch.start = h;
+        batch.count = count;
+        try {
+            listener.onBatch(batch);
+        } finally {
+            batch.count = 0;
+            for (long i = h; i < h + count; i++)
+                sources[(int) i & mask] = null;
+            head = h + count;//回调结束后才归还槽位
+        }
+        return count;
+    }
+
+    //当前等待取出的通知数
+    public int size() {
+        return (int) (tail - head);
+    }
+
+    //放入的通知总数，不包括被丢弃的
+    public long getReceivedCount() {
+        return receivedCount;
+    }
+
+    //因为缓冲区已满或太大被丢弃的通知数
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+
+    public interface BatchListener {
+        //batch只在回调执行期间有效
+        void onBatch(Batch batch);
+    }
+
+    /**
+     * 一批通知，直接引用缓冲区中的槽位，只在回调执行期间有效，需要保留时必须复制
+     */
+    public class Batch {
+        private long start;
+        private int count;
+
+        public int size() {
+            return count;
+        }
+
+        //第index个通知的数据，有效内容为[0, getLength(index))
+        public byte[] getData(int index) {
+            return data[slot(index)];
+        }
+
+        public int getLength(int index) {
+            return lengths[slot(index)];
+        }
+
+        //复制出第index个通知的内容
+        public byte[] getValue(int index) {
+            int slot = slot(index);
+            byte[] value = new byte[lengths[slot]];
+            System.arraycopy(data[slot], 0, value, 0, value.length);
+            return value;
+        }
+
+        //第index个通知到达时的System.nanoTime()
+        public long getTimestamp(int index) {
+            return timestamps[slot(index)];
+        }
+
+        public Object getSource(int index) {
+            return sources[slot(index)];
+        }
+
+        //到目前为止被丢弃的通知总数
+        public long getDroppedCount() {
+            return droppedCount;
+        }
+
+        private int slot(int index) {
+            if (index < 0 || index >= count)
+                throw new IndexOutOfBoundsException("index " + index + ", size " + count);
+            return (int) (start + index) & mask;
+        }
+    }
+}
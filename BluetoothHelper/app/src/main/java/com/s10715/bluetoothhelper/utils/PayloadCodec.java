@@ -0,0 +1,254 @@
+package com.s10715.bluetoothhelper.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 负载压缩，每个连接一个，Deflater和Inflater在连接期间一直复用，不会为每条消息创建新的对象
+ * 每条消息编码后以1个字节的标记开头，后面是原始数据或Deflate压缩后的数据
+ * 小于minSize的数据、压缩后没有变小的数据直接原样发送；连续压缩失败时暂停尝试一段时间，避免对不可压缩的数据浪费CPU
+ * encode和decode可以在两个线程同时调用，但encode、decode各自不能在多个线程同时调用
+ */
+public class PayloadCodec {
+
+    public static final int CODEC_NONE = 0;
+    public static final int CODEC_DEFLATE = 1;
+
+    public static final int DEFAULT_MIN_SIZE = 64;
+    public static final int DEFAULT_MAX_SIZE = 64 * 1024;
+
+    //消息标记
+    private static final byte FLAG_RAW = 0;
+    private static final byte FLAG_DEFLATE = 1;
+
+    //连接建立后双方交换的握手消息："BHZ" + 版本 + 支持的压缩方式
+    private static final byte[] HELLO_MAGIC = {'B', 'H', 'Z'};
+    private static final byte HELLO_VERSION = 1;
+    public static final int HELLO_SIZE = HELLO_MAGIC.length + 2;
+    //等待握手消息时检查数据是否到达的间隔，单位为毫秒
+    private static final long HELLO_POLL_INTERVAL = 10;
+
+    //连续压缩失败后最多跳过的消息数
+    private static final int MAX_SKIP = 64;
+
+    private final Deflater deflater;
+    private final Inflater inflater = new Inflater(true);
+    private final int minSize;
+    private final int maxSize;
+
+    private int skip;//还要跳过压缩的消息数
+    private int failures;//连续压缩失败的次数
+
+    //只在encode中修改，decode中只读，统计信息允许稍有误差
+    private volatile long inputBytes;
+    private volatile long outputBytes;
+    private volatile long compressedCount;
+    private volatile long skippedCount;
+
+    public PayloadCodec() {
+        this(Deflater.BEST_SPEED, DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param level   Deflater的压缩级别，链路速度远低于CPU时BEST_SPEED已经足够
+     * @param minSize 小于该大小的数据不压缩
+     * @param maxSize 一条消息解压后的最大字节数
+     */
+    public PayloadCodec(int level, int minSize, int maxSize) {
+        this.deflater = new Deflater(level, true);
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    //长度为length的数据编码后最多占用的字节数
+    public static int maxEncodedSize(int length) {
+        return length + 1;
+    }
+
+    /**
+     * 编码data[offset, offset + length)，结果写入out[outOffset, ...)，out至少要有maxEncodedSize(length)的空间
+     *
+     * @return 编码后的字节数
+     */
+    public int encode(byte[] data, int offset, int length, byte[] out, int outOffset) {
+        if (length > maxSize)
+            throw new IllegalArgumentException("payload size " + length + " exceeds max size " + maxSize);
+
+        int encoded = 0;
+        if (length < minSize) {
+            skippedCount++;
+        } else if (skip > 0) {
+            skip--;
+            skippedCount++;
+        } else {
+            deflater.reset();
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            //只接受比原始数据小的结果，输出空间用完说明不值得压缩
+            int limit = length - 1;
+            while (!deflater.finished() && encoded < limit) {
+                int bytes = deflater.deflate(out, outOffset + 1 + encoded, limit - encoded);
+                if (bytes == 0 && deflater.needsInput())
+                    break;
+                encoded += bytes;
+            }
+            if (deflater.finished()) {
+                failures = 0;
+                compressedCount++;
+            } else {
+                encoded = 0;
+                failures++;
+                skip = Math.min(MAX_SKIP, 1 << Math.min(failures, 6)) - 1;
+                skippedCount++;
+            }
+        }
+
+        if (encoded > 0) {
+            out[outOffset] = FLAG_DEFLATE;
+        } else {
+            out[outOffset] = FLAG_RAW;
+            System.arraycopy(data, offset, out, outOffset + 1, length);
+            encoded = length;
+        }
+        inputBytes += length;
+        outputBytes += encoded + 1;
+        return encoded + 1;
+    }
+
+    /**
+     * 解码encode的结果，解码后的数据写入out[outOffset, ...)
+     *
+     * @return 解码后的字节数
+     * @throws IOException 数据格式错误或者解码后超过了out的空间
+     */
+    public int decode(byte[] data, int offset, int length, byte[] out, int outOffset) throws IOException {
+        if (length < 1)
+            throw new IOException("empty payload");
+
+        int size = length - 1;
+        int capacity = Math.min(maxSize, out.length - outOffset);
+        if (data[offset] == FLAG_RAW) {
+            if (size > capacity)
+                throw new IOException("payload size " + size + " exceeds max size " + capacity);
+            System.arraycopy(data, offset + 1, out, outOffset, size);
+            return size;
+        }
+        if (data[offset] != FLAG_DEFLATE)
+            throw new IOException("unknown payload flag " + data[offset]);
+
+        inflater.reset();
+        inflater.setInput(data, offset + 1, size);
+        int decoded = 0;
+        try {
+            while (!inflater.finished()) {
+                if (decoded == capacity)
+                    throw new IOException("payload exceeds max size " + capacity);
+                int bytes = inflater.inflate(out, outOffset + decoded, capacity - decoded);
+                if (bytes == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("truncated compressed payload");
+                decoded += bytes;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupted compressed payload", e);
+        }
+        return decoded;
+    }
+
+    //encode的原始字节数/实际发送的字节数，大于1表示压缩有效，没有数据时为1
+    public float getCompressionRatio() {
+        long output = outputBytes;
+        return output == 0 ? 1 : (float) inputBytes / output;
+    }
+
+    public long getInputBytes() {
+        return inputBytes;
+    }
+
+    public long getOutputBytes() {
+        return outputBytes;
+    }
+
+    //被压缩的消息数
+    public long getCompressedCount() {
+        return compressedCount;
+    }
+
+    //因为太小、不可压缩而原样发送的消息数
+    public long getSkippedCount() {
+        return skippedCount;
+    }
+
+    //握手消息，codecs为本端支持的压缩方式；BLE外设的能力特征值也使用该格式
+    public static byte[] hello(int codecs) {
+        byte[] hello = new byte[HELLO_SIZE];
+        System.arraycopy(HELLO_MAGIC, 0, hello, 0, HELLO_MAGIC.length);
+        hello[HELLO_MAGIC.length] = HELLO_VERSION;
+        hello[HELLO_MAGIC.length + 1] = (byte) codecs;
+        return hello;
+    }
+
+    /**
+     * 解析握手消息
+     *
+     * @return 对方支持的压缩方式，不是握手消息时返回-1
+     */
+    public static int parseHello(byte[] data, int offset, int length) {
+        if (data == null || length < HELLO_SIZE)
+            return -1;
+        for (int i = 0; i < HELLO_MAGIC.length; i++) {
+            if (data[offset + i] != HELLO_MAGIC[i])
+                return -1;
+        }
+        return data[offset + HELLO_MAGIC.length + 1] & 0xFF;
+    }
+
+    //发送握手消息
+    public static void writeHello(OutputStream outputStream, int codecs) throws IOException {
+        outputStream.write(hello(codecs));
+        outputStream.flush();
+    }
+
+    /**
+     * 等待对方的握手消息，最多等待timeout毫秒；数据到齐后才读取，不会阻塞在read中
+     * 超时、对方关闭或收到的不是握手消息时返回CODEC_NONE，已经读出的数据退回inputStream，之后按普通数据读取
+     *
+     * @param inputStream 至少能退回HELLO_SIZE个字节
+     * @return 对方支持的压缩方式
+     */
+    public static int readHello(PushbackInputStream inputStream, long timeout) throws IOException {
+        long deadline = System.nanoTime() + timeout * 1000000;
+        while (inputStream.available() < HELLO_SIZE) {
+            if (System.nanoTime() - deadline >= 0)
+                return CODEC_NONE;
+            try {
+                Thread.sleep(HELLO_POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return CODEC_NONE;
+            }
+        }
+
+        byte[] hello = new byte[HELLO_SIZE];
+        int read = 0;
+        while (read < hello.length) {
+            int bytes = inputStream.read(hello, read, hello.length - read);
+            //available()已经保证数据到齐，返回0或-1时不再等待
+            if (bytes <= 0)
+                break;
+            read += bytes;
+        }
+        int codecs = read == hello.length ? parseHello(hello, 0, read) : -1;
+        if (codecs != -1)
+            return codecs;
+        inputStream.unread(hello, 0, read);
+        return CODEC_NONE;
+    }
+}
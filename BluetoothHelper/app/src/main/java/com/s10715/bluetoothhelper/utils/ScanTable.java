@@ -0,0 +1,182 @@
+package com.s10715.bluetoothhelper.utils;
+
+/**
+ * 扫描结果表，key是48位的mac（见parseMac），用开放寻址（线性探测）保存在long数组中
+ * 查找时不需要计算字符串的哈希、不会装箱，稳定运行时（没有新设备）不会产生新的对象；值一般是可变对象，直接在原对象上更新
+ * 删除时把后面的元素前移填补空位，不使用删除标记，频繁的发现、丢失不会使表变慢
+ * 不是线程安全的
+ */
+public class ScanTable<V> {
+
+    private static final long PRESENT = 1L << 48;//保存在keys中的值都带有该位，0表示空位
+    private static final long MAC_MASK = PRESENT - 1;
+    private static final int MIN_CAPACITY = 16;
+    private static final byte[] HEX = new byte[128];//字符对应的十六进制数值，不是十六进制字符时为-1
+
+    static {
+        for (int i = 0; i < HEX.length; i++)
+            HEX[i] = (byte) Character.digit(i, 16);
+    }
+
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int size;
+    private int resizeAt;//装载因子为1/2
+
+    public ScanTable() {
+        this(MIN_CAPACITY / 2);
+    }
+
+    /**
+     * @param expectedSize 预计的设备数，超过后自动扩容
+     */
+    public ScanTable(int expectedSize) {
+        allocate(Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, expectedSize) * 2 - 1) << 1));
+    }
+
+    /**
+     * 把"AA:BB:CC:DD:EE:FF"格式的mac转换为48位整数，不区分大小写，不会产生新的对象
+     *
+     * @return 格式错误时返回-1
+     */
+    public static long parseMac(String mac) {
+        if (mac == null || mac.length() != 17 || mac.charAt(2) != ':' || mac.charAt(5) != ':' || mac.charAt(8) != ':'
+                || mac.charAt(11) != ':' || mac.charAt(14) != ':')
+            return -1;
+        //6个字节互不依赖，分成高低两半各自计算，比逐个字符移位累加快；非法字符使结果为负数，最后统一检查
+        int high = (hexByte(mac, 0) << 16) | (hexByte(mac, 3) << 8) | hexByte(mac, 6);
+        int low = (hexByte(mac, 9) << 16) | (hexByte(mac, 12) << 8) | hexByte(mac, 15);
+        if ((high | low) < 0)
+            return -1;
+        return ((long) high << 24) | low;
+    }
+
+    //index处的两个十六进制字符，不是十六进制字符时返回负数
+    private static int hexByte(String mac, int index) {
+        char high = mac.charAt(index);
+        char low = mac.charAt(index + 1);
+        if ((high | low) >= HEX.length)
+            return -1;
+        return (HEX[high] << 4) | HEX[low];
+    }
+
+    public V get(long mac) {
+        long key = (mac & MAC_MASK) | PRESENT;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            long k = keys[slot];
+            if (k == key)
+                return value(slot);
+            if (k == 0)
+                return null;
+        }
+    }
+
+    /**
+     * @return 之前的值，没有时返回null
+     */
+    public V put(long mac, V value) {
+        long key = (mac & MAC_MASK) | PRESENT;
+        int slot = hash(key) & mask;
+        while (keys[slot] != 0) {
+            if (keys[slot] == key) {
+                V old = value(slot);
+                values[slot] = value;
+                return old;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size >= resizeAt)
+            allocate(keys.length * 2);
+        return null;
+    }
+
+    public V remove(long mac) {
+        long key = (mac & MAC_MASK) | PRESENT;
+        int slot = hash(key) & mask;
+        while (keys[slot] != key) {
+            if (keys[slot] == 0)
+                return null;
+            slot = (slot + 1) & mask;
+        }
+        V old = value(slot);
+        size--;
+
+        //后面同一个探测序列上的元素前移，保证查找时不会在空位提前结束
+        int gap = slot;
+        for (int i = (slot + 1) & mask; keys[i] != 0; i = (i + 1) & mask) {
+            int home = hash(keys[i]) & mask;
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = keys[i];
+                values[gap] = values[i];
+                gap = i;
+            }
+        }
+        keys[gap] = 0;
+        values[gap] = null;
+        return old;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        if (size == 0)
+            return;
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = 0;
+            values[i] = null;
+        }
+        size = 0;
+    }
+
+    /**
+     * 用于遍历：slot从0到capacity() - 1，valueAt返回null的是空位；遍历时不能修改
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+    public V valueAt(int slot) {
+        return keys[slot] == 0 ? null : value(slot);
+    }
+
+    public long keyAt(int slot) {
+        return keys[slot] == 0 ? -1 : keys[slot] & MAC_MASK;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V value(int slot) {
+        return (V) values[slot];
+    }
+
+    private void allocate(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        resizeAt = capacity / 2;
+        if (oldKeys == null)
+            return;
+        for (int i = 0; i < oldKeys.length; i++) {
+            long key = oldKeys[i];
+            if (key == 0)
+                continue;
+            int slot = hash(key) & mask;
+            while (keys[slot] != 0)
+                slot = (slot + 1) & mask;
+            keys[slot] = key;
+            values[slot] = oldValues[i];
+        }
+    }
+
+    //mac的低位是厂商分配的序号，高位的OUI在同一批设备中相同，乘法混合后取高位
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) ^ (int) h;
+    }
+}
@@ -48,6 +48,21 @@ public class BluetoothListView extends ListView {
         adapter.notifyDataSetChanged();
     }
 
+    //只刷新info所在的一行，不在屏幕上时不需要刷新，滑动到该行时getView会使用最新的数据
+    public void updateItem(BluetoothHelper.BluetoothInfo info) {
+        if (adapter == null || adapter.infoList == null)
+            return;
+        int index = adapter.infoList.indexOf(info);
+        if (index < 0)
+            return;
+        int position = index + getHeaderViewsCount();
+        if (position < getFirstVisiblePosition() || position > getLastVisiblePosition())
+            return;
+        View child = getChildAt(position - getFirstVisiblePosition());
+        if (child != null)
+            adapter.getView(index, child, this);
+    }
+
     public void setOnItemClickListener(OnItemClickListener listener) {
         this.listener = listener;
     }
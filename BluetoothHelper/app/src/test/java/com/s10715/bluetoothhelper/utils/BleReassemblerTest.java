@@ -0,0 +1,228 @@
+package com.s10715.bluetoothhelper.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BleReassemblerTest {
+
+    //保存发出的分片，fragment返回后数组会被复用，所以复制一份
+    private static class Link implements BleReassembler.FragmentSender {
+        final List<byte[]> fragments = new ArrayList<>();
+        int refuseAt = -1;//第几个分片发送失败，-1表示都成功
+
+        @Override
+        public boolean send(byte[] fragment, int offset, int length) {
+            if (fragments.size() == refuseAt)
+                return false;
+            fragments.add(Arrays.copyOfRange(fragment, offset, offset + length));
+            return true;
+        }
+    }
+
+    private static class Collector implements BleReassembler.MessageListener {
+        final List<byte[]> messages = new ArrayList<>();
+
+        @Override
+        public void onMessage(byte[] data, int offset, int length) {
+            messages.add(Arrays.copyOfRange(data, offset, offset + length));
+        }
+    }
+
+    private static void feedAll(BleReassembler reassembler, List<byte[]> fragments, Collector collector) {
+        for (byte[] fragment : fragments)
+            reassembler.feed(fragment, 0, fragment.length, collector);
+    }
+
+    @Test
+    public void roundTripAcrossSizesAndMtus() {
+        Random random = new Random(1);
+        int[] sizes = {0, 1, 14, 15, 16, 19, 20, 100, 511, 512, 4000};
+        int[] mtus = {23, 185, 247, 517};
+        BleReassembler.Fragmenter fragmenter = new BleReassembler.Fragmenter();
+        BleReassembler reassembler = new BleReassembler(4096);
+        Collector collector = new Collector();
+        List<byte[]> expected = new ArrayList<>();
+
+        for (int mtu : mtus) {
+            int fragmentSize = mtu - 3;
+            for (int size : sizes) {
+                byte[] data = new byte[size + 3];
+                random.nextBytes(data);
+                Link link = new Link();
+                int count = fragmenter.fragment(data, 3, size, fragmentSize, link);
+                assertEquals(BleReassembler.fragmentCount(size, fragmentSize), count);
+                assertEquals(count, link.fragments.size());
+                for (byte[] fragment : link.fragments)
+                    assertTrue(fragment.length <= fragmentSize);
+                feedAll(reassembler, link.fragments, collector);
+                expected.add(Arrays.copyOfRange(data, 3, data.length));
+            }
+        }
+
+        assertEquals(expected.size(), collector.messages.size());
+        for (int i = 0; i < expected.size(); i++)
+            assertArrayEquals(expected.get(i), collector.messages.get(i));
+        assertEquals(0, reassembler.getLostCount());
+        assertEquals(0, reassembler.getDroppedCount());
+        assertFalse(reassembler.isAssembling());
+    }
+
+    @Test
+    public void lostFragmentDropsMessageUntilNextStart() {
+        BleReassembler.Fragmenter fragmenter = new BleReassembler.Fragmenter();
+        Link link = new Link();
+        byte[] first = new byte[100];
+        byte[] second = new byte[100];
+        Arrays.fill(second, (byte) 2);
+        fragmenter.fragment(first, 0, first.length, 20, link);
+        int firstCount = link.fragments.size();
+        fragmenter.fragment(second, 0, second.length, 20, link);
+
+        //第一条消息中间丢失两个分片
+        link.fragments.remove(2);
+        link.fragments.remove(2);
+        BleReassembler reassembler = new BleReassembler(1024);
+        Collector collector = new Collector();
+        feedAll(reassembler, link.fragments, collector);
+
+        assertEquals(1, collector.messages.size());
+        assertArrayEquals(second, collector.messages.get(0));
+        assertEquals(2, reassembler.getLostCount());
+        assertEquals(1, reassembler.getDroppedCount());
+        assertEquals(1, reassembler.getMessageCount());
+        assertEquals(firstCount * 2 - 2, reassembler.getFragmentCount());
+    }
+
+    @Test
+    public void lostStartFragmentSkipsToNextMessage() {
+        BleReassembler.Fragmenter fragmenter = new BleReassembler.Fragmenter();
+        Link link = new Link();
+        byte[] data = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20};
+        fragmenter.fragment(data, 0, data.length, 10, link);
+        fragmenter.fragment(data, 0, data.length, 10, link);
+        link.fragments.remove(0);
+
+        BleReassembler reassembler = new BleReassembler(64);
+        Collector collector = new Collector();
+        feedAll(reassembler, link.fragments, collector);
+
+        assertEquals(1, collector.messages.size());
+        assertArrayEquals(data, collector.messages.get(0));
+        //第一个分片是收到的第一个分片，还没有期望的序号，不算丢失
+        assertEquals(0, reassembler.getLostCount());
+        assertEquals(0, reassembler.getDroppedCount());
+    }
+
+    @Test
+    public void sequenceWrapsAroundAfter64Fragments() {
+        BleReassembler.Fragmenter fragmenter = new BleReassembler.Fragmenter();
+        BleReassembler reassembler = new BleReassembler(16);
+        Collector collector = new Collector();
+        byte[] data = {42};
+        for (int i = 0; i < 200; i++) {
+            Link link = new Link();
+            assertEquals(1, fragmenter.fragment(data, 0, 1, 20, link));
+            feedAll(reassembler, link.fragments, collector);
+        }
+        assertEquals(200, collector.messages.size());
+        assertEquals(0, reassembler.getLostCount());
+    }
+
+    @Test
+    public void oversizedMessageIsDropped() {
+        BleReassembler.Fragmenter fragmenter = new BleReassembler.Fragmenter();
+        Link link = new Link();
+        byte[] large = new byte[100];
+        byte[] small = {1, 2, 3};
+        fragmenter.fragment(large, 0, large.length, 20, link);
+        fragmenter.fragment(small, 0, small.length, 20, link);
+
+        BleReassembler reassembler = new BleReassembler(50);
+        Collector collector = new Collector();
+        feedAll(reassembler, link.fragments, collector);
+
+        assertEquals(1, collector.messages.size());
+        assertArrayEquals(small, collector.messages.get(0));
+        assertEquals(1, reassembler.getDroppedCount());
+        assertEquals(0, reassembler.getLostCount());
+    }
+
+    @Test
+    public void refusedFragmentAbortsMessage() {
+        BleReassembler.Fragmenter fragmenter = new BleReassembler.Fragmenter();
+        Link link = new Link();
+        link.refuseAt = 2;
+        assertEquals(-1, fragmenter.fragment(new byte[100], 0, 100, 20, link));
+        assertEquals(2, link.fragments.size());
+
+        BleReassembler reassembler = new BleReassembler(1024);
+        Collector collector = new Collector();
+        feedAll(reassembler, link.fragments, collector);
+        assertTrue(reassembler.isAssembling());
+
+        //重新发送时序号跳过了拒绝的分片，接收端丢弃不完整的消息后收到新消息
+        link.refuseAt = -1;
+        link.fragments.clear();
+        byte[] data = {9, 8, 7};
+        fragmenter.fragment(data, 0, data.length, 20, link);
+        feedAll(reassembler, link.fragments, collector);
+        assertEquals(1, collector.messages.size());
+        assertArrayEquals(data, collector.messages.get(0));
+        assertEquals(1, reassembler.getDroppedCount());
+    }
+
+    @Test
+    public void resetForgetsSequence() {
+        BleReassembler.Fragmenter fragmenter = new BleReassembler.Fragmenter();
+        Link link = new Link();
+        fragmenter.fragment(new byte[100], 0, 100, 20, link);
+        BleReassembler reassembler = new BleReassembler(1024);
+        Collector collector = new Collector();
+        reassembler.feed(link.fragments.get(0), 0, link.fragments.get(0).length, collector);
+        assertTrue(reassembler.isAssembling());
+
+        reassembler.reset();
+        assertFalse(reassembler.isAssembling());
+        //重连后发送端从新的序号开始，不应该算作丢失
+        link.fragments.clear();
+        byte[] data = {5};
+        new BleReassembler.Fragmenter().fragment(data, 0, 1, 20, link);
+        feedAll(reassembler, link.fragments, collector);
+        assertEquals(1, collector.messages.size());
+        assertEquals(0, reassembler.getLostCount());
+        assertEquals(0, reassembler.getDroppedCount());
+    }
+
+    @Test
+    public void malformedFragmentsAreIgnored() {
+        BleReassembler reassembler = new BleReassembler(16);
+        Collector collector = new Collector();
+        assertEquals(0, reassembler.feed(new byte[0], 0, 0, collector));
+        //开始分片不足5个字节
+        assertEquals(0, reassembler.feed(new byte[]{(byte) 0xC0, 0}, 0, 2, collector));
+        //声明的长度与实际内容不一致
+        assertEquals(0, reassembler.feed(new byte[]{(byte) 0xC1, 0, 0, 0, 3, 1}, 0, 6, collector));
+        assertEquals(1, reassembler.getDroppedCount());
+        assertTrue(collector.messages.isEmpty());
+    }
+
+    @Test
+    public void fragmentCountMatchesLayout() {
+        assertEquals(1, BleReassembler.fragmentCount(0, 20));
+        assertEquals(1, BleReassembler.fragmentCount(15, 20));
+        assertEquals(2, BleReassembler.fragmentCount(16, 20));
+        assertEquals(2, BleReassembler.fragmentCount(34, 20));
+        assertEquals(3, BleReassembler.fragmentCount(35, 20));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooSmallFragmentSizeIsRejected() {
+        new BleReassembler.Fragmenter().fragment(new byte[1], 0, 1, BleReassembler.START_HEADER_SIZE, new Link());
+    }
+}
@@ -0,0 +1,86 @@
+package com.s10715.bluetoothhelper.utils;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    @Test
+    public void acquireTimesOutWhenExhausted() throws InterruptedException {
+        BufferPool pool = new BufferPool(2, 16, null);
+        BufferPool.Buffer first = pool.acquire(10);
+        BufferPool.Buffer second = pool.acquire(10);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNull(pool.acquire(10));
+        assertEquals(0, pool.getFreeCount());
+
+        first.release();
+        assertSame(first, pool.acquire(10));
+    }
+
+    @Test
+    public void repeatedReleaseReturnsOnce() throws InterruptedException {
+        BufferPool pool = new BufferPool(2, 16, null);
+        assertNotNull(pool.acquire(10));
+        BufferPool.Buffer buffer = pool.acquire(10);
+        buffer.release();
+        buffer.release();
+        buffer.onDropped();
+        assertEquals(1, pool.getFreeCount());
+    }
+
+    //用户release和分发器丢弃同时发生时，Buffer不能被放回池中两次
+    @Test
+    public void concurrentReleaseReturnsOnce() throws InterruptedException {
+        //另一个Buffer一直不归还，重复归还的Buffer会占用它的位置
+        final BufferPool pool = new BufferPool(2, 16, null);
+        assertNotNull(pool.acquire(10));
+        for (int round = 0; round < 10000; round++) {
+            final BufferPool.Buffer buffer = pool.acquire(10);
+            assertNotNull(buffer);
+            final CountDownLatch go = new CountDownLatch(1);
+            Thread[] threads = new Thread[4];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            go.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        buffer.release();
+                    }
+                });
+                threads[i].start();
+            }
+            go.countDown();
+            for (Thread thread : threads)
+                thread.join();
+            assertEquals(1, pool.getFreeCount());
+        }
+    }
+
+    @Test
+    public void runDeliversOrReleases() throws InterruptedException {
+        final BufferPool.Buffer[] delivered = new BufferPool.Buffer[1];
+        BufferPool pool = new BufferPool(1, 16, new BufferPool.Delivery() {
+            @Override
+            public void deliver(BufferPool.Buffer buffer) {
+                delivered[0] = buffer;
+            }
+        });
+        BufferPool.Buffer buffer = pool.acquire(10);
+        buffer.run();
+        assertSame(buffer, delivered[0]);
+        assertEquals(0, pool.getFreeCount());
+
+        BufferPool plain = new BufferPool(1, 16, null);
+        plain.acquire(10).run();
+        assertEquals(1, plain.getFreeCount());
+    }
+}
@@ -0,0 +1,161 @@
+package com.s10715.bluetoothhelper.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CallbackDispatcherTest {
+
+    //用手动执行的Executor模拟主线程，run()之前回调都在队列中
+    private static class ManualExecutor implements Executor {
+        private final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void run() {
+            while (!tasks.isEmpty())
+                tasks.remove(0).run();
+        }
+    }
+
+    private static Runnable record(final List<Integer> ran, final int value) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                ran.add(value);
+            }
+        };
+    }
+
+    @Test
+    public void coalesceKeepsAllWhenQueueHasRoom() {
+        ManualExecutor main = new ManualExecutor();
+        CallbackDispatcher dispatcher = new CallbackDispatcher(CallbackDispatcher.TARGET_MAIN, 4,
+                CallbackDispatcher.OVERFLOW_COALESCE, main);
+        List<Integer> ran = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            dispatcher.execute(record(ran, i), "device");
+        main.run();
+
+        assertEquals(Arrays.asList(0, 1, 2), ran);
+        assertEquals(0, dispatcher.getDroppedCount());
+    }
+
+    @Test
+    public void coalesceReplacesLatestWhenQueueIsFull() {
+        ManualExecutor main = new ManualExecutor();
+        CallbackDispatcher dispatcher = new CallbackDispatcher(CallbackDispatcher.TARGET_MAIN, 2,
+                CallbackDispatcher.OVERFLOW_COALESCE, main);
+        List<Integer> ran = new ArrayList<>();
+        dispatcher.execute(record(ran, 0), "a");
+        dispatcher.execute(record(ran, 1), "b");
+        dispatcher.execute(record(ran, 2), "a");
+        dispatcher.execute(record(ran, 3), "b");
+        main.run();
+
+        assertEquals(Arrays.asList(2, 3), ran);
+        assertEquals(2, dispatcher.getDroppedCount());
+
+        //执行完后key不再排队，之后的回调重新排队
+        dispatcher.execute(record(ran, 4), "a");
+        main.run();
+        assertEquals(Arrays.asList(2, 3, 4), ran);
+    }
+
+    @Test
+    public void coalesceWithoutKeyDropsOldest() {
+        ManualExecutor main = new ManualExecutor();
+        CallbackDispatcher dispatcher = new CallbackDispatcher(CallbackDispatcher.TARGET_MAIN, 2,
+                CallbackDispatcher.OVERFLOW_COALESCE, main);
+        List<Integer> ran = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            dispatcher.execute(record(ran, i), null);
+        main.run();
+
+        assertEquals(Arrays.asList(1, 2), ran);
+        assertEquals(1, dispatcher.getDroppedCount());
+    }
+
+    @Test
+    public void droppedTaskIsNotified() {
+        ManualExecutor main = new ManualExecutor();
+        CallbackDispatcher dispatcher = new CallbackDispatcher(CallbackDispatcher.TARGET_MAIN, 1,
+                CallbackDispatcher.OVERFLOW_DROP_OLDEST, main);
+        final List<String> events = new ArrayList<>();
+        dispatcher.execute(new DroppableTask(events, "first"));
+        dispatcher.execute(new DroppableTask(events, "second"));
+        main.run();
+
+        assertEquals(Arrays.asList("dropped first", "ran second"), events);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mainTargetCannotBlock() {
+        new CallbackDispatcher(CallbackDispatcher.TARGET_MAIN, 1, CallbackDispatcher.OVERFLOW_BLOCK, new ManualExecutor());
+    }
+
+    @Test
+    public void blockingBackgroundKeepsEveryTaskInOrder() throws Exception {
+        CallbackDispatcher dispatcher = new CallbackDispatcher(CallbackDispatcher.TARGET_BACKGROUND, 1,
+                CallbackDispatcher.OVERFLOW_BLOCK, null);
+        final List<Integer> ran = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(1);
+        for (int i = 0; i < 1000; i++)
+            dispatcher.execute(record(ran, i));
+        dispatcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1000, ran.size());
+        for (int i = 0; i < 1000; i++)
+            assertEquals(i, (int) ran.get(i));
+        assertEquals(0, dispatcher.getDroppedCount());
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void inlineRunsOnCallingThread() {
+        CallbackDispatcher dispatcher = new CallbackDispatcher(CallbackDispatcher.TARGET_INLINE, 1,
+                CallbackDispatcher.OVERFLOW_BLOCK, null);
+        List<Integer> ran = new ArrayList<>();
+        dispatcher.execute(record(ran, 0));
+        dispatcher.execute(record(ran, 1), "key");
+        assertEquals(Arrays.asList(0, 1), ran);
+    }
+
+
+    private static class DroppableTask implements Runnable, CallbackDispatcher.Droppable {
+        private final List<String> events;
+        private final String name;
+
+        DroppableTask(List<String> events, String name) {
+            this.events = events;
+            this.name = name;
+        }
+
+        @Override
+        public void run() {
+            events.add("ran " + name);
+        }
+
+        @Override
+        public void onDropped() {
+            events.add("dropped " + name);
+        }
+    }
+}
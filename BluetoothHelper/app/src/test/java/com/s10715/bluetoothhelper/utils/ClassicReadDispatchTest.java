@@ -0,0 +1,111 @@
+package com.s10715.bluetoothhelper.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * 经典蓝牙读取：用户为OnReadListener设置的分发器要对包装后的OnBufferReadListener生效
+ */
+public class ClassicReadDispatchTest {
+
+    @Test
+    public void wrappedListenerUsesOwnerDispatcher() {
+        BluetoothHelper.OnReadListener listener = new RecordingListener(null);
+        CallbackDispatcher background = new CallbackDispatcher(CallbackDispatcher.TARGET_BACKGROUND, 16,
+                CallbackDispatcher.OVERFLOW_DROP_OLDEST, null);
+        Map<Object, CallbackDispatcher> dispatchers = new HashMap<>();
+        dispatchers.put(listener, background);
+
+        assertSame(background, BluetoothHelper.findDispatcher(dispatchers, BluetoothHelper.toBufferReadListener(listener)));
+        assertSame(background, BluetoothHelper.findDispatcher(dispatchers, listener));
+        assertNull(BluetoothHelper.findDispatcher(dispatchers, null));
+        background.shutdown();
+    }
+
+    @Test
+    public void backgroundDispatcherReceivesClassicData() throws Exception {
+        byte[] input = new byte[10000];
+        for (int i = 0; i < input.length; i++)
+            input[i] = (byte) i;
+
+        final CountDownLatch closed = new CountDownLatch(1);
+        final RecordingListener listener = new RecordingListener(closed);
+        final BluetoothHelper.OnBufferReadListener wrapped = BluetoothHelper.toBufferReadListener(listener);
+        CallbackDispatcher background = new CallbackDispatcher(CallbackDispatcher.TARGET_BACKGROUND, 16,
+                CallbackDispatcher.OVERFLOW_BLOCK, null);
+        final Map<Object, CallbackDispatcher> dispatchers = new HashMap<>();
+        dispatchers.put(listener, background);
+
+        //与ClassicLink相同：Buffer交给readListener对应的分发器，分发器执行时再交给readListener
+        BufferPool pool = new BufferPool(4, 1024, new BufferPool.Delivery() {
+            @Override
+            public void deliver(BufferPool.Buffer buffer) {
+                wrapped.onReceived(buffer);
+            }
+        });
+        ClassicReader reader = new ClassicReader(new ByteArrayInputStream(input), pool, new ClassicReader.Callback() {
+            @Override
+            public void onReceived(BufferPool.Buffer buffer) {
+                BluetoothHelper.findDispatcher(dispatchers, wrapped).execute(buffer);
+            }
+
+            @Override
+            public void onEnd(IOException e) {
+                BluetoothHelper.findDispatcher(dispatchers, wrapped).execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        wrapped.onClose();
+                    }
+                });
+            }
+
+            @Override
+            public void onFrame(byte[] data, int offset, int length) {
+            }
+        });
+        Thread readThread = new Thread(reader);
+        readThread.start();
+
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+        readThread.join();
+        assertArrayEquals(input, listener.data.toByteArray());
+        assertEquals("BluetoothHelper-dispatch", listener.threadName);
+        assertEquals(pool.getBufferCount(), pool.getFreeCount());
+        background.shutdown();
+    }
+
+
+    private static class RecordingListener implements BluetoothHelper.OnReadListener {
+        private final CountDownLatch closed;
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        private volatile String threadName;
+
+        RecordingListener(CountDownLatch closed) {
+            this.closed = closed;
+        }
+
+        @Override
+        public void onReceived(byte[] data) {
+            threadName = Thread.currentThread().getName();
+            this.data.write(data, 0, data.length);
+        }
+
+        @Override
+        public void onError() {
+        }
+
+        @Override
+        public void onClose() {
+            closed.countDown();
+        }
+    }
+}
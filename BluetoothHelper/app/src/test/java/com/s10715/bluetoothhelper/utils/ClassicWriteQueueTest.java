@@ -0,0 +1,85 @@
+package com.s10715.bluetoothhelper.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ClassicWriteQueueTest {
+
+    private static class CountingCallback implements ClassicWriteQueue.Callback {
+        final AtomicInteger written = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final List<Object> order = new ArrayList<>();
+
+        @Override
+        public void onWritten(Object tag) {
+            written.incrementAndGet();
+            order.add(tag);
+        }
+
+        @Override
+        public void onFailed(Object tag, IOException e) {
+            failed.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void writesAreBatchedInOrder() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CountingCallback callback = new CountingCallback();
+        ClassicWriteQueue queue = new ClassicWriteQueue(out, callback, 16, 8, 0);
+        for (int i = 0; i < 10; i++)
+            assertTrue(queue.offer(new byte[]{(byte) i, (byte) i, (byte) i}, i));
+        //超过maxBatchSize的数据直接写入
+        assertTrue(queue.offer(new byte[]{10, 10, 10, 10, 10, 10, 10, 10, 10}, 10));
+
+        Thread writer = new Thread(queue);
+        writer.start();
+        while (callback.written.get() < 11)
+            Thread.sleep(1);
+        queue.stop();
+        writer.join();
+
+        byte[] data = out.toByteArray();
+        assertEquals(39, data.length);
+        for (int i = 0; i < 30; i++)
+            assertEquals(i / 3, data[i]);
+        for (int i = 0; i < 11; i++)
+            assertEquals(i, callback.order.get(i));
+    }
+
+    //停止时正在提交的请求要么提交失败，要么收到回调，不能两者都没有
+    @Test
+    public void everyOfferGetsAnAnswerWhenStopping() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            final CountingCallback callback = new CountingCallback();
+            final ClassicWriteQueue queue = new ClassicWriteQueue(new ByteArrayOutputStream(), callback);
+            final AtomicInteger rejected = new AtomicInteger();
+            final AtomicInteger offered = new AtomicInteger();
+            Thread writer = new Thread(queue);
+            writer.start();
+            Thread producer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 200; i++) {
+                        offered.incrementAndGet();
+                        if (!queue.offer(new byte[]{1}, i))
+                            rejected.incrementAndGet();
+                    }
+                }
+            });
+            producer.start();
+            queue.stop();
+            producer.join();
+            writer.join();
+
+            assertEquals(offered.get(), rejected.get() + callback.written.get() + callback.failed.get());
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.s10715.bluetoothhelper.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FileTransferTest {
+
+    private static final byte TYPE_DATA = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    //在调用线程中直接把一帧去掉长度前缀后交给对方，发送方的run()就能在测试线程中完成
+    private static class Link implements FileTransfer.Transport {
+        FileTransfer peer;
+        int dataFrames;//已经交给对方的数据块数
+        long dataBytes;
+        int closeAfter = -1;//交付这么多数据块后断开，-1表示不断开
+        int corrupt = -1;//第几个数据块在传输中出错，-1表示都不出错
+        boolean silent;//丢弃所有帧
+
+        @Override
+        public boolean send(byte[] data, int offset, int length, Runnable onSent) {
+            boolean isData = data[offset + 4] == TYPE_DATA;
+            if (isData && dataFrames == closeAfter)
+                return false;
+            if (!silent) {
+                byte[] frame = Arrays.copyOfRange(data, offset + 4, offset + length);
+                if (isData) {
+                    if (dataFrames == corrupt)
+                        frame[frame.length - 1] ^= 1;
+                    dataFrames++;
+                    dataBytes += length - 4 - 13;
+                }
+                peer.onFrame(frame, 0, frame.length);
+            }
+            if (onSent != null)
+                onSent.run();
+            return true;
+        }
+    }
+
+    private static class Result implements FileTransfer.Listener {
+        long firstProgress = -1;
+        File completed;
+        IOException error;
+
+        @Override
+        public void onProgress(long transferred, long total) {
+            if (firstProgress == -1)
+                firstProgress = transferred;
+        }
+
+        @Override
+        public void onComplete(File file) {
+            completed = file;
+        }
+
+        @Override
+        public void onError(IOException e) {
+            error = e;
+        }
+    }
+
+    private File createFile(String name, int size, long seed) throws IOException {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        File file = new File(folder.newFolder(), name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    //一次完整的传输，返回连接用于检查发送了多少数据
+    private Link transfer(File source, File directory, Result sent, Result received, int closeAfter, int corrupt) {
+        Link toReceiver = new Link();
+        Link toSender = new Link();
+        toReceiver.closeAfter = closeAfter;
+        toReceiver.corrupt = corrupt;
+        FileTransfer sender = FileTransfer.sender(source, 4096, 4, 2000, toReceiver, sent);
+        FileTransfer receiver = FileTransfer.receiver(directory, toSender, received);
+        toReceiver.peer = receiver;
+        toSender.peer = sender;
+        sender.run();
+        if (sent.error != null)
+            receiver.onClosed();
+        return toReceiver;
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        File source = createFile("data.bin", 100 * 1000 + 7, 1);
+        File directory = folder.newFolder();
+        Result sent = new Result();
+        Result received = new Result();
+        transfer(source, directory, sent, received, -1, -1);
+
+        assertNull(sent.error);
+        assertNull(received.error);
+        assertEquals(source, sent.completed);
+        assertEquals(new File(directory, "data.bin"), received.completed);
+        assertArrayEquals(readFile(source), readFile(received.completed));
+        assertFalse(new File(directory, "data.bin.part").exists());
+        assertFalse(new File(directory, "data.bin.part.id").exists());
+    }
+
+    @Test
+    public void emptyFile() throws IOException {
+        File source = createFile("empty.bin", 0, 1);
+        File directory = folder.newFolder();
+        Result received = new Result();
+        transfer(source, directory, new Result(), received, -1, -1);
+        assertNotNull(received.completed);
+        assertEquals(0, received.completed.length());
+    }
+
+    @Test
+    public void resumesFromAcknowledgedOffset() throws IOException {
+        File source = createFile("data.bin", 64 * 1024, 2);
+        File directory = folder.newFolder();
+        Result sent = new Result();
+        Result received = new Result();
+        transfer(source, directory, sent, received, 5, -1);
+        assertNotNull(sent.error);
+        assertNotNull(received.error);
+        assertEquals(5 * 4096, new File(directory, "data.bin.part").length());
+
+        sent = new Result();
+        received = new Result();
+        Link link = transfer(source, directory, sent, received, -1, -1);
+        assertNull(sent.error);
+        assertEquals(5 * 4096, received.firstProgress);
+        assertEquals(64 * 1024 - 5 * 4096, link.dataBytes);
+        assertArrayEquals(readFile(source), readFile(received.completed));
+    }
+
+    @Test
+    public void differentFileWithSameNameStartsOver() throws IOException {
+        File directory = folder.newFolder();
+        Result sent = new Result();
+        transfer(createFile("data.bin", 64 * 1024, 3), directory, sent, new Result(), 5, -1);
+        assertNotNull(sent.error);
+
+        File other = createFile("data.bin", 64 * 1024, 4);
+        Result received = new Result();
+        Link link = transfer(other, directory, new Result(), received, -1, -1);
+        assertEquals(0, received.firstProgress);
+        assertEquals(64 * 1024, link.dataBytes);
+        assertArrayEquals(readFile(other), readFile(received.completed));
+    }
+
+    @Test
+    public void corruptedChunkIsResent() throws IOException {
+        File source = createFile("data.bin", 40 * 1000, 5);
+        File directory = folder.newFolder();
+        Result sent = new Result();
+        Result received = new Result();
+        Link link = transfer(source, directory, sent, received, -1, 2);
+
+        assertNull(sent.error);
+        assertArrayEquals(readFile(source), readFile(received.completed));
+        assertTrue(link.dataBytes > source.length());
+    }
+
+    @Test
+    public void senderTimesOutWithoutAcks() throws IOException {
+        File source = createFile("data.bin", 1000, 6);
+        Link link = new Link();
+        link.silent = true;
+        Result sent = new Result();
+        FileTransfer sender = FileTransfer.sender(source, 4096, 4, 100, link, sent);
+        sender.run();
+        assertNotNull(sent.error);
+        assertNull(sent.completed);
+        assertTrue(sender.isFinished());
+    }
+
+    @Test
+    public void cancelNotifiesRemote() throws IOException {
+        File source = createFile("data.bin", 1000, 7);
+        Link toReceiver = new Link();
+        Link toSender = new Link();
+        Result sent = new Result();
+        Result received = new Result();
+        FileTransfer sender = FileTransfer.sender(source, 4096, 4, 2000, toReceiver, sent);
+        FileTransfer receiver = FileTransfer.receiver(folder.newFolder(), toSender, received);
+        toReceiver.peer = receiver;
+        toSender.peer = sender;
+
+        receiver.cancel();
+        assertNotNull(received.error);
+        assertNotNull(sent.error);
+        assertTrue(sender.isFinished());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void chunkSizeIsLimited() {
+        FileTransfer.sender(new File("x"), FileTransfer.MAX_CHUNK_SIZE + 1, 4, 1000, new Link(), new Result());
+    }
+}
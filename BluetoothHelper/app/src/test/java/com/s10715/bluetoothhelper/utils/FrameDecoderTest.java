@@ -0,0 +1,137 @@
+package com.s10715.bluetoothhelper.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FrameDecoderTest {
+
+    private final List<byte[]> frames = new ArrayList<>();
+    private final FrameDecoder.OnFrameListener listener = new FrameDecoder.OnFrameListener() {
+        @Override
+        public void onFrame(byte[] data, int offset, int length) {
+            frames.add(Arrays.copyOfRange(data, offset, offset + length));
+        }
+    };
+
+    private static byte[] lengthPrefixed(List<byte[]> messages) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] message : messages) {
+            out.write(message.length >>> 8);
+            out.write(message.length);
+            out.write(message, 0, message.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static List<byte[]> randomMessages(Random random, int count, int maxSize) {
+        List<byte[]> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] message = new byte[random.nextInt(maxSize + 1)];
+            random.nextBytes(message);
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    private void assertFrames(List<byte[]> expected) {
+        assertEquals(expected.size(), frames.size());
+        for (int i = 0; i < expected.size(); i++)
+            assertArrayEquals(expected.get(i), frames.get(i));
+    }
+
+    @Test
+    public void lengthPrefixedSurvivesAnySplit() throws IOException {
+        Random random = new Random(3);
+        List<byte[]> messages = randomMessages(random, 200, 3000);
+        byte[] stream = lengthPrefixed(messages);
+        FrameDecoder decoder = new FrameDecoder(Framer.lengthPrefixed(2, 3000));
+
+        int offset = 0;
+        while (offset < stream.length) {
+            int length = Math.min(stream.length - offset, 1 + random.nextInt(700));
+            decoder.feed(stream, offset, length, listener);
+            offset += length;
+        }
+        assertFrames(messages);
+    }
+
+    @Test
+    public void readFromStreamInSmallChunks() throws IOException {
+        Random random = new Random(4);
+        List<byte[]> messages = randomMessages(random, 100, 2000);
+        final byte[] stream = lengthPrefixed(messages);
+        //每次read最多返回7个字节，与RFCOMM把数据切成小块相同
+        InputStream input = new InputStream() {
+            private int position;
+
+            @Override
+            public int read() {
+                return position < stream.length ? stream[position++] & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (position == stream.length)
+                    return -1;
+                int bytes = Math.min(Math.min(len, 7), stream.length - position);
+                System.arraycopy(stream, position, b, off, bytes);
+                position += bytes;
+                return bytes;
+            }
+        };
+        FrameDecoder decoder = new FrameDecoder(Framer.lengthPrefixed(2, 2000));
+        while (decoder.readFrom(input) != -1)
+            decoder.decode(listener);
+        assertFrames(messages);
+    }
+
+    @Test
+    public void delimiterSplitAcrossFeeds() throws IOException {
+        byte[] stream = "first\r\nsecond\r\n\r\nthird\r\n".getBytes("UTF-8");
+        FrameDecoder decoder = new FrameDecoder(Framer.delimiter("\r\n".getBytes("UTF-8"), 64));
+        for (int i = 0; i < stream.length; i++)
+            decoder.feed(stream, i, 1, listener);
+        assertFrames(Arrays.asList("first".getBytes("UTF-8"), "second".getBytes("UTF-8"), new byte[0], "third".getBytes("UTF-8")));
+    }
+
+    @Test
+    public void fixedSize() throws IOException {
+        byte[] stream = {1, 2, 3, 4, 5, 6, 7};
+        FrameDecoder decoder = new FrameDecoder(Framer.fixedSize(3));
+        assertEquals(2, decoder.feed(stream, 0, stream.length, listener));
+        assertFrames(Arrays.asList(new byte[]{1, 2, 3}, new byte[]{4, 5, 6}));
+        //剩下的1个字节等待之后的数据
+        assertEquals(1, decoder.feed(new byte[]{8, 9}, 0, 2, listener));
+        assertArrayEquals(new byte[]{7, 8, 9}, frames.get(2));
+    }
+
+    @Test(expected = IOException.class)
+    public void oversizedLengthIsRejected() throws IOException {
+        FrameDecoder decoder = new FrameDecoder(Framer.lengthPrefixed(2, 100));
+        decoder.feed(new byte[]{0, 101}, 0, 2, listener);
+    }
+
+    @Test(expected = IOException.class)
+    public void missingDelimiterIsRejected() throws IOException {
+        FrameDecoder decoder = new FrameDecoder(Framer.delimiter(new byte[]{'\n'}, 16));
+        decoder.feed(new byte[32], 0, 32, listener);
+    }
+
+    @Test
+    public void resetDropsPartialFrame() throws IOException {
+        FrameDecoder decoder = new FrameDecoder(Framer.lengthPrefixed(1, 10));
+        decoder.feed(new byte[]{5, 1, 2}, 0, 3, listener);
+        decoder.reset();
+        decoder.feed(new byte[]{2, 8, 9}, 0, 3, listener);
+        assertFrames(Arrays.asList(new byte[]{8, 9}));
+    }
+}
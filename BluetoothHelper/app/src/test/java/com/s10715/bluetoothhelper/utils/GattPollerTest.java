@@ -0,0 +1,184 @@
+package com.s10715.bluetoothhelper.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class GattPollerTest {
+
+    //手动执行的定时器，记录最后一次计划的延迟
+    private static class ManualScheduler implements GattQueue.Scheduler {
+        private final List<Runnable> tasks = new ArrayList<>();
+        long lastDelay = -1;
+
+        @Override
+        public void schedule(Runnable task, long delay) {
+            tasks.add(task);
+            lastDelay = delay;
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            while (tasks.remove(task)) {
+            }
+        }
+
+        void runAll() {
+            List<Runnable> due = new ArrayList<>(tasks);
+            tasks.clear();
+            for (Runnable task : due)
+                task.run();
+        }
+    }
+
+    //记录发起的读取，由测试调用complete结束
+    private static class ManualReader implements GattPoller.Reader {
+        final List<GattPoller.Poll> reads = new ArrayList<>();
+        boolean accept = true;
+
+        @Override
+        public boolean read(Object target, GattPoller.Poll poll) {
+            if (!accept)
+                return false;
+            reads.add(poll);
+            return true;
+        }
+    }
+
+    private static class Recorder implements GattPoller.Listener {
+        final List<byte[]> changes = new ArrayList<>();
+        int errors;
+
+        @Override
+        public void onChanged(GattPoller.Poll poll, byte[] value) {
+            changes.add(value);
+        }
+
+        @Override
+        public void onError(GattPoller.Poll poll) {
+            errors++;
+        }
+    }
+
+    private final ManualScheduler scheduler = new ManualScheduler();
+    private final ManualReader reader = new ManualReader();
+    private final Recorder recorder = new Recorder();
+    private final GattPoller poller = new GattPoller(scheduler, reader);
+
+    //等到period为1毫秒的轮询到期后再执行定时任务
+    private void tickAfterPeriod() throws InterruptedException {
+        Thread.sleep(2);
+        scheduler.runAll();
+    }
+
+    @Test
+    public void unchangedValuesAreSuppressed() throws InterruptedException {
+        GattPoller.Poll poll = poller.add("a", 1, recorder);
+        assertEquals(0, scheduler.lastDelay);
+
+        scheduler.runAll();
+        assertEquals(1, reader.reads.size());
+        poll.complete(new byte[]{1});
+        tickAfterPeriod();
+        poll.complete(new byte[]{1});
+        tickAfterPeriod();
+        poll.complete(new byte[]{2});
+
+        assertEquals(2, recorder.changes.size());
+        assertArrayEquals(new byte[]{2}, recorder.changes.get(1));
+        assertEquals(3, poll.getReadCount());
+        assertEquals(2, poll.getChangedCount());
+        assertEquals(1, poll.getSuppressedCount());
+    }
+
+    @Test
+    public void onlyOneReadInFlightPerTarget() {
+        GattPoller.Poll poll = poller.add("a", 1, recorder);
+        scheduler.runAll();
+        //读取还没有完成时不会再安排定时任务
+        assertTrue(scheduler.tasks.isEmpty());
+        assertEquals(1, reader.reads.size());
+
+        poll.complete(new byte[]{1});
+        assertEquals(1, scheduler.tasks.size());
+        //重复的回调被忽略
+        poll.complete(new byte[]{2});
+        assertEquals(1, recorder.changes.size());
+        assertEquals(1, poll.getReadCount());
+    }
+
+    @Test
+    public void nextReadIsScheduledOnePeriodLater() {
+        GattPoller.Poll poll = poller.add("a", 500, recorder);
+        scheduler.runAll();
+        poll.complete(new byte[]{1});
+        assertTrue(scheduler.lastDelay > 0 && scheduler.lastDelay <= 500);
+    }
+
+    @Test
+    public void pollsShareOneTimer() {
+        poller.add("a", 100, recorder);
+        poller.add("b", 200, recorder);
+        poller.add("c", 300, recorder);
+        assertEquals(3, poller.size());
+        assertEquals(1, scheduler.tasks.size());
+
+        scheduler.runAll();
+        assertEquals(3, reader.reads.size());
+    }
+
+    @Test
+    public void failedReadsReportErrorsAndKeepPolling() throws InterruptedException {
+        reader.accept = false;
+        GattPoller.Poll poll = poller.add("a", 1, recorder);
+        scheduler.runAll();
+        assertEquals(1, recorder.errors);
+        assertEquals(1, poll.getErrorCount());
+        assertEquals(1, scheduler.tasks.size());
+
+        reader.accept = true;
+        tickAfterPeriod();
+        reader.reads.get(0).complete(null);
+        assertEquals(2, recorder.errors);
+        assertEquals(0, poll.getReadCount());
+    }
+
+    @Test
+    public void slowReadsStretchThePeriod() throws InterruptedException {
+        GattPoller.Poll poll = poller.add("a", 10, recorder);
+        scheduler.runAll();
+        Thread.sleep(40);
+        poll.complete(new byte[]{1});
+        assertTrue(poll.getAverageLatency() >= 40);
+        //平均耗时的5/4
+        assertTrue(poll.getEffectivePeriod() >= 50);
+    }
+
+    @Test
+    public void removedPollDoesNotCallBack() {
+        GattPoller.Poll poll = poller.add("a", 100, recorder);
+        scheduler.runAll();
+        poller.remove("a");
+        assertNull(poller.get("a"));
+        poll.complete(new byte[]{1});
+        assertTrue(recorder.changes.isEmpty());
+        assertTrue(scheduler.tasks.isEmpty());
+    }
+
+    @Test
+    public void stopCancelsTimer() {
+        poller.add("a", 100, recorder);
+        poller.add("b", 100, recorder);
+        poller.stop();
+        assertEquals(0, poller.size());
+        assertTrue(scheduler.tasks.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void periodMustBePositive() {
+        poller.add("a", 0, recorder);
+    }
+}
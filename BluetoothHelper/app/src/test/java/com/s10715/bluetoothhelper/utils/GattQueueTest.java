@@ -0,0 +1,154 @@
+package com.s10715.bluetoothhelper.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class GattQueueTest {
+
+    //手动执行的定时器，runAll执行所有已计划的任务
+    private static class ManualScheduler implements GattQueue.Scheduler {
+        private final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void schedule(Runnable task, long delay) {
+            tasks.add(task);
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            while (tasks.remove(task)) {
+            }
+        }
+
+        void runAll() {
+            List<Runnable> due = new ArrayList<>(tasks);
+            tasks.clear();
+            for (Runnable task : due)
+                task.run();
+        }
+    }
+
+    //记录发起和结束的操作
+    private static class TestOperation extends GattQueue.Operation {
+        private final List<String> events;
+        private final String name;
+        private final boolean accept;
+
+        TestOperation(List<String> events, String name, Object target, long timeout, boolean accept) {
+            super(target, timeout);
+            this.events = events;
+            this.name = name;
+            this.accept = accept;
+        }
+
+        @Override
+        protected boolean start() {
+            events.add("start " + name);
+            return accept;
+        }
+
+        @Override
+        protected void onComplete(int status, byte[] value) {
+            events.add(name + " " + status);
+        }
+    }
+
+    private final ManualScheduler scheduler = new ManualScheduler();
+    private final List<String> events = new ArrayList<>();
+    private final Object characteristic = new Object();
+
+    private TestOperation operation(String name, Object target, long timeout) {
+        return new TestOperation(events, name, target, timeout, true);
+    }
+
+    @Test
+    public void operationsRunOneAtATime() {
+        GattQueue queue = new GattQueue(scheduler);
+        Object other = new Object();
+        assertTrue(queue.enqueue(operation("a", characteristic, 1000)));
+        assertTrue(queue.enqueue(operation("b", other, 1000)));
+        assertEquals(Arrays.asList("start a"), events);
+        assertEquals(2, queue.getDepth());
+
+        //target不一致的回调不会结束正在执行的操作
+        assertFalse(queue.complete(other, GattQueue.STATUS_SUCCESS, null));
+        assertTrue(queue.complete(characteristic, GattQueue.STATUS_SUCCESS, null));
+        assertTrue(queue.complete(other, 5, null));
+        assertEquals(Arrays.asList("start a", "a 0", "start b", "b 5"), events);
+        assertEquals(0, queue.getDepth());
+        assertEquals(1, queue.getStats().getFailedCount());
+    }
+
+    @Test
+    public void timeoutStartsNextOperation() throws InterruptedException {
+        GattQueue queue = new GattQueue(scheduler);
+        queue.enqueue(operation("a", characteristic, 1));
+        queue.enqueue(operation("b", new Object(), 1000));
+        Thread.sleep(5);
+        scheduler.runAll();
+
+        assertEquals(Arrays.asList("start a", "a " + GattQueue.STATUS_TIMEOUT, "start b"), events);
+        assertEquals(1, queue.getStats().getTimeoutCount());
+    }
+
+    @Test
+    public void earlyTimerIsRescheduled() throws InterruptedException {
+        GattQueue queue = new GattQueue(scheduler);
+        queue.enqueue(operation("a", characteristic, 50));
+        //定时器在超时之前执行，操作不能结束，也不能从此不再检查
+        scheduler.runAll();
+        assertEquals(Arrays.asList("start a"), events);
+        assertEquals(1, scheduler.tasks.size());
+
+        Thread.sleep(60);
+        scheduler.runAll();
+        assertEquals(Arrays.asList("start a", "a " + GattQueue.STATUS_TIMEOUT), events);
+    }
+
+    @Test
+    public void lateCallbackDoesNotCompleteNextOperation() throws InterruptedException {
+        GattQueue queue = new GattQueue(scheduler);
+        queue.enqueue(operation("a", characteristic, 1));
+        queue.enqueue(operation("b", characteristic, 1000));
+        Thread.sleep(5);
+        scheduler.runAll();
+
+        //a迟到的回调
+        assertFalse(queue.complete(characteristic, GattQueue.STATUS_SUCCESS, null));
+        assertEquals(1, queue.getDepth());
+        //b自己的回调
+        assertTrue(queue.complete(characteristic, GattQueue.STATUS_SUCCESS, null));
+        assertEquals(Arrays.asList("start a", "a " + GattQueue.STATUS_TIMEOUT, "start b", "b 0"), events);
+    }
+
+    @Test
+    public void rejectedOperationIsSkipped() {
+        GattQueue queue = new GattQueue(scheduler);
+        queue.enqueue(operation("a", characteristic, 1000));
+        queue.enqueue(new TestOperation(events, "b", characteristic, 1000, false));
+        queue.enqueue(operation("c", characteristic, 1000));
+        queue.complete(characteristic, GattQueue.STATUS_SUCCESS, null);
+
+        assertEquals(Arrays.asList("start a", "a 0", "start b", "b " + GattQueue.STATUS_REJECTED, "start c"), events);
+    }
+
+    @Test
+    public void closeCancelsEverything() {
+        GattQueue queue = new GattQueue(scheduler, 1);
+        assertTrue(queue.enqueue(operation("a", characteristic, 1000)));
+        assertTrue(queue.enqueue(operation("b", characteristic, 1000)));
+        //队列已满
+        assertFalse(queue.enqueue(operation("c", characteristic, 1000)));
+
+        queue.close();
+        assertFalse(queue.enqueue(operation("d", characteristic, 1000)));
+        assertFalse(queue.complete(characteristic, GattQueue.STATUS_SUCCESS, null));
+        assertEquals(Arrays.asList("start a", "a " + GattQueue.STATUS_CANCELLED, "b " + GattQueue.STATUS_CANCELLED), events);
+        assertTrue(scheduler.tasks.isEmpty());
+    }
+}
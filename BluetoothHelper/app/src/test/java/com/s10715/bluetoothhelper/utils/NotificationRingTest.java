@@ -0,0 +1,124 @@
+package com.s10715.bluetoothhelper.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class NotificationRingTest {
+
+    private static class Collector implements NotificationRing.BatchListener {
+        final List<byte[]> values = new ArrayList<>();
+        final List<Object> sources = new ArrayList<>();
+
+        @Override
+        public void onBatch(NotificationRing.Batch batch) {
+            for (int i = 0; i < batch.size(); i++) {
+                values.add(batch.getValue(i));
+                sources.add(batch.getSource(i));
+            }
+        }
+    }
+
+    @Test
+    public void drainsInOrderWithinBatchLimit() {
+        NotificationRing ring = new NotificationRing(8, 4);
+        Object source = new Object();
+        for (int i = 0; i < 5; i++)
+            assertTrue(ring.offer(source, new byte[]{(byte) i, 0, 0}, 0, 1));
+
+        Collector collector = new Collector();
+        assertEquals(3, ring.drain(collector, 3));
+        assertEquals(2, ring.size());
+        assertEquals(2, ring.drain(collector, 3));
+        assertEquals(0, ring.drain(collector, 3));
+        for (int i = 0; i < 5; i++)
+            assertArrayEquals(new byte[]{(byte) i}, collector.values.get(i));
+        assertSame(source, collector.sources.get(0));
+    }
+
+    @Test
+    public void fullRingDropsNewNotifications() {
+        NotificationRing ring = new NotificationRing(3, 4);
+        assertEquals(4, ring.getCapacity());
+        for (int i = 0; i < 6; i++)
+            ring.offer(null, new byte[]{(byte) i}, 0, 1);
+        assertEquals(4, ring.getReceivedCount());
+        assertEquals(2, ring.getDroppedCount());
+
+        Collector collector = new Collector();
+        ring.drain(collector, 10);
+        assertArrayEquals(new byte[]{3}, collector.values.get(3));
+    }
+
+    @Test
+    public void slotsGrowUpToMaxSize() {
+        NotificationRing ring = new NotificationRing(4, 20, 244);
+        byte[] large = new byte[244];
+        large[243] = 7;
+        assertTrue(ring.offer(null, large, 0, large.length));
+        assertFalse(ring.offer(null, new byte[245], 0, 245));
+        assertEquals(1, ring.getDroppedCount());
+
+        Collector collector = new Collector();
+        ring.drain(collector, 10);
+        assertArrayEquals(large, collector.values.get(0));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void batchIndexIsChecked() {
+        NotificationRing ring = new NotificationRing(4, 4);
+        ring.offer(null, new byte[1], 0, 1);
+        ring.drain(new NotificationRing.BatchListener() {
+            @Override
+            public void onBatch(NotificationRing.Batch batch) {
+                batch.getData(1);
+            }
+        }, 10);
+    }
+
+    //一个生产者线程、一个消费者线程，收到的通知按顺序且没有重复，收到的加丢弃的等于发送的
+    @Test
+    public void producerAndConsumerThreads() throws InterruptedException {
+        final NotificationRing ring = new NotificationRing(64, 4);
+        final int total = 200000;
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] value = new byte[4];
+                for (int i = 0; i < total; i++) {
+                    value[0] = (byte) (i >>> 24);
+                    value[1] = (byte) (i >>> 16);
+                    value[2] = (byte) (i >>> 8);
+                    value[3] = (byte) i;
+                    ring.offer(null, value, 0, 4);
+                }
+            }
+        });
+        final int[] last = {-1};
+        final long[] received = {0};
+        NotificationRing.BatchListener consumer = new NotificationRing.BatchListener() {
+            @Override
+            public void onBatch(NotificationRing.Batch batch) {
+                for (int i = 0; i < batch.size(); i++) {
+                    byte[] data = batch.getData(i);
+                    int value = (data[0] & 0xFF) << 24 | (data[1] & 0xFF) << 16 | (data[2] & 0xFF) << 8 | (data[3] & 0xFF);
+                    assertTrue(value > last[0]);
+                    last[0] = value;
+                    received[0]++;
+                }
+            }
+        };
+        producer.start();
+        while (producer.isAlive())
+            ring.drain(consumer, 16);
+        producer.join();
+        while (ring.drain(consumer, 16) > 0) {
+        }
+
+        assertEquals(total, received[0] + ring.getDroppedCount());
+        assertEquals(received[0], ring.getReceivedCount());
+    }
+}
@@ -0,0 +1,121 @@
+package com.s10715.bluetoothhelper.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+public class PayloadCodecTest {
+
+    private static byte[] roundTrip(PayloadCodec encoder, PayloadCodec decoder, byte[] data) throws IOException {
+        byte[] encoded = new byte[PayloadCodec.maxEncodedSize(data.length)];
+        int size = encoder.encode(data, 0, data.length, encoded, 0);
+        byte[] decoded = new byte[decoder.getMaxSize()];
+        return Arrays.copyOf(decoded, decoder.decode(encoded, 0, size, decoded, 0));
+    }
+
+    @Test
+    public void roundTripCompressibleAndRandomData() throws IOException {
+        PayloadCodec encoder = new PayloadCodec();
+        PayloadCodec decoder = new PayloadCodec();
+        byte[] text = new byte[4096];
+        for (int i = 0; i < text.length; i++)
+            text[i] = (byte) ("sensor=" + (i % 10)).charAt(i % 8);
+        byte[] random = new byte[4096];
+        new Random(1).nextBytes(random);
+        byte[] small = {1, 2, 3};
+
+        assertArrayEquals(text, roundTrip(encoder, decoder, text));
+        assertArrayEquals(random, roundTrip(encoder, decoder, random));
+        assertArrayEquals(small, roundTrip(encoder, decoder, small));
+        //随机数据压缩失败后暂停尝试，下一条可压缩的消息原样发送，之后恢复压缩
+        assertArrayEquals(text, roundTrip(encoder, decoder, text));
+        assertEquals(1, encoder.getCompressedCount());
+        assertArrayEquals(text, roundTrip(encoder, decoder, text));
+        assertEquals(2, encoder.getCompressedCount());
+        assertTrue(encoder.getCompressionRatio() > 1);
+    }
+
+    @Test
+    public void incompressibleDataIsSentRaw() {
+        PayloadCodec encoder = new PayloadCodec(Deflater.BEST_SPEED, 16, PayloadCodec.DEFAULT_MAX_SIZE);
+        byte[] random = new byte[256];
+        new Random(2).nextBytes(random);
+        byte[] encoded = new byte[PayloadCodec.maxEncodedSize(random.length)];
+        assertEquals(random.length + 1, encoder.encode(random, 0, random.length, encoded, 0));
+        assertEquals(0, encoder.getCompressedCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void decodeRejectsOversizedPayload() throws IOException {
+        PayloadCodec encoder = new PayloadCodec();
+        PayloadCodec decoder = new PayloadCodec(Deflater.BEST_SPEED, PayloadCodec.DEFAULT_MIN_SIZE, 100);
+        byte[] data = new byte[1000];
+        roundTrip(encoder, decoder, data);
+    }
+
+    @Test
+    public void helloRoundTrip() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PayloadCodec.writeHello(out, PayloadCodec.CODEC_DEFLATE);
+        out.write(new byte[]{9, 8, 7});
+        PushbackInputStream in = new PushbackInputStream(new ByteArrayInputStream(out.toByteArray()), PayloadCodec.HELLO_SIZE);
+
+        assertEquals(PayloadCodec.CODEC_DEFLATE, PayloadCodec.readHello(in, 100));
+        //握手之后的数据留给读取
+        assertEquals(9, in.read());
+        assertEquals(PayloadCodec.CODEC_NONE, PayloadCodec.parseHello(PayloadCodec.hello(PayloadCodec.CODEC_NONE), 0, PayloadCodec.HELLO_SIZE));
+        assertEquals(-1, PayloadCodec.parseHello(new byte[]{1, 2}, 0, 2));
+    }
+
+    @Test
+    public void missingHelloFallsBackWithoutLosingData() throws IOException {
+        byte[] data = {'h', 'e', 'l', 'l', 'o', ' ', 'w', 'o', 'r', 'l', 'd'};
+        PushbackInputStream in = new PushbackInputStream(new ByteArrayInputStream(data), PayloadCodec.HELLO_SIZE);
+
+        assertEquals(PayloadCodec.CODEC_NONE, PayloadCodec.readHello(in, 100));
+        byte[] read = new byte[data.length];
+        int total = 0;
+        int bytes;
+        while ((bytes = in.read(read, total, read.length - total)) > 0)
+            total += bytes;
+        assertArrayEquals(data, read);
+    }
+
+    @Test(timeout = 2000)
+    public void silentPeerTimesOut() throws IOException {
+        PushbackInputStream in = new PushbackInputStream(new ByteArrayInputStream(new byte[2]), PayloadCodec.HELLO_SIZE);
+        assertEquals(PayloadCodec.CODEC_NONE, PayloadCodec.readHello(in, 50));
+        assertEquals(2, in.available());
+    }
+
+    //部分设备上read会返回0，握手不能因此一直循环
+    @Test(timeout = 2000)
+    public void readReturningZeroDoesNotSpin() throws IOException {
+        InputStream zero = new InputStream() {
+            @Override
+            public int read() {
+                return -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                return 0;
+            }
+
+            @Override
+            public int available() {
+                return PayloadCodec.HELLO_SIZE;
+            }
+        };
+        assertEquals(PayloadCodec.CODEC_NONE, PayloadCodec.readHello(new PushbackInputStream(zero, PayloadCodec.HELLO_SIZE), 50));
+    }
+}
@@ -0,0 +1,143 @@
+package com.s10715.bluetoothhelper.utils;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ScanTableTest {
+
+    @Test
+    public void parseMac() {
+        assertEquals(0xAABBCCDDEEFFL, ScanTable.parseMac("AA:BB:CC:DD:EE:FF"));
+        assertEquals(0xAABBCCDDEEFFL, ScanTable.parseMac("aa:bb:cc:dd:ee:ff"));
+        assertEquals(0L, ScanTable.parseMac("00:00:00:00:00:00"));
+        assertEquals(0xFFFFFFFFFFFFL, ScanTable.parseMac("FF:FF:FF:FF:FF:FF"));
+        assertEquals(0x240AC4010203L, ScanTable.parseMac("24:0A:C4:01:02:03"));
+    }
+
+    @Test
+    public void parseMacRejectsMalformedInput() {
+        assertEquals(-1, ScanTable.parseMac(null));
+        assertEquals(-1, ScanTable.parseMac(""));
+        assertEquals(-1, ScanTable.parseMac("AA:BB:CC:DD:EE"));
+        assertEquals(-1, ScanTable.parseMac("AA:BB:CC:DD:EE:FF:"));
+        assertEquals(-1, ScanTable.parseMac("AA-BB-CC-DD-EE-FF"));
+        assertEquals(-1, ScanTable.parseMac("AA:BB:CC:DD:EE:FG"));
+        assertEquals(-1, ScanTable.parseMac("GA:BB:CC:DD:EE:FF"));
+        assertEquals(-1, ScanTable.parseMac("AA:BB:CC:DD:EE: F"));
+        //非ASCII字符不能越界访问查找表
+        assertEquals(-1, ScanTable.parseMac("AA:BB:CC:DD:EE:ÿF"));
+        assertEquals(-1, ScanTable.parseMac("AA:BB:٣٣:DD:EE:FF"));
+    }
+
+    @Test
+    public void putGetRemove() {
+        ScanTable<String> table = new ScanTable<>();
+        assertNull(table.put(1, "a"));
+        assertEquals("a", table.put(1, "b"));
+        assertEquals("b", table.get(1));
+        assertNull(table.get(2));
+        assertEquals(1, table.size());
+        assertEquals("b", table.remove(1));
+        assertNull(table.remove(1));
+        assertNull(table.get(1));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void zeroMacIsAValidKey() {
+        ScanTable<String> table = new ScanTable<>();
+        table.put(0, "zero");
+        assertEquals("zero", table.get(0));
+        assertEquals("zero", table.remove(0));
+        assertEquals(0, table.size());
+    }
+
+    //相同OUI的设备集中在少数几个位置附近时，删除后前移的元素仍能找到
+    @Test
+    public void removeKeepsCollidingKeysReachable() {
+        ScanTable<Long> table = new ScanTable<>(4);
+        long base = 0x240AC4000000L;
+        for (long i = 0; i < 200; i++)
+            table.put(base + i, i);
+        for (long i = 0; i < 200; i += 3)
+            assertEquals(Long.valueOf(i), table.remove(base + i));
+        for (long i = 0; i < 200; i++) {
+            if (i % 3 == 0)
+                assertNull(table.get(base + i));
+            else
+                assertEquals(Long.valueOf(i), table.get(base + i));
+        }
+    }
+
+    @Test
+    public void randomOperationsMatchHashMap() {
+        Random random = new Random(3);
+        ScanTable<Integer> table = new ScanTable<>();
+        HashMap<Long, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 200000; i++) {
+            //key的范围比较小，保证有足够的重复、删除和冲突
+            long mac = 0x240AC4000000L | random.nextInt(512);
+            switch (random.nextInt(3)) {
+                case 0:
+                    assertEquals(expected.put(mac, i), table.put(mac, i));
+                    break;
+                case 1:
+                    assertEquals(expected.remove(mac), table.remove(mac));
+                    break;
+                default:
+                    assertEquals(expected.get(mac), table.get(mac));
+                    break;
+            }
+            assertEquals(expected.size(), table.size());
+        }
+        assertSameContent(expected, table);
+    }
+
+    @Test
+    public void iterationVisitsEveryEntry() {
+        ScanTable<Integer> table = new ScanTable<>(2);
+        HashMap<Long, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            long mac = 0x112233000000L + i * 0x10001L;
+            table.put(mac, i);
+            expected.put(mac, i);
+        }
+        assertTrue(table.capacity() >= 2 * table.size());
+        assertSameContent(expected, table);
+    }
+
+    @Test
+    public void clearEmptiesTable() {
+        ScanTable<String> table = new ScanTable<>();
+        for (int i = 0; i < 20; i++)
+            table.put(i, "v");
+        table.clear();
+        assertEquals(0, table.size());
+        for (int slot = 0; slot < table.capacity(); slot++) {
+            assertNull(table.valueAt(slot));
+            assertEquals(-1, table.keyAt(slot));
+        }
+        table.put(5, "w");
+        assertEquals("w", table.get(5));
+    }
+
+    //通过capacity、valueAt、keyAt遍历，内容与expected相同
+    private static void assertSameContent(Map<Long, Integer> expected, ScanTable<Integer> table) {
+        int count = 0;
+        for (int slot = 0; slot < table.capacity(); slot++) {
+            Integer value = table.valueAt(slot);
+            if (value == null) {
+                assertEquals(-1, table.keyAt(slot));
+                continue;
+            }
+            assertEquals(expected.get(table.keyAt(slot)), value);
+            count++;
+        }
+        assertEquals(expected.size(), count);
+    }
+}
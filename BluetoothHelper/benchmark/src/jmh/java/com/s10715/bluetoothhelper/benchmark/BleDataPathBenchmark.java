@@ -0,0 +1,128 @@
+package com.s10715.bluetoothhelper.benchmark;
+
+import com.s10715.bluetoothhelper.utils.CallbackDispatcher;
+import com.s10715.bluetoothhelper.utils.NotificationRing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BLE数据通路：写入一个MTU大小的包，对端以通知发回，直到用户回调收到为止算一次操作
+ * ring为false时为每个通知创建回调并交给分发器，为true时与BluetoothHelper#subscribe一样放入NotificationRing后成批取出
+ */
+@State(Scope.Benchmark)
+public class BleDataPathBenchmark {
+
+    @Param({"23", "247"})
+    public int mtu;
+
+    @Param({"1", "2"})
+    public int target;//CallbackDispatcher#TARGET_MAIN（用单线程模拟主线程）、CallbackDispatcher#TARGET_BACKGROUND
+
+    @Param({"false", "true"})
+    public boolean ring;
+
+    private LoopbackGatt gatt;
+    private CallbackDispatcher dispatcher;
+    private ExecutorService mainThread;
+    private byte[] payload;
+    private final AtomicLong received = new AtomicLong();
+    private long expected;
+
+    private NotificationRing notificationRing;
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final NotificationRing.BatchListener batchListener = new NotificationRing.BatchListener() {
+        @Override
+        public void onBatch(NotificationRing.Batch batch) {
+            long bytes = 0;
+            for (int i = 0; i < batch.size(); i++)
+                bytes += batch.getLength(i);
+            received.addAndGet(bytes);
+        }
+    };
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drainScheduled.set(false);
+            int count;
+            do {
+                count = notificationRing.drain(batchListener, 256);
+            } while (count > 0);
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setup() {
+        mainThread = Executors.newSingleThreadExecutor();
+        dispatcher = new CallbackDispatcher(target, CallbackDispatcher.DEFAULT_CAPACITY, CallbackDispatcher.OVERFLOW_DROP_OLDEST, mainThread);
+        received.set(0);
+        expected = 0;
+
+        gatt = new LoopbackGatt(mtu, new LoopbackGatt.Callback() {
+            @Override
+            public void onCharacteristicWrite(int status) {
+            }
+
+            @Override
+            public void onCharacteristicChanged(final byte[] value) {
+                if (ring) {
+                    notificationRing.offer(null, value, 0, value.length);
+                    if (drainScheduled.compareAndSet(false, true))
+                        dispatcher.execute(drainTask);
+                    return;
+                }
+                dispatcher.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        received.addAndGet(value.length);
+                    }
+                });
+            }
+        });
+        payload = new byte[gatt.getMaxPayload()];
+        notificationRing = new NotificationRing(1024, gatt.getMaxPayload());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dispatcher.shutdown();
+        mainThread.shutdownNow();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void throughput(ByteCounter counter) {
+        roundTrip();
+        counter.bytes += payload.length;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void latency() {
+        roundTrip();
+    }
+
+    private void roundTrip() {
+        gatt.writeCharacteristic(payload, 0, payload.length);
+        expected += payload.length;
+        while (received.get() < expected) {
+            //等待回调执行完
+        }
+    }
+}
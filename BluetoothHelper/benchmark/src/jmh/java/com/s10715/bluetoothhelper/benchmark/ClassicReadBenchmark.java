@@ -0,0 +1,90 @@
+package com.s10715.bluetoothhelper.benchmark;
+
+import com.s10715.bluetoothhelper.utils.BufferPool;
+import com.s10715.bluetoothhelper.utils.ClassicReader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 经典蓝牙读取通路：对端写入一条消息，直到ClassicReader把它全部交给回调为止算一次操作
+ */
+@State(Scope.Benchmark)
+public class ClassicReadBenchmark {
+
+    @Param({"64", "1024", "16384"})
+    public int payloadSize;
+
+    private LoopbackSocket socket;
+    private ClassicReader reader;
+    private byte[] payload;
+    private final AtomicLong received = new AtomicLong();
+    private long expected;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        socket = new LoopbackSocket(64 * 1024);
+        payload = new byte[payloadSize];
+        received.set(0);
+        expected = 0;
+
+        BufferPool pool = new BufferPool(32, 1024, null);
+        reader = new ClassicReader(socket.getInputStream(), pool, new ClassicReader.Callback() {
+            @Override
+            public void onReceived(BufferPool.Buffer buffer) {
+                received.addAndGet(buffer.getLength());
+                buffer.release();
+            }
+
+            @Override
+            public void onFrame(byte[] data, int offset, int length) {
+            }
+
+            @Override
+            public void onEnd(IOException e) {
+            }
+        });
+        new Thread(reader, "benchmark-reader").start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        reader.stop();
+        socket.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void throughput(ByteCounter counter) throws IOException {
+        roundTrip();
+        counter.bytes += payloadSize;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void latency() throws IOException {
+        roundTrip();
+    }
+
+    private void roundTrip() throws IOException {
+        socket.getOutputStream().write(payload, 0, payload.length);
+        expected += payload.length;
+        while (received.get() < expected) {
+            //等待读取线程处理完
+        }
+    }
+}
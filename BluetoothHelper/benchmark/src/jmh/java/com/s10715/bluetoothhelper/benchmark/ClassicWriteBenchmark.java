@@ -0,0 +1,111 @@
+package com.s10715.bluetoothhelper.benchmark;
+
+import com.s10715.bluetoothhelper.utils.ClassicWriteQueue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 经典蓝牙写入通路：连续提交BURST条消息，直到全部回调onWritten为止
+ * 对端线程只负责把数据读走，相当于一条无限快的链路，测的是写入队列本身的开销
+ */
+@State(Scope.Benchmark)
+public class ClassicWriteBenchmark {
+
+    private static final int BURST = 16;
+
+    @Param({"20", "256", "4096"})
+    public int payloadSize;
+
+    @Param({"0", "1"})
+    public long maxLatency;
+
+    private LoopbackSocket socket;
+    private ClassicWriteQueue writeQueue;
+    private byte[] payload;
+    private final AtomicLong written = new AtomicLong();
+    private long expected;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        socket = new LoopbackSocket(64 * 1024);
+        payload = new byte[payloadSize];
+        written.set(0);
+        expected = 0;
+
+        writeQueue = new ClassicWriteQueue(socket.getOutputStream(), new ClassicWriteQueue.Callback() {
+            @Override
+            public void onWritten(Object tag) {
+                written.incrementAndGet();
+            }
+
+            @Override
+            public void onFailed(Object tag, IOException e) {
+            }
+        }, ClassicWriteQueue.DEFAULT_CAPACITY, ClassicWriteQueue.DEFAULT_MAX_BATCH_SIZE, maxLatency);
+        new Thread(writeQueue, "benchmark-writer").start();
+
+        //对端，读走所有数据
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                InputStream inputStream = socket.getInputStream();
+                byte[] sink = new byte[8192];
+                try {
+                    while (inputStream.read(sink, 0, sink.length) != -1) {
+                        //丢弃
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+        }, "benchmark-peer").start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        writeQueue.stop();
+        socket.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BURST)
+    public void throughput(ByteCounter counter) {
+        burst();
+        counter.bytes += BURST * payloadSize;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void burstLatency() {
+        burst();
+    }
+
+    private void burst() {
+        for (int i = 0; i < BURST; i++) {
+            while (!writeQueue.offer(payload, null)) {
+                //队列已满，等待写入线程
+            }
+        }
+        expected += BURST;
+        while (written.get() < expected) {
+            //等待写入线程处理完
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.s10715.bluetoothhelper.benchmark;
+
+import com.s10715.bluetoothhelper.utils.FrameDecoder;
+import com.s10715.bluetoothhelper.utils.Framer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分帧：把FRAMES个帧组成的字节流按RFCOMM常见的990字节分块喂给FrameDecoder
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FrameDecoderBenchmark {
+
+    private static final int FRAMES = 1000;
+    private static final int CHUNK = 990;
+
+    @Param({"16", "128"})
+    public int frameSize;
+
+    @Param({"length", "delimiter"})
+    public String framing;
+
+    private byte[] stream;
+    private FrameDecoder decoder;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        if ("length".equals(framing)) {
+            decoder = new FrameDecoder(Framer.lengthPrefixed(2, 1024));
+            stream = new byte[FRAMES * (frameSize + 2)];
+            for (int i = 0; i < FRAMES; i++) {
+                int offset = i * (frameSize + 2);
+                stream[offset] = (byte) (frameSize >> 8);
+                stream[offset + 1] = (byte) frameSize;
+                for (int j = 0; j < frameSize; j++)
+                    stream[offset + 2 + j] = 'a';
+            }
+        } else {
+            decoder = new FrameDecoder(Framer.delimiter(new byte[]{'\n'}, 1024));
+            stream = new byte[FRAMES * (frameSize + 1)];
+            for (int i = 0; i < FRAMES; i++) {
+                int offset = i * (frameSize + 1);
+                for (int j = 0; j < frameSize; j++)
+                    stream[offset + j] = 'a';
+                stream[offset + frameSize] = '\n';
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void decode(final Blackhole blackhole, ByteCounter counter) throws IOException {
+        FrameDecoder.OnFrameListener listener = new FrameDecoder.OnFrameListener() {
+            @Override
+            public void onFrame(byte[] data, int offset, int length) {
+                blackhole.consume(length);
+            }
+        };
+        for (int offset = 0; offset < stream.length; offset += CHUNK)
+            decoder.feed(stream, offset, Math.min(CHUNK, stream.length - offset), listener);
+        counter.bytes += stream.length;
+    }
+}
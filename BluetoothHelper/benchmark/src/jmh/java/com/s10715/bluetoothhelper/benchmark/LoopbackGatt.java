@@ -0,0 +1,50 @@
+package com.s10715.bluetoothhelper.benchmark;
+
+/**
+ * 代替BluetoothGatt的内存回环，写入特征值后由对端以通知的形式原样发回
+ * 与Android协议栈一样，每次回调都会生成新的特征值数组，单个包最多MTU-3字节
+ */
+public class LoopbackGatt {
+
+    public static final int GATT_SUCCESS = 0;
+    public static final int GATT_INVALID_ATTRIBUTE_LENGTH = 0x0D;
+
+    private final int mtu;
+    private final Callback callback;
+
+    public LoopbackGatt(int mtu, Callback callback) {
+        this.mtu = mtu;
+        this.callback = callback;
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    //单个包的最大长度
+    public int getMaxPayload() {
+        return mtu - 3;
+    }
+
+    /**
+     * 在调用线程（相当于Binder线程）中依次回调onCharacteristicWrite和onCharacteristicChanged
+     */
+    public boolean writeCharacteristic(byte[] value, int offset, int length) {
+        if (length > getMaxPayload()) {
+            callback.onCharacteristicWrite(GATT_INVALID_ATTRIBUTE_LENGTH);
+            return false;
+        }
+        byte[] notification = new byte[length];
+        System.arraycopy(value, offset, notification, 0, length);
+        callback.onCharacteristicWrite(GATT_SUCCESS);
+        callback.onCharacteristicChanged(notification);
+        return true;
+    }
+
+
+    public interface Callback {
+        void onCharacteristicWrite(int status);
+
+        void onCharacteristicChanged(byte[] value);
+    }
+}
@@ -0,0 +1,103 @@
+package com.s10715.bluetoothhelper.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * 代替BluetoothSocket的内存回环连接，写入OutputStream的数据从InputStream读出
+ * read的行为与RFCOMM一致：没有数据时阻塞，有数据时最多返回一次能读到的全部数据，关闭后抛出IOException
+ */
+public class LoopbackSocket {
+
+    private final byte[] ring;
+    private int readPos;
+    private int size;
+    private boolean closed;
+
+    private final InputStream inputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            synchronized (LoopbackSocket.this) {
+                while (size == 0 && !closed) {
+                    try {
+                        LoopbackSocket.this.wait();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                if (closed)
+                    throw new IOException("socket closed");
+
+                int count = Math.min(len, size);
+                int first = Math.min(count, ring.length - readPos);
+                System.arraycopy(ring, readPos, b, off, first);
+                System.arraycopy(ring, 0, b, off + first, count - first);
+                readPos = (readPos + count) % ring.length;
+                size -= count;
+                LoopbackSocket.this.notifyAll();
+                return count;
+            }
+        }
+    };
+
+    private final OutputStream outputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (LoopbackSocket.this) {
+                while (len > 0) {
+                    while (size == ring.length && !closed) {
+                        try {
+                            LoopbackSocket.this.wait();
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                    }
+                    if (closed)
+                        throw new IOException("socket closed");
+
+                    int writePos = (readPos + size) % ring.length;
+                    int count = Math.min(len, Math.min(ring.length - size, ring.length - writePos));
+                    System.arraycopy(b, off, ring, writePos, count);
+                    size += count;
+                    off += count;
+                    len -= count;
+                    LoopbackSocket.this.notifyAll();
+                }
+            }
+        }
+    };
+
+    //capacity相当于协议栈的接收缓冲区大小
+    public LoopbackSocket(int capacity) {
+        this.ring = new byte[capacity];
+    }
+
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    public synchronized boolean isConnected() {
+        return !closed;
+    }
+}
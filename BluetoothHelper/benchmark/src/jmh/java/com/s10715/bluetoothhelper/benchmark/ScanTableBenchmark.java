@@ -0,0 +1,139 @@
+package com.s10715.bluetoothhelper.benchmark;
+
+import com.s10715.bluetoothhelper.utils.ScanTable;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 扫描结果去重：一次调用模拟1秒的扫描，即ADVERTISEMENTS个广播，结果是每秒扫描消耗的CPU时间，gc.alloc.rate.norm是每秒分配的字节数
+ * 每个广播的mac都是新的字符串（与系统每次解析ScanResult相同），baseline只创建字符串，用于扣除两种实现共同的部分
+ * 在场的设备每秒替换1/10，连续LOST_ROUNDS秒没有出现的设备被删除，与BluetoothHelper中的丢失检测相同
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ScanTableBenchmark {
+
+    private static final int ADVERTISEMENTS = 5000;
+    private static final int LOST_ROUNDS = 3;
+
+    //同时在场的设备数
+    @Param({"50", "500"})
+    public int devices;
+
+    private char[][] macs;//所有设备，是在场设备数的2倍
+    private int[] trace;//每个广播来自第几个在场设备
+    private int round;
+
+    private HashMap<String, Record> map;
+    private ScanTable<Record> table;
+    private final ArrayList<Record> lost = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+        macs = new char[devices * 2][];
+        for (int i = 0; i < macs.length; i++) {
+            //同一个厂商的设备OUI相同
+            macs[i] = String.format("24:0A:C4:%02X:%02X:%02X", random.nextInt(256), random.nextInt(256), random.nextInt(256)).toCharArray();
+        }
+        trace = new int[ADVERTISEMENTS];
+        for (int i = 0; i < trace.length; i++)
+            trace[i] = random.nextInt(devices);
+        map = new HashMap<>();
+        table = new ScanTable<>();
+        round = 0;
+    }
+
+    @Benchmark
+    public void baseline(Blackhole blackhole) {
+        int base = nextRound();
+        for (int i = 0; i < ADVERTISEMENTS; i++)
+            blackhole.consume(new String(macs[(base + trace[i]) % macs.length]));
+    }
+
+    //改动前：以字符串mac为key的HashMap
+    @Benchmark
+    public void hashMap(Blackhole blackhole) {
+        int base = nextRound();
+        for (int i = 0; i < ADVERTISEMENTS; i++) {
+            String mac = new String(macs[(base + trace[i]) % macs.length]);
+            Record record = map.get(mac);
+            if (record == null) {
+                record = new Record(mac);
+                map.put(mac, record);
+            }
+            record.update(-40 - (i & 63), round);
+        }
+
+        Iterator<Record> iterator = map.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().lastSeen <= round - LOST_ROUNDS)
+                iterator.remove();
+        }
+        blackhole.consume(map.size());
+    }
+
+    //改动后：以48位mac为key的ScanTable
+    @Benchmark
+    public void scanTable(Blackhole blackhole) {
+        int base = nextRound();
+        for (int i = 0; i < ADVERTISEMENTS; i++) {
+            String mac = new String(macs[(base + trace[i]) % macs.length]);
+            long key = ScanTable.parseMac(mac);
+            Record record = table.get(key);
+            if (record == null) {
+                record = new Record(mac);
+                table.put(key, record);
+            }
+            record.update(-40 - (i & 63), round);
+        }
+
+        for (int slot = 0; slot < table.capacity(); slot++) {
+            Record record = table.valueAt(slot);
+            if (record != null && record.lastSeen <= round - LOST_ROUNDS)
+                lost.add(record);
+        }
+        for (int i = 0; i < lost.size(); i++)
+            table.remove(ScanTable.parseMac(lost.get(i).mac));
+        lost.clear();
+        blackhole.consume(table.size());
+    }
+
+    //开始新的一秒，返回第一个在场设备的序号
+    private int nextRound() {
+        round++;
+        return (int) ((long) round * Math.max(1, devices / 10) % macs.length);
+    }
+
+    //扫描到的设备，对应BluetoothInfo
+    private static class Record {
+        final String mac;
+        int rssi;
+        int lastSeen;
+
+        Record(String mac) {
+            this.mac = mac;
+        }
+
+        void update(int rssi, int round) {
+            this.rssi = rssi;
+            this.lastSeen = round;
+        }
+    }
+}